@@ -0,0 +1,148 @@
+package org.httpkit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs at most maxConcurrency tasks at a time on an executor that has no limit of its
+ * own, like a virtual thread per task one; up to queueSize more wait for their turn, the
+ * next ones are rejected: a full queue means 503s, as with a ThreadPoolExecutor, instead
+ * of ever more threads all waiting on the same database.
+ * Lock free: whoever queues a task or ends one starts the waiting ones permits allow.
+ */
+public class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final int maxConcurrency;
+    private final int queueSize;
+
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean shutdown = false;
+
+    public BoundedExecutor(ExecutorService delegate, int maxConcurrency, int queueSize) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency < 1: " + maxConcurrency);
+        }
+        this.delegate = delegate;
+        this.maxConcurrency = maxConcurrency;
+        this.queueSize = Math.max(0, queueSize);
+    }
+
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("shutdown");
+        }
+        int n;
+        while ((n = running.get()) < maxConcurrency) {
+            if (running.compareAndSet(n, n + 1)) {
+                start(task);
+                return;
+            }
+        }
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            throw new RejectedExecutionException("max concurrency reached, queue full");
+        }
+        queue.offer(task);
+        drain(); // the running ones may have ended meanwhile
+    }
+
+    // a permit is taken
+    private void start(final Runnable task) {
+        try {
+            delegate.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        drain();
+                        tryTerminate();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void drain() {
+        int n;
+        while (waiting.get() > 0 && (n = running.get()) < maxConcurrency) {
+            if (running.compareAndSet(n, n + 1)) {
+                Runnable task = queue.poll();
+                if (task == null) { // counted, not offered yet: its execute drains again
+                    running.decrementAndGet();
+                    return;
+                }
+                waiting.decrementAndGet();
+                try {
+                    start(task);
+                } catch (RejectedExecutionException ignore) {
+                    // delegate shut down by shutdownNow
+                }
+            }
+        }
+    }
+
+    private void tryTerminate() {
+        if (shutdown && running.get() == 0 && waiting.get() == 0) {
+            delegate.shutdown();
+        }
+    }
+
+    /**
+     * @return how many tasks are running
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return how many tasks wait for one of them to end
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        tryTerminate();
+    }
+
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> left = new ArrayList<Runnable>();
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            waiting.decrementAndGet();
+            left.add(task);
+        }
+        delegate.shutdownNow();
+        return left;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
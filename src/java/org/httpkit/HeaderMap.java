@@ -3,6 +3,7 @@ package org.httpkit;
 import clojure.lang.ISeq;
 import clojure.lang.Seqable;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -70,6 +71,18 @@ public class HeaderMap {
         this.size = 0;
     }
 
+    public int size() {
+        return size;
+    }
+
+    public String getKey(int i) {
+        return (String) arrays[i * 2];
+    }
+
+    public Object getValue(int i) {
+        return arrays[i * 2 + 1];
+    }
+
     public static HeaderMap camelCase(Map<String, Object> map) {
         HeaderMap tmp = new HeaderMap();
         if (map != null) {
@@ -110,4 +123,53 @@ public class HeaderMap {
         }
         bytes.append(CR, LF);
     }
+
+    /**
+     * Same as {@link #encodeHeaders(DynamicBytes)}, into a buffer with enough room left
+     *
+     * @throws java.nio.BufferOverflowException if not enough, the buffer is then half written
+     */
+    public void encodeHeaders(ByteBuffer buffer) {
+        final int total = size * 2;
+        for (int i = 0; i < total; i += 2) {
+            String k = (String) arrays[i];
+            Object v = arrays[i + 1];
+            if (k == null || v == null) {
+                continue;
+            }
+            if (v instanceof Seqable) {
+                ISeq seq = ((Seqable) v).seq();
+                while (seq != null) {
+                    put(buffer, k, false);
+                    buffer.put(COLON).put(SP);
+                    put(buffer, seq.first().toString(), true);
+                    buffer.put(CR).put(LF);
+                    seq = seq.next();
+                }
+            } else {
+                put(buffer, k, false);
+                buffer.put(COLON).put(SP);
+                put(buffer, v.toString(), true);
+                buffer.put(CR).put(LF);
+            }
+        }
+        buffer.put(CR).put(LF);
+    }
+
+    // as DynamicBytes: ISO-8859-1 ('?' if not ASCII) for names, UTF-8 for values
+    private static void put(ByteBuffer buffer, String s, boolean utf8) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                buffer.put((byte) c);
+            } else if (utf8) { // again, encoded
+                buffer.position(buffer.position() - i);
+                buffer.put(s.getBytes(HttpUtils.UTF_8));
+                return;
+            } else {
+                buffer.put((byte) '?');
+            }
+        }
+    }
 }
@@ -13,10 +13,44 @@ public enum HttpMethod {
     REPORT(intern("report")), ACL(intern("acl")), MOVE(intern("move")),
     COPY(intern("copy")), MKCOL(intern("mkcol")), LIST(intern("list"));
 
+    private static final HttpMethod[] VALUES = values();
+
     public final Keyword KEY;
+    private final byte[] name; // ASCII
 
     private HttpMethod(Keyword key) {
         this.KEY = key;
+        this.name = name().getBytes();
+    }
+
+    /**
+     * The method named by b[start, end), case insensitive, without a String of it
+     *
+     * @return null if not supported
+     */
+    public static HttpMethod match(byte[] b, int start, int end) {
+        int length = end - start;
+        for (HttpMethod m : VALUES) {
+            byte[] name = m.name;
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length) {
+                byte c = b[start + i];
+                if (c >= 'a' && c <= 'z') {
+                    c -= 'a' - 'A';
+                }
+                if (c != name[i]) {
+                    break;
+                }
+                i++;
+            }
+            if (i == length) {
+                return m;
+            }
+        }
+        return null;
     }
 
     public static HttpMethod fromKeyword(Keyword k) {
@@ -335,7 +335,9 @@ public class HttpUtils {
         StringWriter str = new StringWriter();
         PrintWriter pw = new PrintWriter(str, false);
         pw.println(error);
-        t.printStackTrace(pw);
+        if (t != null) {
+            t.printStackTrace(pw);
+        }
         System.err.print(str.getBuffer().toString());
     }
 
@@ -448,46 +450,105 @@ public class HttpUtils {
     public static ByteBuffer[] HttpEncode(int status, HeaderMap headers, Object body, String serverHeader) {
         ByteBuffer bodyBuffer;
         try {
-            bodyBuffer = bodyBuffer(body);
-            // only write length if not chunked
-            if (!CHUNKED.equals(headers.get("Transfer-Encoding"))) {
-                if (bodyBuffer != null) {
-                    // trust the computed length
-                    headers.putOrReplace(CONTENT_LENGTH, Integer.toString(bodyBuffer.remaining()));
-                } else if ((status / 100) != 1 && status != 204) {
-                    headers.putOrReplace(CONTENT_LENGTH, "0");
-                }
-            }
+            bodyBuffer = encodeBody(status, headers, body);
         } catch (IOException e) {
-            byte[] b = e.getMessage().getBytes(ASCII);
             status = 500;
-            headers.clear();
-            headers.put(CONTENT_LENGTH, Integer.toString(b.length));
-            bodyBuffer = ByteBuffer.wrap(b);
-        }
-        if (serverHeader != null && !headers.containsKey("Server")) {
-          headers.put("Server", serverHeader);
+            bodyBuffer = errorBody(headers, e);
         }
-        if (!headers.containsKey("Date")) {
-          headers.put("Date", DateFormatter.getDate()); // rfc says the Date is needed
+        ByteBuffer headBuffer = encodeHead(status, headers, serverHeader);
+
+        if (bodyBuffer != null)
+            return new ByteBuffer[]{headBuffer, bodyBuffer};
+        else
+            return new ByteBuffer[]{headBuffer};
+    }
+
+    /**
+     * The body of a response, Content-Length set unless chunked
+     */
+    public static ByteBuffer encodeBody(int status, HeaderMap headers, Object body) throws IOException {
+        ByteBuffer bodyBuffer = bodyBuffer(body);
+        // only write length if not chunked
+        if (!CHUNKED.equals(headers.get("Transfer-Encoding"))) {
+            if (bodyBuffer != null) {
+                // trust the computed length
+                headers.putOrReplace(CONTENT_LENGTH, Integer.toString(bodyBuffer.remaining()));
+            } else if ((status / 100) != 1 && status != 204) {
+                headers.putOrReplace(CONTENT_LENGTH, "0");
+            }
         }
+        return bodyBuffer;
+    }
+
+    /**
+     * The body of a 500 instead, when the body can't be read. Resets the headers
+     */
+    public static ByteBuffer errorBody(HeaderMap headers, IOException e) {
+        byte[] b = e.getMessage().getBytes(ASCII);
+        headers.clear();
+        headers.put(CONTENT_LENGTH, Integer.toString(b.length));
+        return ByteBuffer.wrap(b);
+    }
+
+    /**
+     * Status line and headers only, for a body of given length written separately
+     * (e.g. a file sent with FileChannel.transferTo).
+     */
+    public static ByteBuffer HttpEncodeHead(int status, HeaderMap headers, long bodyLength, String serverHeader) {
+        headers.putOrReplace(CONTENT_LENGTH, Long.toString(bodyLength));
+        return encodeHead(status, headers, serverHeader);
+    }
+
+    /**
+     * The current time, formatted for the Date header
+     */
+    public static String httpDate() {
+        return DateFormatter.getDate();
+    }
+
+    private static ByteBuffer encodeHead(int status, HeaderMap headers, String serverHeader) {
+        defaultHeaders(headers, serverHeader);
         DynamicBytes bytes = new DynamicBytes(196);
         byte[] bs = HttpStatus.valueOf(status).getInitialLineBytes();
         bytes.append(bs, bs.length);
         headers.encodeHeaders(bytes);
-        ByteBuffer headBuffer = ByteBuffer.wrap(bytes.get(), 0, bytes.length());
+        return ByteBuffer.wrap(bytes.get(), 0, bytes.length());
+    }
 
-        if (bodyBuffer != null)
-            return new ByteBuffer[]{headBuffer, bodyBuffer};
-        else
-            return new ByteBuffer[]{headBuffer};
+    /**
+     * Encodes the status line and headers into buffer, e.g. a pooled direct one
+     *
+     * @throws java.nio.BufferOverflowException if they don't fit, buffer is then half written
+     */
+    public static void encodeHead(int status, HeaderMap headers, String serverHeader, ByteBuffer buffer) {
+        defaultHeaders(headers, serverHeader);
+        buffer.put(HttpStatus.valueOf(status).getInitialLineBytes());
+        headers.encodeHeaders(buffer);
+    }
+
+    private static void defaultHeaders(HeaderMap headers, String serverHeader) {
+        if (serverHeader != null && !headers.containsKey("Server")) {
+          headers.put("Server", serverHeader);
+        }
+        if (!headers.containsKey("Date")) {
+          headers.put("Date", DateFormatter.getDate()); // rfc says the Date is needed
+        }
     }
 
     public static ByteBuffer WsEncode(byte opcode, byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length + 10); // max
+        WsEncode(opcode, data, length, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a frame into buffer, with length + 10 bytes of room at least
+     */
+    public static void WsEncode(byte opcode, byte[] data, int length, ByteBuffer buffer) {
         byte b0 = 0;
         b0 |= 1 << 7; // FIN
         b0 |= opcode;
-        ByteBuffer buffer = ByteBuffer.allocate(length + 10); // max
         buffer.put(b0);
 
         if (length <= 125) {
@@ -500,8 +561,6 @@ public class HttpUtils {
             buffer.putLong(length);
         }
         buffer.put(data, 0, length);
-        buffer.flip();
-        return buffer;
     }
 
     public static ByteBuffer WsEncode(byte opcode, byte[] data) {
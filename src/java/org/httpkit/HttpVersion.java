@@ -1,5 +1,5 @@
 package org.httpkit;
 
 public enum HttpVersion {
-    HTTP_1_0, HTTP_1_1
+    HTTP_1_0, HTTP_1_1, HTTP_2
 }
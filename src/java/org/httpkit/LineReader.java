@@ -17,10 +17,27 @@ public class LineReader {
         this.maxLine = maxLine;
     }
 
+    /**
+     * No byte of a line read yet
+     */
+    public boolean isEmpty() {
+        return lineBufferIdx == 0 && !readCR;
+    }
+
     public String readLine(ByteBuffer buffer) throws LineTooLargeException, ProtocolException {
+        int length = read(buffer);
+        return length < 0 ? null : new String(lineBuffer, 0, length);
+    }
+
+    /**
+     * Reads a line without making a String of it: its bytes are the first ones of
+     * {@link #bytes()}, until the next read
+     *
+     * @return the length of the line, CRLF excluded, -1 if not complete yet
+     */
+    public int read(ByteBuffer buffer) throws LineTooLargeException, ProtocolException {
         byte b;
-        boolean more = true;
-        while (buffer.hasRemaining() && more) {
+        while (buffer.hasRemaining()) {
             b = buffer.get();
 
             if (readCR && b != LF) {
@@ -30,7 +47,9 @@ public class LineReader {
             if (b == CR) {
                 readCR = true;
             } else if (b == LF) {
-                more = false;
+                int length = lineBufferIdx;
+                reset();
+                return length;
             } else {
                 if (lineBufferIdx == maxLine - 2) {
                     throw new LineTooLargeException("exceed max line " + maxLine);
@@ -42,12 +61,11 @@ public class LineReader {
                 ++lineBufferIdx;
             }
         }
-        String line = null;
-        if (!more) {
-            line = new String(lineBuffer, 0, lineBufferIdx);
-            reset();
-        }
-        return line;
+        return -1;
+    }
+
+    public byte[] bytes() {
+        return lineBuffer;
     }
 
     public final void reset() {
@@ -0,0 +1,309 @@
+package org.httpkit;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded multi-producer multi-consumer queue on a ring of slots, D. Vyukov's design:
+ * each slot has a sequence number telling whether it is free for the producer of a given
+ * position, or full for its consumer. Producers and consumers each only CAS their own
+ * counter: unlike ArrayBlockingQueue, no lock is shared by both ends, or by the threads
+ * of one end.
+ * <p>
+ * A consumer finding it empty waits as told by its {@link WaitStrategy}.
+ * {@link #remove(Object)} (ThreadPoolExecutor's, of a task cancelled or rejected) takes
+ * the element out of its slot, O(n): consumers skip the empty slot, which counts in
+ * {@link #size()} until they do.
+ */
+public class RingBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    public enum WaitStrategy {
+        /** Busy spin: lowest latency, burns a core per waiting thread */
+        SPIN,
+        /** Thread.yield() between tries: lets other threads run, still keeps cores busy */
+        YIELD,
+        /**
+         * Spin a little, then park until an element is offered: no CPU used while idle.
+         * Parked ones are woken one at a time, each waking the next while elements are left
+         */
+        PARK
+    }
+
+    // tries before yielding or parking: none when spinning delays the thread to wait for
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(0); // next position to take
+    private final AtomicLong tail = new AtomicLong(0); // next position to offer
+    private final WaitStrategy waitStrategy;
+    private final ConcurrentLinkedQueue<Thread> parked = new ConcurrentLinkedQueue<Thread>();
+    // a parked consumer is being woken: offers do not wake another, it wakes the next
+    private final AtomicBoolean waking = new AtomicBoolean(false);
+
+    public RingBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public RingBlockingQueue(int capacity) {
+        this(capacity, WaitStrategy.PARK);
+    }
+
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        int i;
+        for (; ; ) {
+            i = (int) pos & mask;
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (pos - head.get() >= capacity) { // slots rounded up to a power of 2
+                    return false;
+                }
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) { // the slot's previous element is not taken yet: full
+                return false;
+            } else { // another producer took this position
+                pos = tail.get();
+            }
+        }
+        elements.set(i, e);
+        sequences.set(i, pos + 1);
+        unparkOne();
+        return true;
+    }
+
+    public E poll() {
+        long pos = head.get();
+        for (; ; ) {
+            int i = (int) pos & mask;
+            long diff = sequences.get(i) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = elements.getAndSet(i, null); // null: removed, by remove(Object)
+                    sequences.set(i, pos + mask + 1); // free for the producer of the next lap
+                    if (e != null) {
+                        return e;
+                    }
+                }
+                pos = head.get();
+            } else if (diff < 0) { // not offered yet: empty
+                return null;
+            } else { // another consumer took this position
+                pos = head.get();
+            }
+        }
+    }
+
+    public E peek() {
+        for (; ; ) {
+            long pos = head.get();
+            for (long p = pos; ; p++) {
+                int i = (int) p & mask;
+                if (sequences.get(i) - (p + 1) < 0) { // not offered yet
+                    return null;
+                }
+                E e = elements.get(i);
+                if (head.get() != pos) { // taken meanwhile: again
+                    break;
+                }
+                if (e != null) {
+                    return e;
+                } // else removed, the next one
+            }
+        }
+    }
+
+    public E take() throws InterruptedException {
+        return await(Long.MAX_VALUE, false);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    private E await(long deadline, boolean timed) throws InterruptedException {
+        for (int tries = 0; ; tries++) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long left = deadline - System.nanoTime();
+            if (timed && left <= 0) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.SPIN || tries < SPINS) {
+                continue;
+            }
+            if (waitStrategy == WaitStrategy.YIELD) {
+                Thread.yield();
+                continue;
+            }
+            Thread me = Thread.currentThread();
+            parked.offer(me);
+            e = poll(); // offered before we were seen: it will not unpark us
+            if (e == null) {
+                if (timed) {
+                    LockSupport.parkNanos(this, left);
+                } else {
+                    LockSupport.park(this);
+                }
+                parked.remove(me);
+                e = poll();
+            } else {
+                parked.remove(me);
+            }
+            waking.set(false);
+            if (e != null) {
+                if (!isEmpty()) { // for the offers that found us waking
+                    unparkOne();
+                }
+                return e;
+            }
+        }
+    }
+
+    private void unparkOne() {
+        if (!parked.isEmpty() && waking.compareAndSet(false, true)) {
+            Thread t = parked.poll();
+            if (t != null) {
+                LockSupport.unpark(t);
+            } else {
+                waking.set(false);
+            }
+        }
+    }
+
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    // full: producers are not signalled, they back off
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int tries = 0; !offer(e); tries++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            if (waitStrategy == WaitStrategy.SPIN || tries < SPINS) {
+                continue;
+            }
+            if (waitStrategy == WaitStrategy.YIELD) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, 50000);
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    public boolean isEmpty() {
+        return tail.get() - head.get() <= 0;
+    }
+
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        long end = tail.get();
+        for (long pos = head.get(); pos < end; pos++) {
+            int i = (int) pos & mask;
+            E e = elements.get(i);
+            // full with the element of this position, not taken by a consumer meanwhile
+            if (e != null && o.equals(e) && sequences.get(i) == pos + 1
+                    && elements.compareAndSet(i, e, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A snapshot of the elements, taken without removing them
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long end = tail.get();
+        for (long pos = head.get(); pos < end; pos++) {
+            E e = elements.get((int) pos & mask);
+            if (e != null) {
+                snapshot.add(e);
+            }
+        }
+        final Iterator<E> it = snapshot.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public E next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
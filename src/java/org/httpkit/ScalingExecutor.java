@@ -0,0 +1,153 @@
+package org.httpkit;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+/**
+ * A thread pool sized by how long tasks wait in its queue, between min and max platform
+ * threads. A plain ThreadPoolExecutor only adds threads beyond its core ones once its
+ * queue is full: when the wait is already terrible. Every interval, the core size is:
+ * <ul>
+ * <li>raised by a quarter if a task waited longer than target (started, or still queued)</li>
+ * <li>lowered by one if none waited more than a quarter of target, and threads were less
+ * than half busy. Threads above it end once idle for 10 intervals.</li>
+ * </ul>
+ * Once full, the queue still makes threads up to max, as for any ThreadPoolExecutor.
+ * Decisions are logged as events. Tasks are timed if submitted, not if executed.
+ */
+public class ScalingExecutor extends ThreadPoolExecutor {
+
+    private static final ScheduledThreadPoolExecutor CONTROL =
+            new ScheduledThreadPoolExecutor(1, new PrefixThreadFactory("http-kit-pool-scaling-"));
+
+    static {
+        CONTROL.setRemoveOnCancelPolicy(true); // nothing left of a pool shut down
+    }
+
+    // a submitted task, with the time it was queued and started
+    private static class TimedTask<T> extends FutureTask<T> {
+        final long queued = System.nanoTime();
+        long started;
+
+        TimedTask(Runnable runnable, T value) {
+            super(runnable, value);
+        }
+
+        TimedTask(Callable<T> callable) {
+            super(callable);
+        }
+    }
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final long target; // ns
+
+    private final AtomicLong maxWait = new AtomicLong(0); // ns, of the tasks started this interval
+    private final AtomicLong busy = new AtomicLong(0); // ns, of the tasks done this interval
+    private long lastCheck = System.nanoTime(); // control thread only
+    private final ScheduledFuture<?> control;
+
+    private volatile EventLogger<String> eventLogger = EventLogger.NOP;
+    private volatile EventNames eventNames = EventNames.DEFAULT;
+
+    /**
+     * @param queue         once full, threads are added up to max right away
+     * @param targetMs      longest wait for a thread, before there should be more
+     * @param intervalMs    period of the decisions
+     */
+    public ScalingExecutor(int minThreads, int maxThreads, BlockingQueue<Runnable> queue,
+                           long targetMs, long intervalMs, ThreadFactory factory) {
+        super(minThreads, maxThreads, intervalMs * 10, TimeUnit.MILLISECONDS, queue, factory);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.target = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.control = CONTROL.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                scale();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void setEventLogger(EventLogger<String> eventLogger, EventNames eventNames) {
+        this.eventLogger = eventLogger;
+        this.eventNames = eventNames;
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new TimedTask<T>(runnable, value);
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new TimedTask<T>(callable);
+    }
+
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof TimedTask) {
+            TimedTask<?> task = (TimedTask<?>) r;
+            task.started = System.nanoTime();
+            long wait = task.started - task.queued;
+            long max;
+            while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+                // another thread changed it, try again
+            }
+        }
+    }
+
+    protected void afterExecute(Runnable r, Throwable t) {
+        if (r instanceof TimedTask) {
+            busy.addAndGet(System.nanoTime() - ((TimedTask<?>) r).started);
+        }
+    }
+
+    // no more decisions once shut down: the pool is not held by CONTROL
+    public void shutdown() {
+        control.cancel(false);
+        super.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        control.cancel(false);
+        return super.shutdownNow();
+    }
+
+    protected void terminated() {
+        control.cancel(false);
+    }
+
+    private void scale() {
+        long now = System.nanoTime();
+        long wait = maxWait.getAndSet(0);
+        Runnable head = getQueue().peek();
+        if (head instanceof TimedTask) { // not started yet: all threads may be stuck
+            wait = Math.max(wait, now - ((TimedTask<?>) head).queued);
+        }
+        int threads = getPoolSize();
+        double utilization = 0;
+        if (threads > 0) {
+            double done = (double) busy.getAndSet(0) / ((double) threads * (now - lastCheck));
+            utilization = Math.max(done, (double) getActiveCount() / threads); // long tasks
+        }
+        lastCheck = now;
+
+        int core = getCorePoolSize();
+        if (wait > target && core < maxThreads) {
+            setCorePoolSize(Math.min(maxThreads, core + Math.max(1, core / 4)));
+            eventLogger.log(eventNames.poolGrow);
+        } else if (wait < target / 4 && utilization < 0.5 && core > minThreads) {
+            setCorePoolSize(core - 1);
+            eventLogger.log(eventNames.poolShrink);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.httpkit.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.httpkit.metrics.Histogram;
+import org.httpkit.metrics.Metrics;
+
+/**
+ * The metrics of a client, looked up once in the registry:
+ * <ul>
+ * <li>client.connect: from connecting to connected, new connections only</li>
+ * <li>client.request: from a request queued to its response complete, or failed</li>
+ * <li>client.requests, client.errors: counters</li>
+ * <li>client.bytes-out: requests, before TLS; client.bytes-in: responses, after TLS</li>
+ * </ul>
+ */
+class ClientMetrics {
+    final Histogram connect;
+    final Histogram request;
+    final LongAdder requests;
+    final LongAdder errors;
+    final LongAdder bytesOut;
+    final LongAdder bytesIn;
+    final LongAdder inflight = new LongAdder(); // see client.in-flight
+
+    ClientMetrics(Metrics m) {
+        connect = m.histogram("client.connect");
+        request = m.histogram("client.request");
+        requests = m.counter("client.requests");
+        errors = m.counter("client.errors");
+        bytesOut = m.counter("client.bytes-out");
+        bytesIn = m.counter("client.bytes-in");
+    }
+
+    // loop thread
+    void finished(Request req, boolean ok) {
+        request.record(System.nanoTime() - req.started);
+        inflight.decrement();
+        if (!ok) {
+            errors.increment();
+        }
+    }
+}
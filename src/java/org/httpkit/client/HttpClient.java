@@ -2,9 +2,12 @@ package org.httpkit.client;
 
 import org.httpkit.*;
 import org.httpkit.ProtocolException;
+import org.httpkit.jfr.FlightEvents;
 import org.httpkit.logger.ContextLogger;
 import org.httpkit.logger.EventNames;
 import org.httpkit.logger.EventLogger;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.Metrics;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -15,7 +18,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -236,6 +241,16 @@ public class HttpClient implements Runnable {
             }
         } else if (read > 0) {
             req.onProgress(now);
+            if (req.metrics != null) {
+                req.metrics.bytesIn.add(read);
+            }
+            if (!req.responding) {
+                req.responding = true;
+                if (FlightEvents.CLIENT_FIRST_BYTE.isEnabled()) {
+                    FlightEvents.CLIENT_FIRST_BYTE.commit(null, req.cfg.method.toString(), req.host,
+                            System.nanoTime() - req.started);
+                }
+            }
             buffer.flip();
             try {
                 State oldState = req.decoder.state;
@@ -397,15 +412,28 @@ public class HttpClient implements Runnable {
             // configure SSLEngine with URI
             sslEngineUriConfigurer.configure(engine, uri);
 
-            pending.offer(new HttpsRequest(addr, host, request, cb, requests, cfg, engine));
+            pending.offer(track(new HttpsRequest(addr, host, request, cb, requests, cfg, engine)));
         } else {
-            pending.offer(new Request(addr, host, request, cb, requests, cfg));
+            pending.offer(track(new Request(addr, host, request, cb, requests, cfg)));
         }
 
 //        pending.offer(new Request(addr, request, cb, requests, cfg));
         selector.wakeup();
     }
 
+    private Request track(Request req) {
+        ClientMetrics m = metrics;
+        if (m != null) {
+            req.metrics = m;
+            m.requests.increment();
+            m.inflight.increment();
+            for (ByteBuffer b : req.request) {
+                m.bytesOut.add(b.remaining());
+            }
+        }
+        return req;
+    }
+
     private ByteBuffer[] encode(HttpMethod method, HeaderMap headers, Object body,
                                 String path) throws IOException {
         ByteBuffer bodyBuffer = HttpUtils.bodyBuffer(body);
@@ -433,6 +461,13 @@ public class HttpClient implements Runnable {
         Request req = (Request) key.attachment();
         try {
             if (ch.finishConnect()) {
+                if (req.metrics != null) {
+                    req.metrics.connect.record(System.nanoTime() - req.connectStart);
+                }
+                if (FlightEvents.CLIENT_CONNECT.isEnabled()) {
+                    FlightEvents.CLIENT_CONNECT.commit(null, req.host,
+                            System.nanoTime() - req.connectStart);
+                }
                 req.setConnected(true);
                 req.onProgress(now);
                 key.interestOps(OP_WRITE);
@@ -481,6 +516,7 @@ public class HttpClient implements Runnable {
                     ch.configureBlocking(false);
                     // save key for timeout check
                     requests.offer(job);
+                    job.connectStart = System.nanoTime();
                     boolean connected = ch.connect(job.addr);
                     job.setConnected(connected);
                     numConnections++;
@@ -532,8 +568,46 @@ public class HttpClient implements Runnable {
         }
     }
 
+    private volatile ClientMetrics metrics; // null: not recorded
+    private Metrics registry;
+    private final Map<String, Gauge> gauges = new HashMap<String, Gauge>(); // in registry
+
+    /**
+     * Records the client's metrics in m: see ClientMetrics for the histograms and counters.
+     * Gauges: client.connections (open), client.in-flight (requests not completed),
+     * unregistered once stopped: m can't be given to another running client.
+     */
+    public void setMetrics(Metrics m) {
+        final ClientMetrics cm = new ClientMetrics(m);
+        gauges.put("client.connections", new Gauge() {
+            public long value() {
+                return numConnections;
+            }
+        });
+        gauges.put("client.in-flight", new Gauge() {
+            public long value() {
+                return cm.inflight.sum();
+            }
+        });
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            m.gauge(e.getKey(), e.getValue());
+        }
+        this.registry = m;
+        this.metrics = cm;
+    }
+
+    /**
+     * @return the registry given to {@link #setMetrics}, null if none
+     */
+    public Metrics getMetrics() {
+        return registry;
+    }
+
     public void stop() throws IOException {
         running = false;
+        if (registry != null) {
+            registry.unregister(gauges);
+        }
         if (selector != null) {
             for (SelectionKey selectionKey : selector.keys()) {
                 selectionKey.channel().close();
@@ -1,6 +1,7 @@
 package org.httpkit.client;
 
 import org.httpkit.PriorityQueue;
+import org.httpkit.jfr.FlightEvents;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -27,6 +28,7 @@ public class HttpsRequest extends Request {
     private ByteBuffer myNetData = ByteBuffer.allocate(40 * 1024);
     private ByteBuffer peerNetData = ByteBuffer.allocate(40 * 1024);
     boolean handshaken = false;
+    private long handshakeStart; // ns
 
     final int unwrapRead(ByteBuffer peerAppData) throws IOException {
         // TODO, make sure peerNetData has remaining place
@@ -83,6 +85,9 @@ public class HttpsRequest extends Request {
 
     final int doHandshake(ByteBuffer peerAppData) throws IOException {
         SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+        if (handshakeStart == 0) {
+            handshakeStart = System.nanoTime();
+        }
         while (!handshaken) {
             switch (hs) {
                 case NEED_TASK:
@@ -127,6 +132,10 @@ public class HttpsRequest extends Request {
             handshaken = hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
                     || hs == SSLEngineResult.HandshakeStatus.FINISHED;
             if (handshaken) {
+                if (FlightEvents.CLIENT_TLS_HANDSHAKE.isEnabled()) {
+                    FlightEvents.CLIENT_TLS_HANDSHAKE.commit(null, host,
+                            System.nanoTime() - handshakeStart);
+                }
                 wrapRequest();
                 writeWrappedRequest(); // TCP buffer maybe empty this time
             }
@@ -147,6 +156,7 @@ public class HttpsRequest extends Request {
         super.unrecycle();
         this.engine = this.engineOriginal;
         this.handshaken = false;
+        this.handshakeStart = 0;
         myNetData.clear();
         peerNetData.clear();
     }
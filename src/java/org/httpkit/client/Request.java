@@ -1,6 +1,7 @@
 package org.httpkit.client;
 
 import org.httpkit.PriorityQueue;
+import org.httpkit.jfr.FlightEvents;
 
 import javax.net.ssl.SSLException;
 import java.net.SocketAddress;
@@ -25,6 +26,12 @@ public class Request implements Comparable<Request> {
 
     private long timeoutTs; // future time this request timeout, ms
 
+    // metrics, null: not recorded. ns: when queued, when connecting
+    ClientMetrics metrics;
+    final long started = System.nanoTime();
+    long connectStart;
+    boolean responding = false; // a byte of the response was read
+
     public Request(SocketAddress addr, String host, ByteBuffer[] request, IRespListener handler,
                    PriorityQueue<Request> clients, RequestConfig config) {
         this.cfg = config;
@@ -67,6 +74,10 @@ public class Request implements Comparable<Request> {
         if (isDone)
             return;
         isDone = true;
+        if (metrics != null) {
+            metrics.finished(this, true);
+        }
+        finished(true);
         decoder.listener.onCompleted();
     }
 
@@ -83,9 +94,20 @@ public class Request implements Comparable<Request> {
         if (isDone)
             return;
         isDone = true;
+        if (metrics != null) {
+            metrics.finished(this, false);
+        }
+        finished(false);
         decoder.listener.onThrowable(t);
     }
 
+    private void finished(boolean success) {
+        if (FlightEvents.CLIENT_REQUEST.isEnabled()) {
+            FlightEvents.CLIENT_REQUEST.commit(null, cfg.method.toString(), host,
+                    System.nanoTime() - started, success);
+        }
+    }
+
     public int compareTo(Request o) {
         return (int) (timeoutTs - o.timeoutTs);
     }
@@ -0,0 +1,257 @@
+package org.httpkit.jfr;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A Java Flight Recorder event type, made at runtime with jdk.jfr.EventFactory: compiled
+ * for Java 8, http-kit can not subclass jdk.jfr.Event. Without JFR (Java 8 before
+ * 8u262, or another JVM), event types are never enabled.
+ * <p>
+ * Event types are only made once the recorder is initialized, and are disabled by
+ * default: enable them by name in a recording's settings (a .jfc file, or
+ * {@code jfr configure}). {@link #isEnabled()} is a volatile read, refreshed as
+ * recordings start and stop: guard the making of values by it, as nothing else is paid
+ * while not recording.
+ */
+public final class FlightEvent {
+
+    /**
+     * A field of the event: values are given to {@link #commit} in the order of the fields
+     */
+    public static final class Field {
+        final Class<?> type;
+        final String name;
+        final String label;
+        final boolean timespan; // a long, ns
+
+        private Field(Class<?> type, String name, String label, boolean timespan) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.timespan = timespan;
+        }
+
+        /**
+         * @param type String, long, int or boolean
+         */
+        public static Field of(Class<?> type, String name, String label) {
+            return new Field(type, name, label, false);
+        }
+
+        /**
+         * A duration measured apart from the event's, e.g. before it began: a long, ns
+         */
+        public static Field timespan(String name, String label) {
+            return new Field(long.class, name, label, true);
+        }
+    }
+
+    private static final List<FlightEvent> ALL = new CopyOnWriteArrayList<FlightEvent>();
+    private static volatile boolean initialized = false; // the recorder, event types made
+
+    // jdk.jfr, looked up by the init thread: used once an event is enabled.
+    // The hot ones as constant method handles, not Method.invoke
+    private static final class Jfr {
+        static final Method create, getEventType, isEnabledType;
+        static final MethodHandle newEvent, begin, set, commit;
+        static final Constructor<?> annotation, valueDescriptor;
+        static final Class<?> nameType, labelType, descriptionType, categoryType, enabledType,
+                stackTraceType, timespanType;
+
+        static {
+            try {
+                Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                create = factory.getMethod("create", List.class, List.class);
+                getEventType = factory.getMethod("getEventType");
+                isEnabledType = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                newEvent = lookup.unreflect(factory.getMethod("newEvent"))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                begin = lookup.unreflect(event.getMethod("begin"))
+                        .asType(MethodType.methodType(void.class, Object.class));
+                set = lookup.unreflect(event.getMethod("set", int.class, Object.class))
+                        .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+                commit = lookup.unreflect(event.getMethod("commit"))
+                        .asType(MethodType.methodType(void.class, Object.class));
+                annotation = annotationElement.getConstructor(Class.class, Object.class);
+                valueDescriptor = descriptor.getConstructor(Class.class, String.class, List.class);
+                nameType = Class.forName("jdk.jfr.Name");
+                labelType = Class.forName("jdk.jfr.Label");
+                descriptionType = Class.forName("jdk.jfr.Description");
+                categoryType = Class.forName("jdk.jfr.Category");
+                enabledType = Class.forName("jdk.jfr.Enabled");
+                stackTraceType = Class.forName("jdk.jfr.StackTrace");
+                timespanType = Class.forName("jdk.jfr.Timespan");
+            } catch (Exception e) {
+                throw new ExceptionInInitializerError(e); // no JFR
+            }
+        }
+    }
+
+    // Loading jdk.jfr and making the listener takes tens of ms: done apart, not by the
+    // first thread to use an event (an IO thread, a request's). Events are disabled until then
+    static {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                listen();
+            }
+        }, "http-kit-jfr-init");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void listen() {
+        try {
+            Class.forName(Jfr.class.getName(), true, FlightEvent.class.getClassLoader());
+            Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+            Class<?> listener = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object l = Proxy.newProxyInstance(FlightEvent.class.getClassLoader(),
+                    new Class<?>[]{listener}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method m, Object[] args) {
+                            String name = m.getName();
+                            if (name.equals("recorderInitialized")) {
+                                initialized = true;
+                                refresh();
+                            } else if (name.equals("recordingStateChanged")) {
+                                refresh();
+                            } else if (name.equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            } else if (name.equals("equals")) {
+                                return proxy == args[0];
+                            } else if (name.equals("toString")) {
+                                return "http-kit flight events";
+                            }
+                            return null;
+                        }
+                    });
+            // called now if the recorder is already initialized
+            recorder.getMethod("addListener", listener).invoke(null, l);
+        } catch (Throwable e) {
+            // no JFR: never initialized
+        }
+    }
+
+    private final String name;
+    private final String label;
+    private final String description;
+    private final String[] category;
+    private final Field[] fields;
+
+    private volatile Object factory; // made once the recorder is initialized
+    private volatile boolean enabled = false;
+
+    private FlightEvent(String name, String label, String description, String[] category,
+                        Field[] fields) {
+        this.name = name;
+        this.label = label;
+        this.description = description;
+        this.category = category;
+        this.fields = fields;
+    }
+
+    /**
+     * @param name     to enable it by in settings, e.g. httpkit.server.Accept
+     * @param category e.g. {"http-kit", "Server"}
+     */
+    public static FlightEvent define(String name, String label, String description,
+                                     String[] category, Field... fields) {
+        FlightEvent e = new FlightEvent(name, label, description, category, fields);
+        ALL.add(e);
+        if (initialized) {
+            refresh();
+        }
+        return e;
+    }
+
+    private Object annotation(Class<?> type, Object value) throws Exception {
+        return Jfr.annotation.newInstance(type, value);
+    }
+
+    // the recorder is initialized: the event type is registered
+    private Object make() throws Exception {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotation(Jfr.nameType, name));
+        annotations.add(annotation(Jfr.labelType, label));
+        annotations.add(annotation(Jfr.descriptionType, description));
+        annotations.add(annotation(Jfr.categoryType, category));
+        annotations.add(annotation(Jfr.enabledType, false));
+        annotations.add(annotation(Jfr.stackTraceType, false));
+        List<Object> descriptors = new ArrayList<Object>();
+        for (Field f : fields) {
+            List<Object> a = new ArrayList<Object>();
+            a.add(annotation(Jfr.labelType, f.label));
+            if (f.timespan) {
+                a.add(annotation(Jfr.timespanType, "NANOSECONDS"));
+            }
+            descriptors.add(Jfr.valueDescriptor.newInstance(f.type, f.name, a));
+        }
+        return Jfr.create.invoke(null, annotations, descriptors);
+    }
+
+    private static synchronized void refresh() {
+        for (FlightEvent e : ALL) {
+            try {
+                if (e.factory == null) {
+                    e.factory = e.make();
+                }
+                e.enabled = (Boolean) Jfr.isEnabledType.invoke(Jfr.getEventType.invoke(e.factory));
+            } catch (Throwable ex) {
+                e.enabled = false;
+            }
+        }
+    }
+
+    /**
+     * @return whether a running recording has this event enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return an event starting now, to {@link #commit}: null if not enabled
+     */
+    public Object begin() {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            Object e = (Object) Jfr.newEvent.invokeExact(factory);
+            Jfr.begin.invokeExact(e);
+            return e;
+        } catch (Throwable ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Commits an event from {@link #begin()}, its duration ending now; or if event is null,
+     * one happening now. Given values of the fields, in order
+     */
+    public void commit(Object event, Object... values) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Object e = event != null ? event : (Object) Jfr.newEvent.invokeExact(factory);
+            for (int i = 0; i < values.length; i++) {
+                Jfr.set.invokeExact(e, i, values[i]);
+            }
+            Jfr.commit.invokeExact(e);
+        } catch (Throwable ex) {
+            // the recording stopped meanwhile
+        }
+    }
+}
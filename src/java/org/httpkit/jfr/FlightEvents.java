@@ -0,0 +1,97 @@
+package org.httpkit.jfr;
+
+import static org.httpkit.jfr.FlightEvent.Field.of;
+import static org.httpkit.jfr.FlightEvent.Field.timespan;
+
+/**
+ * The flight events of http-kit's server and client, disabled by default. Enable them
+ * by name, e.g. {@code jfr configure +httpkit.server.Handler#enabled=true}, or in a .jfc:
+ * {@code <event name="httpkit.server.Handler"><setting name="enabled">true</setting></event>}.
+ */
+public final class FlightEvents {
+    private static final String[] SERVER = {"http-kit", "Server"};
+    private static final String[] CLIENT = {"http-kit", "Client"};
+
+    private FlightEvents() {
+    }
+
+    /** remoteAddress */
+    public static final FlightEvent SERVER_ACCEPT = FlightEvent.define(
+            "httpkit.server.Accept", "Accept", "A connection accepted", SERVER,
+            of(String.class, "remoteAddress", "Remote Address"));
+
+    /** method, uri, decodeTime: reading the request line, headers, and body unless streamed */
+    public static final FlightEvent SERVER_DECODED = FlightEvent.define(
+            "httpkit.server.RequestDecoded", "Request Decoded", "A request read (HTTP/1)", SERVER,
+            of(String.class, "method", "Method"),
+            of(String.class, "uri", "URI"),
+            timespan("decodeTime", "Decode Time"));
+
+    /** method, uri, queueTime: from dispatch to the handler starting on a thread */
+    public static final FlightEvent SERVER_QUEUED = FlightEvent.define(
+            "httpkit.server.Queued", "Queued", "A request waited for a worker thread", SERVER,
+            of(String.class, "method", "Method"),
+            of(String.class, "uri", "URI"),
+            timespan("queueTime", "Queue Time"));
+
+    /** method, uri; the event lasts as the handler runs (until it returns, if async) */
+    public static final FlightEvent SERVER_HANDLER = FlightEvent.define(
+            "httpkit.server.Handler", "Handler", "A request handler executed", SERVER,
+            of(String.class, "method", "Method"),
+            of(String.class, "uri", "URI"));
+
+    /**
+     * writeTime: from a response handed to the connection to all its bytes written to the
+     * socket; deferred: the socket could not take it all at once (HTTP/1)
+     */
+    public static final FlightEvent SERVER_WRITTEN = FlightEvent.define(
+            "httpkit.server.ResponseWritten", "Response Written", "A response written", SERVER,
+            timespan("writeTime", "Write Time"),
+            of(boolean.class, "deferred", "Deferred"));
+
+    /** direction (in, out), type (text, binary, ping, pong, close), size (bytes) */
+    public static final FlightEvent SERVER_WS_FRAME = FlightEvent.define(
+            "httpkit.server.WebSocketFrame", "WebSocket Frame", "A WebSocket frame read or written", SERVER,
+            of(String.class, "direction", "Direction"),
+            of(String.class, "type", "Type"),
+            of(int.class, "size", "Size"));
+
+    /** host, connectTime: new connections only */
+    public static final FlightEvent CLIENT_CONNECT = FlightEvent.define(
+            "httpkit.client.Connect", "Connect", "A connection opened", CLIENT,
+            of(String.class, "host", "Host"),
+            timespan("connectTime", "Connect Time"));
+
+    /** host, handshakeTime */
+    public static final FlightEvent CLIENT_TLS_HANDSHAKE = FlightEvent.define(
+            "httpkit.client.TlsHandshake", "TLS Handshake", "A TLS handshake done", CLIENT,
+            of(String.class, "host", "Host"),
+            timespan("handshakeTime", "Handshake Time"));
+
+    /** method, host, ttfb: from the request queued to the first byte of its response read */
+    public static final FlightEvent CLIENT_FIRST_BYTE = FlightEvent.define(
+            "httpkit.client.FirstByte", "First Byte", "The first byte of a response read", CLIENT,
+            of(String.class, "method", "Method"),
+            of(String.class, "host", "Host"),
+            timespan("ttfb", "Time To First Byte"));
+
+    /** method, host, requestTime: from queued to complete or failed, success */
+    public static final FlightEvent CLIENT_REQUEST = FlightEvent.define(
+            "httpkit.client.Request", "Request", "A request complete, or failed", CLIENT,
+            of(String.class, "method", "Method"),
+            of(String.class, "host", "Host"),
+            timespan("requestTime", "Request Time"),
+            of(boolean.class, "success", "Success"));
+
+    private static final String[] OPCODES = {
+            "continuation", "text", "binary", null, null, null, null, null, "close", "ping", "pong"
+    };
+
+    /**
+     * @return the type of a WebSocket frame by its opcode, for SERVER_WS_FRAME
+     */
+    public static String wsType(int opcode) {
+        String t = opcode >= 0 && opcode < OPCODES.length ? OPCODES[opcode] : null;
+        return t != null ? t : "unknown";
+    }
+}
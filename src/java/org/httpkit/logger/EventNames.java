@@ -17,6 +17,30 @@ public class EventNames {
 
     public final String serverChannelCloseError;
 
+    /** TLS handshake or record error, connection closed */
+    public final String serverSslError;
+
+    /** Max connections reached: accepting paused, or a connection rejected */
+    public final String serverConnectionsMax;
+
+    /** Connection closed: idle longer than the idle timeout */
+    public final String serverTimeoutIdle;
+
+    /** Connection closed: request headers not received within the header timeout */
+    public final String serverTimeoutHeader;
+
+    /** Connection closed: no request body byte received within the body timeout */
+    public final String serverTimeoutBody;
+
+    /** Connection closed: no response byte taken by the client within the write timeout */
+    public final String serverTimeoutWrite;
+
+    /** A handler run inline, on an IO thread, took longer than its budget */
+    public final String serverInlineSlow;
+
+    /** The client closed the connection while the request waited for a thread */
+    public final String serverAbandoned;
+
     /** Prefix for HTTP status of processed requests */
     public final String serverStatusPrefix;
 
@@ -35,9 +59,20 @@ public class EventNames {
     /** Server overloaded */
     public final String serverStatus503;
 
+    /** Server overloaded: the request waited too long in the queue, 503 sent (CoDel) */
+    public final String serverStatus503Shed;
+
     /** Server overloaded but 503 response not sent */
     public final String serverStatus503Todo;
 
+    // ----- worker pool events -----
+
+    /** A ScalingExecutor added threads: tasks waited longer than its target */
+    public final String poolGrow;
+
+    /** A ScalingExecutor removed a thread: no wait, threads mostly idle */
+    public final String poolShrink;
+
     // ----- client events -----
 
     /** Code path not meant to be executed */
@@ -49,14 +84,40 @@ public class EventNames {
         this.serverWsDecodeError     = get(names, "serverWsDecodeError",     "httpkit.server.ws.decode.error");
         this.serverWsFrameError      = get(names, "serverWsFrameError",      "httpkit.server.ws.frame.error");
         this.serverChannelCloseError = get(names, "serverChannelCloseError", "httpkit.server.channel.close.error");
+        this.serverSslError          = get(names, "serverSslError",          "httpkit.server.ssl.error");
+        this.serverConnectionsMax    = get(names, "serverConnectionsMax",    "httpkit.server.connections.max");
+        this.serverTimeoutIdle       = get(names, "serverTimeoutIdle",       "httpkit.server.timeout.idle");
+        this.serverTimeoutHeader     = get(names, "serverTimeoutHeader",     "httpkit.server.timeout.header");
+        this.serverTimeoutBody       = get(names, "serverTimeoutBody",       "httpkit.server.timeout.body");
+        this.serverTimeoutWrite      = get(names, "serverTimeoutWrite",      "httpkit.server.timeout.write");
+        this.serverInlineSlow        = get(names, "serverInlineSlow",        "httpkit.server.inline.slow");
+        this.serverAbandoned         = get(names, "serverAbandoned",         "httpkit.server.abandoned");
         this.serverStatusPrefix      = get(names, "serverStatusPrefix",      "httpkit.server.status.processed.");
         this.serverStatus404         = get(names, "serverStatus404",         "httpkit.server.status.404");
         this.serverStatus413         = get(names, "serverStatus413",         "httpkit.server.status.413");
         this.serverStatus414         = get(names, "serverStatus414",         "httpkit.server.status.414");
         this.serverStatus500         = get(names, "serverStatus500",         "httpkit.server.status.500");
         this.serverStatus503         = get(names, "serverStatus503",         "httpkit.server.status.503");
+        this.serverStatus503Shed     = get(names, "serverStatus503Shed",     "httpkit.server.status.503.shed");
         this.serverStatus503Todo     = get(names, "serverStatus503Todo",     "httpkit.server.status.503.todo");
+        this.poolGrow                = get(names, "poolGrow",                "httpkit.pool.grow");
+        this.poolShrink              = get(names, "poolShrink",              "httpkit.pool.shrink");
         this.clientImpossible        = get(names, "clientImpossible",        "httpkit.client.impossible");
+
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = serverStatusPrefix + (i + 100);
+        }
+    }
+
+    // serverStatusPrefix + status, made once
+    private final String[] statuses = new String[500];
+
+    /**
+     * @return serverStatusPrefix + status, without concatenating for 100 to 599
+     */
+    public String serverStatus(int status) {
+        int i = status - 100;
+        return i >= 0 && i < statuses.length ? statuses[i] : serverStatusPrefix + status;
     }
 
     private static String get(Map<String, String> names, String key, String defaultValue) {
@@ -0,0 +1,245 @@
+package org.httpkit.metrics;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The counters and gauges of a registry, published every interval to a memory-mapped
+ * file, for another process to read without asking the server anything: a sidecar, an
+ * agent, or {@link #main} tailing it. Histograms are published as their counts,
+ * name.count.
+ * <p>
+ * Requests still only increment the registry's striped counters: a background thread
+ * copies their values into the file, with plain aligned 8-byte stores, no lock and no
+ * system call. The layout is fixed, little endian:
+ * <pre>
+ * header, 64 bytes: magic "HKCOUNT1", int version, int count, long interval ms,
+ *                   long last published ms, int capacity
+ * records, 64 bytes each: name (UTF-8, 0-padded, 56 bytes), long value
+ * </pre>
+ * A record keeps its slot once given one; its name is written before count is raised.
+ * Names past the capacity are not published. Names longer than 56 bytes are cut at a
+ * character, then end with ~ and the hex of their hash: see {@link #recordName}.
+ */
+public class CountersFile implements Closeable {
+    static final long MAGIC = 0x31544e554f434b48L; // "HKCOUNT1", little endian
+    static final int VERSION = 1;
+    static final int HEADER = 64;
+    static final int RECORD = 64;
+    static final int NAME = 56;
+
+    private static final int COUNT = 12;
+    private static final int INTERVAL = 16;
+    private static final int UPDATED = 24;
+    private static final int CAPACITY = 32;
+
+    private final Metrics metrics;
+    private final long intervalMs;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>(); // publisher only
+    private final Set<String> recorded = new HashSet<String>(); // record names, publisher only
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the file, or truncates it, and publishes every intervalMs until closed
+     *
+     * @param capacity records, at most
+     */
+    public CountersFile(File file, Metrics metrics, long intervalMs, int capacity) throws IOException {
+        if (intervalMs < 1) {
+            throw new IllegalArgumentException("intervalMs < 1: " + intervalMs);
+        }
+        this.metrics = metrics;
+        this.intervalMs = intervalMs;
+        this.capacity = capacity;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0); // no records of a previous run
+            raf.setLength(HEADER + (long) capacity * RECORD);
+            // stays mapped once the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(8, VERSION);
+        buffer.putLong(INTERVAL, intervalMs);
+        buffer.putInt(CAPACITY, capacity);
+        buffer.putLong(0, MAGIC); // last: a reader seeing it sees the rest of the header
+        publish();
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    LockSupport.parkNanos(CountersFile.this, TimeUnit.MILLISECONDS.toNanos(intervalMs));
+                    publish();
+                }
+            }
+        }, "http-kit-counters-file");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public CountersFile(File file, Metrics metrics, long intervalMs) throws IOException {
+        this(file, metrics, intervalMs, 512);
+    }
+
+    // the constructor's thread, then the publisher's
+    private void publish() {
+        int count = slots.size();
+        for (Map.Entry<String, Long> e : metrics.longs().entrySet()) {
+            Integer slot = slots.get(e.getKey());
+            if (slot == null) {
+                if (count == capacity) {
+                    continue;
+                }
+                byte[] name = recordName(e.getKey());
+                if (!recorded.add(new String(name, UTF_8))) {
+                    continue; // two long names, one hash: only the first is published
+                }
+                slot = count++;
+                slots.put(e.getKey(), slot);
+                int at = HEADER + slot * RECORD;
+                for (int i = 0; i < NAME; i++) {
+                    buffer.put(at + i, i < name.length ? name[i] : 0);
+                }
+                buffer.putLong(at + NAME, e.getValue());
+                buffer.putInt(COUNT, count);
+            } else {
+                buffer.putLong(HEADER + slot * RECORD + NAME, e.getValue());
+            }
+        }
+        buffer.putLong(UPDATED, System.currentTimeMillis());
+    }
+
+    /**
+     * @return name in UTF-8, if longer than a record's name: its first bytes, not splitting
+     * a character, then ~ and the 8 hex digits of its String hash, NAME bytes in all
+     */
+    static byte[] recordName(String name) {
+        byte[] b = name.getBytes(UTF_8);
+        if (b.length <= NAME) {
+            return b;
+        }
+        String hash = String.format("~%08x", name.hashCode());
+        int cut = NAME - hash.length();
+        while ((b[cut] & 0xc0) == 0x80) { // a continuation byte: cut before its character
+            cut--;
+        }
+        byte[] r = new byte[cut + hash.length()];
+        System.arraycopy(b, 0, r, 0, cut);
+        System.arraycopy(hash.getBytes(UTF_8), 0, r, cut, hash.length());
+        return r;
+    }
+
+    /**
+     * Publishes the last values, then stops publishing. The file is left as is
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return name to value of the records published to file, in slot order
+     * @throws IOException not a counters file
+     */
+    public static Map<String, Long> read(File file) throws IOException {
+        return read(map(file));
+    }
+
+    /**
+     * @return file mapped, to {@link #read(MappedByteBuffer)} as often as needed. Unmapped
+     * once unreachable
+     * @throws IOException not a counters file
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer b;
+        try {
+            b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        if (b.capacity() < HEADER || b.getLong(0) != MAGIC) {
+            throw new IOException("not a counters file: " + file);
+        }
+        return b;
+    }
+
+    /**
+     * @param b from {@link #map}
+     * @return name to value of the records published, in slot order
+     */
+    public static Map<String, Long> read(MappedByteBuffer b) {
+        int count = Math.min(b.getInt(COUNT), (b.capacity() - HEADER) / RECORD);
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        byte[] name = new byte[NAME];
+        for (int slot = 0; slot < count; slot++) {
+            int at = HEADER + slot * RECORD;
+            int length = 0;
+            for (; length < NAME && b.get(at + length) != 0; length++) {
+                name[length] = b.get(at + length);
+            }
+            m.put(new String(name, 0, length, UTF_8), b.getLong(at + NAME));
+        }
+        return m;
+    }
+
+    /**
+     * Prints the records of a counters file, then their changes, every interval:
+     * <pre>
+     * java -cp http-kit.jar org.httpkit.metrics.CountersFile /tmp/http-kit.counters [interval ms]
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: CountersFile file [interval ms, default: 1000]");
+            System.exit(1);
+        }
+        MappedByteBuffer b = map(new File(args[0])); // once: read every interval
+        long interval = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        Map<String, Long> last = new HashMap<String, Long>();
+        for (; ; ) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("-- ").append(format.format(new Date())).append('\n');
+            for (Map.Entry<String, Long> e : read(b).entrySet()) {
+                Long before = last.put(e.getKey(), e.getValue());
+                if (before == null || before.longValue() != e.getValue().longValue()) {
+                    sb.append(e.getKey()).append(' ').append(e.getValue());
+                    if (before != null) {
+                        long delta = e.getValue() - before;
+                        sb.append(" (").append(delta > 0 ? "+" : "").append(delta).append(')');
+                    }
+                    sb.append('\n');
+                }
+            }
+            System.out.print(sb);
+            Thread.sleep(interval);
+        }
+    }
+}
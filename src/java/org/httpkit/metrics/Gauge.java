@@ -0,0 +1,8 @@
+package org.httpkit.metrics;
+
+/**
+ * A value read when metrics are snapshot: open connections, queue depth...
+ */
+public interface Gauge {
+    long value();
+}
@@ -0,0 +1,136 @@
+package org.httpkit.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram, HDR style: log-linear buckets, 8 per power of 2, so that any
+ * value is known within 12.5%, from 1ns to centuries, in 488 counters. Recording is a
+ * few increments, no allocation, no lock; the counters are striped by thread, so that
+ * threads recording similar latencies do not contend on the same bucket.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    static final int BUCKETS = (63 - SUB_BITS) * SUB + SUB;
+
+    private static final int STRIPES;
+
+    static {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 8) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) Math.max(0, value);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    // the highest value counted in the bucket
+    static long highest(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        long lowest = (long) (SUB + index % SUB) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @param nanos a duration, negative ones are counted as 0
+     */
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + index(nanos));
+        count.increment();
+        sum.add(Math.max(0, nanos));
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            // another thread changed it, try again
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the values recorded, ns
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    private long[] merged() {
+        long[] merged = new long[BUCKETS];
+        for (int i = 0; i < counts.length(); i++) {
+            merged[i % BUCKETS] += counts.get(i);
+        }
+        return merged;
+    }
+
+    private static long percentile(long[] buckets, long total, double q) {
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value below which a fraction q (0.99: 99%) of the recorded ones are,
+     * within the precision of the buckets, ns
+     */
+    public long percentile(double q) {
+        long[] buckets = merged();
+        long total = 0;
+        for (long b : buckets) {
+            total += b;
+        }
+        return Math.min(percentile(buckets, total, q), max.get());
+    }
+
+    /**
+     * @return count, and mean, p50, p90, p99, p999, max in µs
+     */
+    public Map<String, Object> snapshot() {
+        long[] buckets = merged();
+        long total = 0;
+        for (long b : buckets) {
+            total += b;
+        }
+        long mx = max.get();
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("count", total);
+        m.put("mean", total == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sum.sum() / Math.max(1, count.sum())));
+        m.put("p50", micros(Math.min(percentile(buckets, total, 0.5), mx)));
+        m.put("p90", micros(Math.min(percentile(buckets, total, 0.9), mx)));
+        m.put("p99", micros(Math.min(percentile(buckets, total, 0.99), mx)));
+        m.put("p999", micros(Math.min(percentile(buckets, total, 0.999), mx)));
+        m.put("max", micros(mx));
+        return m;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
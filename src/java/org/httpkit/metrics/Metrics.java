@@ -0,0 +1,113 @@
+package org.httpkit.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, histograms and gauges, shared by servers and clients given it.
+ * Counters and histograms are looked up once, when a server or client is given the
+ * registry, then recorded to directly: recording allocates nothing. See
+ * {@link #snapshot()} for reading them.
+ */
+public class Metrics {
+    // read by Prometheus too
+    final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * @return the counter of that name, created if needed: striped, cheap to increment
+     * from many threads
+     */
+    public LongAdder counter(String name) {
+        LongAdder c = counters.get(name);
+        if (c == null) {
+            LongAdder created = new LongAdder();
+            c = counters.putIfAbsent(name, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return the histogram of that name, created if needed
+     */
+    public Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = histograms.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Registers a gauge, until {@link #unregister}ed
+     *
+     * @throws IllegalStateException another gauge has that name: two servers, or two
+     *                               clients, given the same registry
+     */
+    public void gauge(String name, Gauge gauge) {
+        Gauge other = gauges.putIfAbsent(name, gauge);
+        if (other != null && other != gauge) {
+            throw new IllegalStateException("gauge already registered: " + name);
+        }
+    }
+
+    /**
+     * Unregisters gauge, if still registered under name
+     */
+    public void unregister(String name, Gauge gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * Unregisters gauges, by name, those still registered
+     */
+    public void unregister(Map<String, Gauge> gauges) {
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            unregister(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return name to value, by name: a Long for counters and gauges, a Map for
+     * histograms (see {@link Histogram#snapshot()})
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new TreeMap<String, Object>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            m.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            m.put(e.getKey(), e.getValue().value());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            m.put(e.getKey(), e.getValue().snapshot());
+        }
+        return m;
+    }
+
+    // counters and gauges, and the counts of histograms as name.count: cheap to read often
+    Map<String, Long> longs() {
+        Map<String, Long> m = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            m.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            m.put(e.getKey(), e.getValue().value());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            m.put(e.getKey() + ".count", e.getValue().getCount());
+        }
+        return m;
+    }
+}
@@ -0,0 +1,68 @@
+package org.httpkit.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry in the Prometheus text format, version 0.0.4, for a scraper to read.
+ * Names are prefixed by httpkit_, their dots and dashes made underscores:
+ * <ul>
+ * <li>counters: server.requests is httpkit_server_requests_total</li>
+ * <li>gauges: server.connections is httpkit_server_connections</li>
+ * <li>histograms: summaries in seconds, server.handler is httpkit_server_handler_seconds,
+ * with the 0.5, 0.9, 0.99 and 0.999 quantiles, _sum and _count</li>
+ * </ul>
+ */
+public class Prometheus {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    static String name(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 8).append("httpkit_");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            sb.append(ok ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static void type(StringBuilder sb, String name, String type) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * @return the registry's values now, by name
+     */
+    public static String render(Metrics m) {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(m.counters).entrySet()) {
+            String name = name(e.getKey()) + "_total";
+            type(sb, name, "counter");
+            sb.append(name).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(m.gauges).entrySet()) {
+            String name = name(e.getKey());
+            type(sb, name, "gauge");
+            sb.append(name).append(' ').append(e.getValue().value()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(m.histograms).entrySet()) {
+            String name = name(e.getKey()) + "_seconds";
+            Histogram h = e.getValue();
+            type(sb, name, "summary");
+            for (double q : QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(seconds(h.percentile(q))).append('\n');
+            }
+            sb.append(name).append("_sum ").append(seconds(h.getSum())).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+}
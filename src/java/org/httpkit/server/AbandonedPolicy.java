@@ -0,0 +1,14 @@
+package org.httpkit.server;
+
+/**
+ * What to do with a request whose client closed the connection while it waited for a
+ * thread: its response would not be read.
+ */
+public enum AbandonedPolicy {
+    /** Run the handler anyway */
+    RUN,
+    /** Skip GET, HEAD, OPTIONS and TRACE: no side effect is expected from them */
+    SKIP_SAFE,
+    /** Skip the handler, whatever the method */
+    SKIP
+}
@@ -0,0 +1,277 @@
+package org.httpkit.server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.HttpVersion;
+import org.httpkit.RingBlockingQueue;
+import org.httpkit.logger.ContextLogger;
+
+/**
+ * The access log of a server, see {@link HttpServer#setAccessLog}. A line per request
+ * whose response was written (HTTP/1), in the combined log format followed by the ms
+ * from first byte read to last byte written, and of the queue, handler and write phases:
+ * <pre>
+ * 127.0.0.1 - - [18/Oct/2026:14:17:01 +0000] "GET /a?b=c HTTP/1.1" 200 1234 "-" "curl/8.5.0" 2.415 queue=0.052 handler=2.003 write=0.061
+ * </pre>
+ * The thread writing a response only copies a few fields into a ring buffer, lock free:
+ * lines are made and written by a background thread, in batches, flushed after each.
+ */
+public class AccessLog implements Closeable {
+
+    public enum OnFull {
+        /** The record is dropped, and counted, see {@link #getDropped()} */
+        DROP,
+        /** The thread writing the response waits for room, up to {@link #BLOCK_MS}, then
+         * drops it: little is lost, under load responses are as slow as the log. That thread
+         * may be an IO thread, blocking the other connections of its loop meanwhile */
+        BLOCK
+    }
+
+    /** ms a record waits for room, BLOCK */
+    public static final long BLOCK_MS = 100;
+    /** ms {@link #close()} waits for the records to be written */
+    public static final long CLOSE_MS = 5000;
+
+    static final class Entry {
+        final long time = System.currentTimeMillis();
+        String remoteAddr;
+        String method;
+        String uri;
+        String queryString;
+        String version;
+        String referer;
+        String userAgent;
+        int status;
+        long bytes;
+        long total; // ns, -1: not reached
+        long queue;
+        long handler;
+        long write;
+    }
+
+    private static final int BATCH = 512;
+
+    private final RingBlockingQueue<Entry> queue;
+    private final OnFull onFull;
+    private final Writer out;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private volatile boolean closed = false;
+    ContextLogger<String, Throwable> errorLogger = ContextLogger.ERROR_PRINTER; // by the server
+
+    /**
+     * @param capacity records waiting to be written, at most
+     */
+    public AccessLog(OutputStream out, int capacity, OnFull onFull) {
+        this.queue = new RingBlockingQueue<Entry>(capacity, RingBlockingQueue.WaitStrategy.PARK);
+        this.onFull = onFull;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 64 * 1024);
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "http-kit-access-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Appends to file
+     */
+    public AccessLog(File file, int capacity, OnFull onFull) throws IOException {
+        this(new FileOutputStream(file, true), capacity, onFull);
+    }
+
+    /**
+     * @return records dropped, the buffer being full, or their batch failing to be written
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return records written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    // the last byte of a timed request's response is written
+    void log(HttpRequest req) {
+        if (closed) {
+            return;
+        }
+        Entry e = new Entry();
+        e.remoteAddr = req.getRemoteAddr();
+        e.method = req.method.toString();
+        e.uri = req.uri;
+        e.queryString = req.queryString;
+        e.version = req.version == HttpVersion.HTTP_1_0 ? "HTTP/1.0" : "HTTP/1.1";
+        e.referer = req.getHeader("referer");
+        e.userAgent = req.getHeader("user-agent");
+        e.status = req.status;
+        e.bytes = req.responseBytes;
+        e.total = span(req.firstByteTime != 0 ? req.firstByteTime : req.startTime, req.lastByteTime);
+        e.queue = span(req.startTime, req.handlerTime);
+        e.handler = span(req.handlerTime, req.responseTime);
+        e.write = span(req.responseTime, req.lastByteTime);
+        if (queue.offer(e)) {
+            return;
+        }
+        if (onFull == OnFull.BLOCK) {
+            try {
+                if (queue.offer(e, BLOCK_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    private static long span(long start, long end) {
+        return start == 0 || end == 0 ? -1 : end - start;
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<Entry>(BATCH);
+        SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        StringBuilder sb = new StringBuilder(256);
+        long second = -1;
+        String date = null;
+        while (true) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+                for (Entry e : batch) {
+                    if (e.time / 1000 != second) {
+                        second = e.time / 1000;
+                        date = format.format(new Date(e.time));
+                    }
+                    sb.setLength(0);
+                    line(sb, e, date);
+                    out.append(sb);
+                }
+                out.flush();
+                written.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable e) {
+                dropped.addAndGet(batch.size()); // lost, or partly written
+                errorLogger.log("access log write", e);
+            }
+            batch.clear();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            errorLogger.log("access log close", e);
+        }
+    }
+
+    private static void line(StringBuilder sb, Entry e, String date) {
+        if (e.remoteAddr == null) {
+            sb.append('-');
+        } else {
+            escaped(sb, e.remoteAddr); // X-Forwarded-For
+        }
+        sb.append(" - - [").append(date).append("] \"").append(e.method).append(' ');
+        escaped(sb, e.uri);
+        if (e.queryString != null) {
+            sb.append('?');
+            escaped(sb, e.queryString);
+        }
+        sb.append(' ').append(e.version).append("\" ").append(e.status).append(' ').append(e.bytes);
+        quoted(sb, e.referer);
+        quoted(sb, e.userAgent);
+        phase(sb, null, e.total);
+        phase(sb, "queue=", e.queue);
+        phase(sb, "handler=", e.handler);
+        phase(sb, "write=", e.write);
+        sb.append('\n');
+    }
+
+    private static void quoted(StringBuilder sb, String s) {
+        sb.append(" \"");
+        if (s == null) {
+            sb.append('-');
+        } else {
+            escaped(sb, s);
+        }
+        sb.append('"');
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // from the request: no line break, control character or quote forged into the log
+    static void escaped(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\x").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void phase(StringBuilder sb, String name, long nanos) {
+        if (nanos >= 0) {
+            sb.append(' ');
+            if (name != null) {
+                sb.append(name);
+            }
+            sb.append(ServerTimings.millis(nanos));
+        }
+    }
+
+    /**
+     * Writes the records waiting, up to {@link #CLOSE_MS}, then closes the stream. Records
+     * of responses written later are dropped, uncounted
+     */
+    public void close() {
+        closed = true;
+        try {
+            thread.join(CLOSE_MS);
+            if (thread.isAlive()) { // the stream is stuck: given up
+                thread.interrupt();
+                errorLogger.log("access log close", new IOException("not written in " + CLOSE_MS + "ms"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.httpkit.DynamicBytes;
 import org.httpkit.HeaderMap;
 import org.httpkit.HttpVersion;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
@@ -29,6 +30,9 @@ public class AsyncChannel {
     private final HttpServer server;
 
     final public AtomicBoolean closedRan = new AtomicBoolean();
+    // the client closed the connection: set by the IO thread, before the close handler
+    // is run by a worker thread (which sets closedRan)
+    private volatile boolean clientClosed = false;
     final private AtomicReference<IFn> closeHandler = new AtomicReference<>(null);
     final private AtomicReference<IFn> closeRingHandler = new AtomicReference<>(null);
 
@@ -55,6 +59,7 @@ public class AsyncChannel {
         serialTask = null;
 
         headerSent = false;
+        clientClosed = false;
         closedRan.set(false);
         closeHandler.set(null);
         closeRingHandler.set(null);
@@ -73,7 +78,7 @@ public class AsyncChannel {
 
     // Write first HTTP header and [first chunk data]? to client
     private void firstWrite(Object data, boolean close) throws IOException {
-        ByteBuffer buffers[];
+        Object segments[]; // the head is a PooledBuffer
         int status = 200;
         Object body = data;
         HeaderMap headers;
@@ -90,23 +95,42 @@ public class AsyncChannel {
             headers.put("Content-Type", "text/html; charset=utf-8");
         }
 
+        if (request.stream != null) { // HTTP/2: framed by the stream, no chunked encoding
+            if (close) {
+                onClose(0);
+            }
+            request.stream.respond(status, headers, body, server.serverHeader, close);
+            return;
+        }
+
         if (request.isKeepAlive && request.version == HttpVersion.HTTP_1_0) {
             headers.put("Connection", "Keep-Alive");
         }
 
+        ServerTimings t = server.timings;
+        if (t != null && request.timed) {
+            headers = t.responding(request, status, headers);
+        }
+
         if (close) { // normal response, Content-Length. Every http client understand it
-            buffers = HttpEncode(status, headers, body, server.serverHeader);
+            if (body instanceof File) { // zero-copy
+                onClose(0);
+                server.tryWrite(key, request.slot, true, false,
+                        FileRegion.encode(status, headers, (File) body, server.serverHeader));
+                return;
+            }
+            segments = PooledBuffer.encode(status, headers, body, server.serverHeader);
         } else {
             if (request.version == HttpVersion.HTTP_1_1) {
                 headers.put("Transfer-Encoding", "chunked"); // first chunk
             }
-            ByteBuffer[] bb = HttpEncode(status, headers, body, server.serverHeader);
+            Object[] bb = PooledBuffer.encode(status, headers, body, server.serverHeader);
             if (body == null) {
-                buffers = bb;
+                segments = bb;
             } else {
-                buffers = new ByteBuffer[]{
+                segments = new Object[]{
                         bb[0], // header
-                        chunkSize(bb[1].remaining()), // chunk size
+                        chunkSize(((ByteBuffer) bb[1]).remaining()), // chunk size
                         bb[1], // chunk data
                         ByteBuffer.wrap(newLineBytes) // terminating CRLF sequence
                 };
@@ -115,7 +139,7 @@ public class AsyncChannel {
         if (close) {
             onClose(0);
         }
-        server.tryWrite(key, !close, buffers);
+        server.tryWrite(key, request.slot, close, !close, segments);
     }
 
     // for streaming, send a chunk of data to client
@@ -125,13 +149,15 @@ public class AsyncChannel {
         }
         if (body != null) { // null is ignored
             ByteBuffer t = bodyBuffer(body);
-            if (t.hasRemaining()) {
+            if (t.hasRemaining() && request.stream != null) {
+                request.stream.data(t, false);
+            } else if (t.hasRemaining()) {
                 ByteBuffer[] buffers = new ByteBuffer[]{
                         chunkSize(t.remaining()),
                         t,  // actual data
                         ByteBuffer.wrap(newLineBytes) // terminating CRLF sequence
                 };
-                server.tryWrite(key, !close, buffers);
+                server.tryWrite(key, request.slot, false, !close, (Object[]) buffers);
             }
         }
         if (close) {
@@ -170,7 +196,7 @@ public class AsyncChannel {
             f.invoke(mesg);
         } else {
             // if no ping handler, default to sending a return PONG frame
-            server.tryWrite(key, WsEncode(OPCODE_PONG, mesg));
+            server.tryWrite(key, PooledBuffer.frame(OPCODE_PONG, mesg));
         }
     }
 
@@ -232,10 +258,13 @@ public class AsyncChannel {
             return false; // already closed
         }
         if (isWebSocket()) {
-            server.tryWrite(key, WsEncode(OPCODE_CLOSE, ByteBuffer.allocate(2)
+            server.tryWrite(key, PooledBuffer.frame(OPCODE_CLOSE, ByteBuffer.allocate(2)
                     .putShort((short) status).array()));
+        } else if (request != null && request.stream != null) {
+            request.stream.data(null, true); // END_STREAM
         } else {
-            server.tryWrite(key, false, ByteBuffer.wrap(finalChunkBytes));
+            server.tryWrite(key, request == null ? null : request.slot, true, false,
+                    ByteBuffer.wrap(finalChunkBytes));
         }
         IFn f = closeHandler.get();
         if (f != null) {
@@ -262,16 +291,16 @@ public class AsyncChannel {
             }
 
             if (data instanceof String) { // null is not allowed
-                server.tryWrite(key, WsEncode(OPCODE_TEXT, ((String) data).getBytes(UTF_8)));
+                server.tryWrite(key, PooledBuffer.frame(OPCODE_TEXT, ((String) data).getBytes(UTF_8)));
             } else if (data instanceof byte[]) {
-                server.tryWrite(key, WsEncode(OPCODE_BINARY, (byte[]) data));
+                server.tryWrite(key, PooledBuffer.frame(OPCODE_BINARY, (byte[]) data));
             } else if (data instanceof InputStream) {
                 DynamicBytes bytes = readAll((InputStream) data);
-                server.tryWrite(key, WsEncode(OPCODE_BINARY, bytes.get(), bytes.length()));
+                server.tryWrite(key, PooledBuffer.frame(OPCODE_BINARY, bytes.get(), bytes.length()));
             } else if (data instanceof Frame.PingFrame) {
-                server.tryWrite(key, WsEncode(OPCODE_PING, ((Frame) data).data));
+                server.tryWrite(key, PooledBuffer.frame(OPCODE_PING, ((Frame) data).data));
             } else if (data instanceof Frame.PongFrame) {
-                server.tryWrite(key, WsEncode(OPCODE_PONG, ((Frame) data).data));
+                server.tryWrite(key, PooledBuffer.frame(OPCODE_PONG, ((Frame) data).data));
             } else if (data != null) { // ignore null
                 String mesg = "send! called with data: " + data.toString() +
                         "(" + data.getClass() + "), but only string, byte[], InputStream expected";
@@ -306,6 +335,18 @@ public class AsyncChannel {
         return closedRan.get();
     }
 
+    // IO thread: the connection is gone, the close handler is yet to run
+    void setClientClosed() {
+        clientClosed = true;
+    }
+
+    /**
+     * The client closed the connection, whether or not the close handler ran yet
+     */
+    public boolean isClientClosed() {
+        return clientClosed;
+    }
+
     static Keyword K_BY_SERVER = Keyword.intern("server-close");
     static Keyword K_CLIENT_CLOSED = Keyword.intern("client-close");
 
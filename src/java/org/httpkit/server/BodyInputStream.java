@@ -0,0 +1,142 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Request body handed to the handler before it is fully received. The IO
+ * thread offers bytes as they are decoded, the handler reads them. When the
+ * buffer is full, the IO thread stops reading the socket; onDrain is run once
+ * the handler has read half of it.
+ */
+class BodyInputStream extends InputStream {
+    static final int CAPACITY = 64 * 1024;
+
+    private final byte[] buf = new byte[CAPACITY];
+    private int head = 0; // next byte to read
+    private int count = 0; // bytes buffered
+
+    private boolean eof = false;
+    private IOException error;
+    private boolean starved = false; // IO thread could not offer everything
+    private boolean discard = false; // the response is written, body no longer wanted
+
+    private Runnable onDrain;
+
+    // IO thread, before any byte is offered
+    void setDrainHandler(Runnable onDrain) {
+        this.onDrain = onDrain;
+    }
+
+    /**
+     * IO thread. Takes up to max bytes from src
+     *
+     * @return bytes taken, 0 if the buffer is full
+     */
+    synchronized int offer(ByteBuffer src, long max) {
+        int n = (int) Math.min(src.remaining(), max);
+        if (discard) {
+            src.position(src.position() + n);
+            return n;
+        }
+        n = Math.min(n, CAPACITY - count);
+        if (n == 0) {
+            starved = true;
+            return 0;
+        }
+        int tail = (head + count) % CAPACITY;
+        int first = Math.min(n, CAPACITY - tail);
+        src.get(buf, tail, first);
+        if (first < n) {
+            src.get(buf, 0, n - first);
+        }
+        count += n;
+        notifyAll();
+        return n;
+    }
+
+    // IO thread, all the body is received
+    synchronized void finish() {
+        eof = true;
+        notifyAll();
+    }
+
+    // the connection is gone before the body is fully received
+    synchronized void fail(IOException e) {
+        if (!eof) {
+            error = e;
+            notifyAll();
+        }
+    }
+
+    // the response is written: drop what is left, let the connection go on
+    void discard() {
+        boolean drained;
+        synchronized (this) {
+            discard = true;
+            count = 0;
+            drained = starved;
+            starved = false;
+            notifyAll();
+        }
+        if (drained && onDrain != null) {
+            onDrain.run();
+        }
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        boolean drained = false;
+        int n;
+        synchronized (this) {
+            while (count == 0 && !eof && error == null && !discard) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted reading request body");
+                }
+            }
+            if (count == 0) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+            n = Math.min(len, count);
+            int first = Math.min(n, CAPACITY - head);
+            System.arraycopy(buf, head, b, off, first);
+            if (first < n) {
+                System.arraycopy(buf, 0, b, off + first, n - first);
+            }
+            head = (head + n) % CAPACITY;
+            count -= n;
+            if (starved && count <= CAPACITY / 2) {
+                starved = false;
+                drained = true;
+            }
+        }
+        if (drained && onDrain != null) {
+            onDrain.run();
+        }
+        return n;
+    }
+
+    public synchronized int available() {
+        return count;
+    }
+
+    public String toString() {
+        return "BodyInputStream[buffered=" + available() + "]";
+    }
+}
@@ -0,0 +1,50 @@
+package org.httpkit.server;
+
+import static clojure.lang.Keyword.intern;
+
+import java.util.Map;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class ClojureRing {
+
+    static final Keyword SERVER_PORT = intern("server-port");
+    static final Keyword SERVER_NAME = intern("server-name");
+    static final Keyword REMOTE_ADDR = intern("remote-addr");
+    static final Keyword URI = intern("uri");
+    static final Keyword QUERY_STRING = intern("query-string");
+    static final Keyword SCHEME = intern("scheme");
+    static final Keyword REQUEST_METHOD = intern("request-method");
+    static final Keyword HEADERS = intern("headers");
+    static final Keyword CONTENT_TYPE = intern("content-type");
+    static final Keyword CONTENT_LENGTH = intern("content-length");
+    static final Keyword CHARACTER_ENCODING = intern("character-encoding");
+    static final Keyword BODY = intern("body");
+    static final Keyword WEBSOCKET = intern("websocket?");
+    static final Keyword ASYC_CHANNEL = intern("async-channel");
+    static final Keyword START_TIME = intern("start-time");
+    static final Keyword TIMINGS = intern("timings");
+
+    static final Keyword HTTP = intern("http");
+    static final Keyword HTTPS = intern("https");
+
+    static final Keyword STATUS = intern("status");
+
+    public static int getStatus(Map<Keyword, Object> resp) {
+        int status = 200;
+        Object s = resp.get(STATUS);
+        if (s instanceof Long) {
+            status = ((Long) s).intValue();
+        } else if (s instanceof Integer) {
+            status = (Integer) s;
+        }
+        return status;
+    }
+
+    public static IPersistentMap buildRequestMap(HttpRequest req) {
+        // ring spec, values read from req as looked up
+        return new RingRequest(req);
+    }
+}
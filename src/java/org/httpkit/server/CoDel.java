@@ -0,0 +1,73 @@
+package org.httpkit.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission by queueing delay, CoDel style: the sojourn of a request, from being read
+ * to its handler starting, is measured as it leaves the queue. When even the shortest
+ * sojourn over an interval exceeded target, the queue is standing, not absorbing a
+ * burst: requests that waited longer than target are dropped, else only those that
+ * waited longer than interval. Dropped ones are answered 503 right away, instead of
+ * being served to clients that most likely gave up. While the queue is standing, new
+ * requests are also dropped as they arrive, not to be queued behind it.
+ * Dequeued by any worker thread: lock free, races only blur the interval's minimum.
+ */
+class CoDel {
+    private final long target; // ns
+    private final long interval; // ns
+
+    private final AtomicLong intervalEnd;
+    private final AtomicLong minSojourn = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean overloaded = false;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    CoDel(long targetMs, long intervalMs) {
+        this.target = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(targetMs, intervalMs));
+        this.intervalEnd = new AtomicLong(System.nanoTime() + interval);
+    }
+
+    /**
+     * @param sojourn ns the request waited
+     * @return false if the request is to be dropped
+     */
+    boolean admit(long sojourn, long now) {
+        roll(now);
+        long min;
+        while (sojourn < (min = minSojourn.get()) && !minSojourn.compareAndSet(min, sojourn)) {
+            // another thread changed it, try again
+        }
+        if (sojourn > (overloaded ? target : interval)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A request arriving: false if it is to be dropped, the queue standing. Also ends
+     * an interval none was dequeued in, once arrivals are dropped and the queue drained
+     */
+    boolean accept(long now) {
+        roll(now);
+        if (overloaded) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void roll(long now) {
+        long end = intervalEnd.get();
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + interval)) {
+            long min = minSojourn.getAndSet(Long.MAX_VALUE);
+            // none dequeued, in this interval or a whole one since: not
+            overloaded = min != Long.MAX_VALUE && min > target && now - end < interval;
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,17 @@
+package org.httpkit.server;
+
+import org.httpkit.HeaderMap;
+
+class ErrorResponse {
+    static final HeaderMap headers = headers(0);
+
+    // of a 503, with Retry-After if retryAfter > 0 (seconds)
+    static HeaderMap headers(int retryAfter) {
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain; charset=utf-8");
+        if (retryAfter > 0) {
+            headers.put("Retry-After", Integer.toString(retryAfter));
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,101 @@
+package org.httpkit.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.httpkit.HeaderMap;
+
+import static org.httpkit.HttpUtils.CHUNKED;
+import static org.httpkit.HttpUtils.CONTENT_LENGTH;
+
+/**
+ * A file response body, sent with {@link FileChannel#transferTo}: the kernel copies
+ * the file to the socket, it is never read into the JVM heap or memory mapped.
+ * Resumes across partial writes; the file is closed once sent, or on {@link #close()}.
+ */
+class FileRegion {
+    private final FileChannel fc;
+    private final long end;
+    private long position = 0;
+
+    FileRegion(File file) throws IOException {
+        this.fc = new FileInputStream(file).getChannel();
+        this.end = fc.size();
+    }
+
+    /**
+     * Encodes a response with a file body: the head, then the file as a FileRegion.
+     * Same as PooledBuffer.encode (a 500) if the file can't be opened, or if chunked.
+     */
+    static Object[] encode(int status, HeaderMap headers, File file, String serverHeader) {
+        if (!CHUNKED.equals(headers.get("Transfer-Encoding"))) {
+            try {
+                FileRegion region = new FileRegion(file);
+                headers.putOrReplace(CONTENT_LENGTH, Long.toString(region.count()));
+                return new Object[]{PooledBuffer.head(status, headers, serverHeader), region};
+            } catch (IOException ignore) {
+            }
+        }
+        return PooledBuffer.encode(status, headers, file, serverHeader);
+    }
+
+    long count() {
+        return end;
+    }
+
+    long remaining() {
+        return end - position;
+    }
+
+    /**
+     * @return true if all sent, false if the socket buffer is full
+     * @throws IOException the file was truncated while sending: nothing more to transfer,
+     * the socket would be polled for OP_WRITE forever
+     */
+    boolean transferTo(WritableByteChannel ch) throws IOException {
+        while (position < end) {
+            long n = fc.transferTo(position, end - position, ch);
+            if (n <= 0) {
+                if (position >= fc.size()) {
+                    throw new IOException("file truncated while sending");
+                }
+                return false;
+            }
+            position += n;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Reads the next bytes of the file, when transferTo can't be used (TLS)
+     *
+     * @return bytes read, -1 once all read
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (position >= end) {
+            close();
+            return -1;
+        }
+        if (dst.remaining() > end - position) {
+            dst.limit(dst.position() + (int) (end - position));
+        }
+        int n = fc.read(dst, position);
+        if (n < 0) {
+            throw new IOException("file truncated while sending");
+        }
+        position += n;
+        return n;
+    }
+
+    void close() {
+        try {
+            fc.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.httpkit.server;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Request header names, lowercase. The well known ones are shared constants, looked up
+ * from the bytes of the name: no String per header per request for them.
+ */
+class HeaderNames {
+    private static final String[] NAMES = {
+            "host", "user-agent", "accept", "accept-encoding", "accept-language",
+            "accept-charset", "connection", "keep-alive", "content-length", "content-type",
+            "content-encoding", "transfer-encoding", "te", "trailer", "expect", "upgrade",
+            "cookie", "authorization", "proxy-authorization", "origin", "referer",
+            "cache-control", "pragma", "range", "if-range", "if-match", "if-none-match",
+            "if-modified-since", "if-unmodified-since", "date", "via", "forwarded", "dnt",
+            "x-forwarded-for", "x-forwarded-proto", "x-forwarded-port", "x-forwarded-host",
+            "x-real-ip", "x-request-id", "x-requested-with", "x-csrf-token",
+            "sec-websocket-key", "sec-websocket-version", "sec-websocket-protocol",
+            "sec-websocket-extensions", "http2-settings", "upgrade-insecure-requests",
+            "sec-fetch-site", "sec-fetch-mode", "sec-fetch-dest", "sec-fetch-user",
+            "sec-ch-ua", "sec-ch-ua-mobile", "sec-ch-ua-platform", "priority"
+    };
+
+    private static final int MASK = 255; // open addressing, a quarter full at most
+    private static final String[] TABLE = new String[MASK + 1];
+
+    static {
+        for (String name : NAMES) {
+            int i = name.hashCode() & MASK;
+            while (TABLE[i] != null) {
+                i = (i + 1) & MASK;
+            }
+            TABLE[i] = name;
+        }
+    }
+
+    /**
+     * @param b    the name in b[start, end), ASCII, already lowercase
+     * @param hash the String hashCode of the name
+     */
+    static String of(byte[] b, int start, int end, int hash) {
+        for (int i = hash & MASK; TABLE[i] != null; i = (i + 1) & MASK) {
+            String name = TABLE[i];
+            if (name.hashCode() == hash && matches(name, b, start, end)) {
+                return name;
+            }
+        }
+        return new String(b, start, end - start, ISO_8859_1);
+    }
+
+    private static boolean matches(String name, byte[] b, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (b[i] != name.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,358 @@
+package org.httpkit.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.ProtocolException;
+
+import static org.httpkit.HttpUtils.UTF_8;
+
+/**
+ * HPACK (RFC 7541), the HTTP/2 header compression.
+ * <p>
+ * Decoding keeps the dynamic table the client indexes into. Encoding is stateless:
+ * literals without indexing, names from the static table, no Huffman. Responses are
+ * encoded by worker threads, so no shared encoder state to keep in the wire order.
+ */
+class Hpack {
+
+    static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"},
+            {":status", "200"}, {":status", "204"}, {":status", "206"}, {":status", "304"},
+            {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+            {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+            {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+            {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+            {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+            {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+            {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // Appendix B. The code is canonical: codes follow from the lengths,
+    // consecutive in (length, symbol) order. 256 is EOS
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    // canonical decoding: per length, the first code and where its symbols start
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_INDEX = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+
+    static {
+        for (byte length : HUFFMAN_LENGTHS) {
+            COUNT[length]++;
+        }
+        int code = 0, index = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            FIRST_CODE[len] = code;
+            FIRST_INDEX[len] = index;
+            index += COUNT[len];
+            code = (code + COUNT[len]) << 1;
+        }
+        int[] next = FIRST_INDEX.clone();
+        for (int sym = 0; sym < HUFFMAN_LENGTHS.length; sym++) {
+            SYMBOLS[next[HUFFMAN_LENGTHS[sym]]++] = sym;
+        }
+    }
+
+    static byte[] huffmanDecode(byte[] src, int off, int len) throws ProtocolException {
+        DynamicBytes out = new DynamicBytes(len * 8 / 5 + 1);
+        int code = 0, bits = 0;
+        for (int i = off; i < off + len; i++) {
+            int b = src[i];
+            for (int j = 7; j >= 0; j--) {
+                code = (code << 1) | ((b >>> j) & 1);
+                bits++;
+                int offset = code - FIRST_CODE[bits];
+                if (offset >= 0 && offset < COUNT[bits]) {
+                    int sym = SYMBOLS[FIRST_INDEX[bits] + offset];
+                    if (sym == EOS) {
+                        throw new ProtocolException("hpack: EOS in huffman string");
+                    }
+                    out.append((byte) sym);
+                    code = 0;
+                    bits = 0;
+                } else if (bits == MAX_CODE_LENGTH) {
+                    throw new ProtocolException("hpack: bad huffman code");
+                }
+            }
+        }
+        // padding: the most significant bits of EOS, all 1s, shorter than a byte
+        if (bits > 7 || code != (1 << bits) - 1) {
+            throw new ProtocolException("hpack: bad huffman padding");
+        }
+        return Arrays.copyOf(out.get(), out.length());
+    }
+
+    /**
+     * Decodes the header blocks of a connection, in order. IO thread only.
+     */
+    static class Decoder {
+        private final ArrayDeque<Entry> dynamic = new ArrayDeque<Entry>(); // newest first
+        private int size = 0; // name + value octets + 32 per entry
+        private int maxSize;
+        private final int maxAllowed; // SETTINGS_HEADER_TABLE_SIZE we sent
+        private final int maxString;
+        private final int maxList; // SETTINGS_MAX_HEADER_LIST_SIZE we sent
+
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        Decoder(int maxAllowed, int maxString, int maxList) {
+            this.maxSize = maxAllowed;
+            this.maxAllowed = maxAllowed;
+            this.maxString = maxString;
+            this.maxList = maxList;
+        }
+
+        /**
+         * @param headers lower case name to value, repeated names joined like HttpDecoder does
+         * @return false if a name or value is longer than maxString, or the header list
+         * larger than maxList (name + value + 32 per field, 6.5.2 of RFC 7540): the block
+         * is still fully decoded, to keep the table in sync, but fields past the limit are
+         * dropped, however much the table expands them
+         */
+        boolean decode(byte[] block, int len, Map<String, Object> headers) throws ProtocolException {
+            this.block = block;
+            this.pos = 0;
+            this.end = len;
+            boolean ok = true;
+            boolean fieldSeen = false;
+            long listSize = 0;
+            boolean repeated = false;
+            while (pos < end) {
+                int b = block[pos] & 0xff;
+                String name, value;
+                if ((b & 0x80) != 0) { // indexed
+                    int index = readInt(7);
+                    name = name(index);
+                    value = index <= STATIC_TABLE.length
+                            ? STATIC_TABLE[index - 1][1] : dynamic(index).value;
+                } else if ((b & 0xe0) == 0x20) { // dynamic table size update
+                    if (fieldSeen) {
+                        throw new ProtocolException("hpack: table size update after a field");
+                    }
+                    int max = readInt(5);
+                    if (max > maxAllowed) {
+                        throw new ProtocolException("hpack: table size " + max + " > " + maxAllowed);
+                    }
+                    maxSize = max;
+                    evict(0);
+                    continue;
+                } else {
+                    boolean index = (b & 0xc0) == 0x40;
+                    int nameIndex = readInt(index ? 6 : 4);
+                    int[] octets = new int[2];
+                    name = nameIndex == 0 ? readString(octets, 0) : name(nameIndex);
+                    value = readString(octets, 1);
+                    if (index) {
+                        int entrySize = (nameIndex == 0 ? octets[0] : octets(name)) + octets[1] + 32;
+                        evict(entrySize);
+                        if (entrySize <= maxSize) {
+                            dynamic.addFirst(new Entry(name, value, entrySize));
+                            size += entrySize;
+                        }
+                    }
+                }
+                fieldSeen = true;
+                listSize += name.length() + value.length() + 32;
+                if (!ok || listSize > maxList || name.length() > maxString || value.length() > maxString) {
+                    ok = false;
+                    continue;
+                }
+                Object v = headers.get(name);
+                if (v == null) {
+                    headers.put(name, value);
+                } else { // joined once all read: no copy of the ones before per repeat
+                    StringBuilder sb;
+                    if (v instanceof StringBuilder) {
+                        sb = (StringBuilder) v;
+                    } else {
+                        sb = new StringBuilder((String) v);
+                        headers.put(name, sb);
+                        repeated = true;
+                    }
+                    // RFC 7540 8.1.2.5: cookie crumbs are joined with "; "
+                    sb.append("cookie".equals(name) ? "; " : "\n").append(value);
+                }
+            }
+            this.block = null;
+            if (repeated) {
+                for (Map.Entry<String, Object> e : headers.entrySet()) {
+                    if (e.getValue() instanceof StringBuilder) {
+                        e.setValue(e.getValue().toString());
+                    }
+                }
+            }
+            return ok;
+        }
+
+        private String name(int index) throws ProtocolException {
+            if (index <= 0) {
+                throw new ProtocolException("hpack: index 0");
+            }
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[index - 1][0] : dynamic(index).name;
+        }
+
+        private Entry dynamic(int index) throws ProtocolException {
+            index -= STATIC_TABLE.length + 1;
+            if (index >= dynamic.size()) {
+                throw new ProtocolException("hpack: index out of table");
+            }
+            Iterator<Entry> it = dynamic.iterator();
+            Entry e = it.next();
+            while (index-- > 0) {
+                e = it.next();
+            }
+            return e;
+        }
+
+        private void evict(int room) {
+            while (size + room > maxSize && !dynamic.isEmpty()) {
+                size -= dynamic.removeLast().size;
+            }
+        }
+
+        private int readInt(int prefixBits) throws ProtocolException {
+            int mask = (1 << prefixBits) - 1;
+            int value = block[pos++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (pos >= end) {
+                    throw new ProtocolException("hpack: truncated integer");
+                }
+                b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+                if (shift > 28 || value < 0) {
+                    throw new ProtocolException("hpack: integer overflow");
+                }
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString(int[] octets, int i) throws ProtocolException {
+            if (pos >= end) {
+                throw new ProtocolException("hpack: truncated string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int len = readInt(7);
+            if (len > end - pos) {
+                throw new ProtocolException("hpack: truncated string");
+            }
+            String s;
+            if (huffman) {
+                byte[] b = huffmanDecode(block, pos, len);
+                octets[i] = b.length;
+                s = new String(b, UTF_8);
+            } else {
+                octets[i] = len;
+                s = new String(block, pos, len, UTF_8);
+            }
+            pos += len;
+            return s;
+        }
+
+        private static int octets(String s) {
+            return s.getBytes(UTF_8).length;
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final String value;
+        final int size;
+
+        Entry(String name, String value, int size) {
+            this.name = name;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    // --- encoding ---
+
+    static void encodeStatus(DynamicBytes out, int status) {
+        for (int i = 7; i < 14; i++) { // :status 200 .. 500
+            if (STATIC_TABLE[i][1].equals(Integer.toString(status))) {
+                encodeInt(out, 0x80, 7, i + 1);
+                return;
+            }
+        }
+        encodeInt(out, 0, 4, 8); // literal, name :status
+        encodeString(out, Integer.toString(status));
+    }
+
+    // literal header field without indexing, name is lower case
+    static void encodeHeader(DynamicBytes out, String name, String value) {
+        int index = 0;
+        for (int i = 14; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                index = i + 1;
+                break;
+            }
+        }
+        encodeInt(out, 0, 4, index);
+        if (index == 0) {
+            encodeString(out, name);
+        }
+        encodeString(out, value);
+    }
+
+    private static void encodeString(DynamicBytes out, String s) {
+        byte[] b = s.getBytes(UTF_8);
+        encodeInt(out, 0, 7, b.length);
+        out.append(b, b.length);
+    }
+
+    static void encodeInt(DynamicBytes out, int flags, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.append((byte) (flags | value));
+            return;
+        }
+        out.append((byte) (flags | mask));
+        value -= mask;
+        while (value >= 0x80) {
+            out.append((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.append((byte) value);
+    }
+}
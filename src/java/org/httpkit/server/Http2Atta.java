@@ -0,0 +1,14 @@
+package org.httpkit.server;
+
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+
+class Http2Atta extends ServerAtta {
+
+    final Http2Connection conn;
+
+    Http2Atta(HttpServer server, SelectionKey key, IHandler handler, long maxBody, int maxLine,
+              SocketAddress remoteAddr, boolean secure) {
+        conn = new Http2Connection(server, key, this, handler, maxBody, maxLine, remoteAddr, secure);
+    }
+}
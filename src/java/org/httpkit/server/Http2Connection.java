@@ -0,0 +1,1060 @@
+package org.httpkit.server;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import clojure.lang.ISeq;
+import clojure.lang.Seqable;
+import org.httpkit.DynamicBytes;
+import org.httpkit.HeaderMap;
+import org.httpkit.HttpMethod;
+import org.httpkit.ProtocolException;
+
+import static org.httpkit.HttpUtils.ASCII;
+import static org.httpkit.HttpUtils.CONTENT_LENGTH;
+import static org.httpkit.HttpUtils.getStringValue;
+import static org.httpkit.HttpUtils.httpDate;
+import static org.httpkit.HttpVersion.HTTP_2;
+
+/**
+ * An HTTP/2 connection (RFC 7540): frames read by the IO thread, each stream
+ * dispatched to the handler as a request once fully received (headers and body).
+ * The bodies hold the connection's receive window until their handlers are done:
+ * a client sending faster than it is served waits on flow control.
+ * <p>
+ * Responses are written by worker threads: HEADERS, then DATA frames as the peer's
+ * flow-control windows allow, streams taking turns. The send state is guarded by
+ * the attachment, the lock every write of the connection already takes.
+ */
+class Http2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ASCII);
+
+    static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4,
+            PUSH_PROMISE = 5, PING = 6, GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, FLOW_CONTROL_ERROR = 3, STREAM_CLOSED = 5,
+            FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, COMPRESSION_ERROR = 9, ENHANCE_YOUR_CALM = 11;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 1, SETTINGS_MAX_CONCURRENT_STREAMS = 3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 4, SETTINGS_MAX_FRAME_SIZE = 5, SETTINGS_MAX_HEADER_LIST_SIZE = 6;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int MAX_FRAME_SIZE = 16384; // what we accept, the protocol default
+    static final int MAX_CONCURRENT_STREAMS = 100;
+    static final int HEADER_TABLE_SIZE = 4096;
+    static final int MAX_HEADER_LIST_SIZE = 65536; // at least, max-line if larger
+    static final int MAX_RESETS = 2 * MAX_CONCURRENT_STREAMS; // streams reset by the client, per second
+    static final int MAX_BUFFERED = 64 * 1024 * 1024; // request bodies a connection holds, whatever max-body
+
+    // connection-specific, not allowed in HTTP/2 (8.1.2.2)
+    private static final String[] HOP_BY_HOP = {
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"};
+
+    private final HttpServer server;
+    private final SelectionKey key;
+    private final ServerAtta atta;
+    private final IHandler handler;
+    private final int maxBody;
+    private final int maxBuffered; // request bodies held by the connection at once: its receive window
+    private final int maxHeaderList;
+    private final SocketAddress remoteAddr;
+    private final boolean secure;
+
+    // IO thread
+    private final ByteBuffer in = ByteBuffer.allocate(9 + MAX_FRAME_SIZE); // write mode
+    private final Hpack.Decoder hpack;
+    private boolean prefaceRead = false;
+    private Http2Stream upgraded; // stream 1 of an Upgrade: h2c, waiting for the client preface
+    private DynamicBytes headerBlock; // HEADERS + CONTINUATIONs being received
+    private int headerStream = 0; // stream of headerBlock, 0 if none
+    private boolean headerEndStream;
+    private int lastStreamId = 0;
+    private boolean goawaySent = false;
+    private long resetsSince = 0; // ns, start of the second resets are counted over
+    private int resets = 0;
+    private final List<ByteBuffer> control = new ArrayList<ByteBuffer>(); // sent after each read
+
+    // guarded by atta
+    private final Map<Integer, Http2Stream> streams = new HashMap<Integer, Http2Stream>();
+    private final ArrayDeque<Http2Stream> sending = new ArrayDeque<Http2Stream>(); // have data queued
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int maxFrame = MAX_FRAME_SIZE; // the peer's
+    private boolean goawayReceived = false;
+    // streams opened and not released: a stream reset by the client is still counted
+    // until its handler is done, so resetting does not make room for more handlers
+    private int active = 0;
+    // bytes of the request bodies of the streams not released: the connection window
+    // is given back as the handlers are done with them
+    private long buffered = 0;
+    private long receiving = 0; // of buffered, the bodies of the streams not dispatched yet
+
+    Http2Connection(HttpServer server, SelectionKey key, ServerAtta atta, IHandler handler,
+                    long maxBody, int maxLine, SocketAddress remoteAddr, boolean secure) {
+        this.server = server;
+        this.key = key;
+        this.atta = atta;
+        this.handler = handler;
+        this.maxBody = (int) Math.min(maxBody, MAX_BUFFERED / 2); // bodies are buffered
+        this.maxBuffered = Math.max(DEFAULT_WINDOW, 2 * this.maxBody);
+        this.maxHeaderList = Math.max(MAX_HEADER_LIST_SIZE, maxLine + 32);
+        this.remoteAddr = remoteAddr;
+        this.secure = secure;
+        this.hpack = new Hpack.Decoder(HEADER_TABLE_SIZE, maxLine, maxHeaderList);
+    }
+
+    /**
+     * How much of the client preface (prior knowledge h2c) the buffer starts with
+     *
+     * @return PREFACE.length if all of it, -1 if the buffer is something else
+     */
+    static int prefaceMatch(ByteBuffer buffer) {
+        int n = Math.min(buffer.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * An HTTP/1.1 request asking to continue as h2c (3.2)
+     */
+    static boolean isUpgrade(HttpRequest request) {
+        return "h2c".equalsIgnoreCase(getStringValue(request.headers, "upgrade"))
+                && request.headers.containsKey("http2-settings");
+    }
+
+    // IO thread, sends our SETTINGS: the server preface
+    void start() {
+        ByteBuffer settings = frame(24, SETTINGS, 0, 0);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) SETTINGS_HEADER_TABLE_SIZE).putInt(HEADER_TABLE_SIZE);
+        settings.putShort((short) SETTINGS_MAX_FRAME_SIZE).putInt(MAX_FRAME_SIZE);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderList);
+        settings.flip();
+        if (maxBuffered > DEFAULT_WINDOW) { // the connection window: what may be buffered
+            server.tryWrite(key, settings, windowUpdate(0, maxBuffered - DEFAULT_WINDOW));
+        } else {
+            server.tryWrite(key, settings);
+        }
+    }
+
+    /**
+     * IO thread. After the 101 to an Upgrade: h2c, the request is stream 1, half closed
+     */
+    void upgrade(HttpRequest request) {
+        try {
+            String settings = getStringValue(request.headers, "http2-settings");
+            applySettings(ByteBuffer.wrap(Base64.getUrlDecoder().decode(settings.trim())));
+        } catch (IllegalArgumentException e) {
+            goaway(PROTOCOL_ERROR);
+            return;
+        } catch (ProtocolException e) {
+            goaway(PROTOCOL_ERROR);
+            return;
+        }
+        start();
+        lastStreamId = 1;
+        Http2Stream stream = new Http2Stream(this, 1, initialWindow);
+        stream.request = request;
+        request.stream = stream;
+        request.isKeepAlive = true;
+        request.remoteAddr = remoteAddr;
+        synchronized (atta) {
+            streams.put(1, stream);
+            active++;
+        }
+        // answered once the client preface is read: clients (the JDK's) may not
+        // expect frames before they sent theirs
+        upgraded = stream;
+    }
+
+    /**
+     * IO thread. Reads the frames, dispatches the streams fully received
+     */
+    void decode(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining() && !goawaySent) {
+                int n = Math.min(buffer.remaining(), in.remaining());
+                ByteBuffer b = buffer.duplicate();
+                b.limit(b.position() + n);
+                in.put(b);
+                buffer.position(buffer.position() + n);
+                in.flip();
+                try {
+                    readFrames();
+                } finally {
+                    in.compact();
+                }
+            }
+        } catch (ConnectionError e) {
+            goaway(e.code);
+        } catch (ProtocolException e) {
+            goaway(PROTOCOL_ERROR);
+        }
+        if (!control.isEmpty()) {
+            server.tryWrite(key, control.toArray(new ByteBuffer[control.size()]));
+            control.clear();
+        }
+    }
+
+    private void readFrames() throws ProtocolException {
+        if (!prefaceRead) {
+            for (int i = 0; i < PREFACE.length && i < in.remaining(); i++) {
+                if (in.get(in.position() + i) != PREFACE[i]) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "bad connection preface");
+                }
+            }
+            if (in.remaining() < PREFACE.length) {
+                return;
+            }
+            in.position(in.position() + PREFACE.length);
+            prefaceRead = true;
+            if (upgraded != null) {
+                dispatch(upgraded);
+                upgraded = null;
+            }
+        }
+        while (in.remaining() >= 9 && !goawaySent) {
+            int p = in.position();
+            int length = ((in.get(p) & 0xff) << 16) | ((in.get(p + 1) & 0xff) << 8) | (in.get(p + 2) & 0xff);
+            if (length > MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+            }
+            if (in.remaining() < 9 + length) {
+                return;
+            }
+            in.position(p + 3);
+            int type = in.get() & 0xff;
+            int flags = in.get() & 0xff;
+            int streamId = in.getInt() & 0x7fffffff;
+            ByteBuffer payload = in.slice();
+            payload.limit(length);
+            in.position(p + 9 + length);
+            frame(type, flags, streamId, payload);
+        }
+    }
+
+    private void frame(int type, int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (headerStream != 0 && type != CONTINUATION) {
+            throw new ConnectionError(PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY: // no prioritization, streams take turns
+                if (streamId == 0) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                break;
+            case RST_STREAM:
+                onReset(streamId, payload);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                onPing(flags, streamId, payload);
+                break;
+            case GOAWAY:
+                onGoaway(streamId);
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            default: // unknown types are ignored (4.1)
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        unpad(flags, payload);
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS priority");
+            }
+            payload.position(payload.position() + 5);
+        }
+        headerStream = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        headerBlock = new DynamicBytes(payload.remaining());
+        appendHeaderBlock(flags, payload);
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (streamId == 0 || streamId != headerStream) {
+            throw new ConnectionError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        appendHeaderBlock(flags, payload);
+    }
+
+    private void appendHeaderBlock(int flags, ByteBuffer payload) throws ProtocolException {
+        // a header list past max would be refused anyway: no need to hold an endless
+        // CONTINUATION run to find out
+        if ((long) headerBlock.length() + payload.remaining() > 2L * maxHeaderList) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "header block too large");
+        }
+        byte[] b = new byte[payload.remaining()];
+        payload.get(b);
+        headerBlock.append(b, b.length);
+        if ((flags & END_HEADERS) != 0) {
+            int streamId = headerStream;
+            headerStream = 0;
+            endHeaders(streamId);
+        }
+    }
+
+    private void endHeaders(int streamId) throws ProtocolException {
+        Map<String, Object> headers = new TreeMap<String, Object>();
+        boolean fits;
+        try { // always decoded: keeps the dynamic table in sync
+            fits = hpack.decode(headerBlock.get(), headerBlock.length(), headers);
+        } catch (ProtocolException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        headerBlock = null;
+
+        Http2Stream stream = stream(streamId);
+        if (stream != null || streamId <= lastStreamId) { // trailers
+            if (stream == null || stream.remoteClosed) {
+                reset(streamId, STREAM_CLOSED);
+            } else if (!headerEndStream) {
+                reset(stream, PROTOCOL_ERROR);
+            } else {
+                dispatch(stream);
+            }
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "even stream id from a client");
+        }
+        lastStreamId = streamId;
+        synchronized (atta) {
+            if (active >= MAX_CONCURRENT_STREAMS) {
+                reset(streamId, REFUSED_STREAM);
+                return;
+            }
+            stream = new Http2Stream(this, streamId, initialWindow);
+            streams.put(streamId, stream);
+            active++;
+        }
+        HttpRequest request = createRequest(headers);
+        if (request == null) {
+            reset(stream, PROTOCOL_ERROR);
+            return;
+        }
+        request.stream = stream;
+        stream.request = request;
+        if (!fits) { // a header longer than max-line, or too many
+            stream.remoteClosed = true;
+            stream.respond(431, new HeaderMap(), null, server.serverHeader, true);
+            if (!headerEndStream) {
+                control.add(rstStream(streamId, NO_ERROR));
+            }
+            return;
+        }
+        String cl = getStringValue(headers, CONTENT_LENGTH);
+        if (cl != null) {
+            try {
+                if (Long.parseLong(cl) > maxBody) {
+                    tooLarge(stream);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                reset(stream, PROTOCOL_ERROR);
+                return;
+            }
+        }
+        if (headerEndStream) {
+            dispatch(stream);
+        }
+    }
+
+    // null if malformed (8.1.2)
+    private HttpRequest createRequest(Map<String, Object> headers) {
+        String method = (String) headers.remove(":method");
+        String path = (String) headers.remove(":path");
+        String authority = (String) headers.remove(":authority");
+        headers.remove(":scheme");
+        if (method == null || path == null || headers.containsKey(":status")) {
+            return null;
+        }
+        for (String name : headers.keySet()) {
+            if (name.startsWith(":")) { // pseudo headers sort first
+                return null;
+            }
+        }
+        try {
+            HttpRequest request = new HttpRequest(HttpMethod.valueOf(method), path, HTTP_2);
+            if (authority != null && !headers.containsKey("host")) {
+                headers.put("host", authority);
+            }
+            request.setHeaders(headers);
+            request.isKeepAlive = true;
+            if (secure) {
+                request.setSecure();
+            }
+            request.remoteAddr = remoteAddr;
+            request.setStartTime(System.nanoTime());
+            return request;
+        } catch (IllegalArgumentException e) { // unknown method
+            return null;
+        } catch (ProtocolException e) { // bad host
+            return null;
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining(); // flow-controlled, padding included
+        unpad(flags, payload);
+        int n = payload.remaining();
+        Http2Stream stream = stream(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            if (stream != null) {
+                reset(stream, STREAM_CLOSED);
+            } // else reset, or responded already: ignored
+            giveBack(length);
+            return;
+        }
+        if (stream.body == null) {
+            stream.body = new DynamicBytes(Math.max(n, 64));
+        }
+        if ((long) stream.body.length() + n > maxBody) {
+            tooLarge(stream);
+            giveBack(length);
+            return;
+        }
+        boolean stuck;
+        synchronized (atta) {
+            if (buffered + n > maxBuffered) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "DATA past the connection window");
+            }
+            buffered += n;
+            receiving += n;
+            stream.buffered += n;
+            stuck = buffered == receiving && maxBuffered - buffered < MAX_FRAME_SIZE;
+        }
+        giveBack(length - n); // the padding
+        if (stuck && (flags & END_STREAM) == 0) {
+            // no handler holds a body to give the window back once done with it, and what
+            // is left of it may not take another frame: the streams being received would
+            // wait on each other. Refused streams are safe to retry (8.1.4)
+            stream.body = null;
+            reset(stream, REFUSED_STREAM);
+            return;
+        }
+        byte[] b = new byte[n];
+        payload.get(b);
+        stream.body.append(b, b.length);
+        if ((flags & END_STREAM) != 0) {
+            dispatch(stream);
+        } else if (length > 0) { // the whole body is needed before dispatch
+            control.add(windowUpdate(streamId, length));
+        }
+    }
+
+    // IO thread: received bytes not buffered, the peer may send them again
+    private void giveBack(int n) {
+        if (n > 0) {
+            control.add(windowUpdate(0, n));
+        }
+    }
+
+    private void tooLarge(Http2Stream stream) {
+        stream.remoteClosed = true;
+        stream.respond(413, new HeaderMap(), "request body too large; max request body " + maxBody,
+                server.serverHeader, true);
+        // no need to send the rest (8.1)
+        control.add(rstStream(stream.id, NO_ERROR));
+    }
+
+    private void onReset(int streamId, ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM length");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Stream stream;
+        synchronized (atta) {
+            stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.closed = true;
+                stream.data.clear();
+                if (stream.channel == null || stream.handled) {
+                    release(stream);
+                } // else still counted, until its handler is done
+            }
+        }
+        // rapid reset (CVE-2023-44487): requests opened and cancelled at once. Counted
+        // whether answered or refused already: that depends on how fast they are handled
+        long now = System.nanoTime();
+        if (now - resetsSince > 1000000000L) {
+            resetsSince = now;
+            resets = 0;
+        }
+        if (++resets > MAX_RESETS) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "too many streams reset");
+        }
+        if (stream != null && stream.channel != null) {
+            handler.clientClose(stream.channel, -1);
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        ByteBuffer ack = frame(0, SETTINGS, ACK, 0);
+        ack.flip();
+        control.add(ack);
+    }
+
+    private void applySettings(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS length");
+        }
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        synchronized (atta) {
+            while (payload.hasRemaining()) {
+                int id = payload.getShort() & 0xffff;
+                int value = payload.getInt();
+                if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    if (value < 0) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "initial window size");
+                    }
+                    int delta = value - initialWindow; // applies to the open streams (6.9.2)
+                    initialWindow = value;
+                    for (Http2Stream s : streams.values()) {
+                        s.sendWindow += delta;
+                    }
+                } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "max frame size " + value);
+                    }
+                    maxFrame = value;
+                } // the others don't apply: no push, no indexing when encoding
+            }
+            flush(out);
+        }
+        control.addAll(out);
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING length");
+        }
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if ((flags & ACK) == 0) {
+            ByteBuffer pong = frame(8, PING, ACK, 0);
+            pong.put(payload).flip();
+            control.add(pong);
+        }
+    }
+
+    // the client is going away: close once the streams in flight are answered
+    private void onGoaway(int streamId) throws ProtocolException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+        }
+        synchronized (atta) {
+            goawayReceived = true;
+            if (streams.isEmpty()) {
+                atta.keepalive = false;
+                server.tryWrite(key); // closes after what is being written
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        synchronized (atta) {
+            if (streamId == 0) {
+                if (increment == 0 || sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new ConnectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR,
+                            "bad window update");
+                }
+                sendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return; // closed, frames in flight
+                }
+                if (increment == 0 || stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    reset(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+            flush(out);
+        }
+        control.addAll(out);
+    }
+
+    private void unpad(int flags, ByteBuffer payload) throws ProtocolException {
+        if ((flags & PADDED) != 0) {
+            if (!payload.hasRemaining()) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "padding length");
+            }
+            int pad = payload.get() & 0xff;
+            if (pad > payload.remaining()) {
+                throw new ConnectionError(PROTOCOL_ERROR, "padding longer than the frame");
+            }
+            payload.limit(payload.limit() - pad);
+        }
+    }
+
+    // IO thread: the request is complete, hand it to the handler
+    private void dispatch(Http2Stream stream) {
+        stream.remoteClosed = true;
+        HttpRequest request = stream.request;
+        if (stream.body != null && stream.body.length() > 0) {
+            request.setBody(stream.body.get(), stream.body.length());
+        }
+        stream.body = null;
+        AsyncChannel channel = new AsyncChannel(key, server);
+        channel.reset(request);
+        request.channel = channel;
+        synchronized (atta) {
+            receiving -= stream.buffered; // the handler's now
+            stream.channel = channel;
+        }
+        handler.handle(request, new Http2RespCallback(key, server, stream));
+    }
+
+    /**
+     * Any thread: the handler of the stream returned, or gave up on it
+     */
+    void handled(Http2Stream stream) {
+        synchronized (atta) {
+            stream.handled = true;
+            if (stream.closed) {
+                release(stream);
+            }
+        }
+    }
+
+    // guarded by atta: the stream no longer counts against the limits of the connection
+    private void release(Http2Stream stream) {
+        if (!stream.released) {
+            stream.released = true;
+            active--;
+            if (stream.buffered > 0) {
+                buffered -= stream.buffered;
+                if (stream.channel == null) {
+                    receiving -= stream.buffered;
+                }
+                // done with the body: the peer may send as much again
+                server.tryWrite(key, windowUpdate(0, (int) stream.buffered));
+                stream.buffered = 0;
+            }
+        }
+    }
+
+    private Http2Stream stream(int streamId) {
+        synchronized (atta) {
+            return streams.get(streamId);
+        }
+    }
+
+    // IO thread
+    private void reset(Http2Stream stream, int code) {
+        synchronized (atta) {
+            streams.remove(stream.id);
+            stream.closed = true;
+            stream.data.clear();
+            if (stream.channel == null || stream.handled) {
+                release(stream);
+            }
+        }
+        reset(stream.id, code);
+    }
+
+    private void reset(int streamId, int code) {
+        control.add(rstStream(streamId, code));
+    }
+
+    private static ByteBuffer windowUpdate(int streamId, int increment) {
+        ByteBuffer b = frame(4, WINDOW_UPDATE, 0, streamId);
+        b.putInt(increment).flip();
+        return b;
+    }
+
+    // IO thread: a connection error, nothing more is read
+    private void goaway(int code) {
+        goawaySent = true;
+        ByteBuffer b = frame(8, GOAWAY, 0, 0);
+        b.putInt(lastStreamId).putInt(code).flip();
+        control.add(b);
+        synchronized (atta) {
+            atta.keepalive = false; // closed once sent
+            server.tryWrite(key, control.toArray(new ByteBuffer[control.size()]));
+        }
+        control.clear();
+    }
+
+    /**
+     * IO thread. A request is partly received: a header block or a body to come
+     */
+    boolean isReceiving() {
+        if (headerBlock != null) {
+            return true;
+        }
+        synchronized (atta) {
+            for (Http2Stream s : streams.values()) {
+                if (!s.remoteClosed) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * No stream open: no request being received or answered
+     */
+    boolean isIdle() {
+        synchronized (atta) {
+            return streams.isEmpty();
+        }
+    }
+
+    /**
+     * The connection is closed
+     *
+     * @return channels of the requests in flight, to notify
+     */
+    List<AsyncChannel> close() {
+        List<AsyncChannel> inflight = new ArrayList<AsyncChannel>();
+        synchronized (atta) {
+            for (Http2Stream s : streams.values()) {
+                s.closed = true;
+                s.data.clear();
+                if (s.channel != null) {
+                    inflight.add(s.channel);
+                }
+            }
+            streams.clear();
+            sending.clear();
+        }
+        return inflight;
+    }
+
+    // --- sending, any thread ---
+
+    /**
+     * Sends the response headers, then body (may be null) if any.
+     * END_STREAM once the body is sent if end, else more data may follow
+     */
+    void headers(Http2Stream stream, int status, HeaderMap headers, String serverHeader,
+                 ByteBuffer body, boolean end) {
+        long length = -1;
+        if (end) { // same as HttpEncode
+            if (body != null) {
+                length = body.remaining();
+            } else if ((status / 100) != 1 && status != 204) {
+                length = 0;
+            }
+        }
+        byte[] block = encodeHeaders(status, headers, serverHeader, length);
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        synchronized (atta) {
+            if (stream.closed || stream.headersSent) {
+                if (stream.closed) { // reset: this is its handler done
+                    release(stream);
+                }
+                return;
+            }
+            stream.headersSent = true;
+            boolean endStream = end && (body == null || !body.hasRemaining());
+            int off = 0;
+            do { // HEADERS, CONTINUATIONs if larger than a frame
+                int n = Math.min(block.length - off, maxFrame);
+                int flags = off + n == block.length ? END_HEADERS : 0;
+                if (off == 0 && endStream) {
+                    flags |= END_STREAM;
+                }
+                ByteBuffer f = frame(n, off == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+                f.put(block, off, n).flip();
+                out.add(f);
+                off += n;
+            } while (off < block.length);
+            if (endStream) {
+                closeLocal(stream);
+            } else {
+                queue(stream, body, end);
+            }
+            flush(out);
+            server.tryWrite(key, out.toArray(new ByteBuffer[out.size()]));
+        }
+    }
+
+    // more of the body, END_STREAM after it if end. body may be null
+    void data(Http2Stream stream, ByteBuffer body, boolean end) {
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        synchronized (atta) {
+            if (stream.closed) {
+                if (end) {
+                    release(stream);
+                }
+                return;
+            }
+            queue(stream, body, end);
+            flush(out);
+            if (!out.isEmpty()) {
+                server.tryWrite(key, out.toArray(new ByteBuffer[out.size()]));
+            }
+        }
+    }
+
+    // guarded by atta
+    private void queue(Http2Stream stream, ByteBuffer body, boolean end) {
+        if (body != null && body.hasRemaining()) {
+            stream.data.add(body);
+        }
+        stream.endQueued |= end;
+        if ((end || !stream.data.isEmpty()) && !sending.contains(stream)) {
+            sending.add(stream);
+        }
+    }
+
+    /**
+     * Guarded by atta. DATA frames of the streams with data queued, one frame each in
+     * turn, as long as the flow-control windows allow
+     */
+    private void flush(List<ByteBuffer> out) {
+        int blocked = 0;
+        while (!sending.isEmpty() && blocked < sending.size()) {
+            Http2Stream s = sending.pollFirst();
+            if (s.closed) {
+                continue;
+            }
+            if (s.data.isEmpty()) { // only END_STREAM left, takes no window
+                ByteBuffer end = frame(0, DATA, END_STREAM, s.id);
+                end.flip();
+                out.add(end);
+                closeLocal(s);
+                blocked = 0;
+                continue;
+            }
+            ByteBuffer b = s.data.peekFirst();
+            int n = (int) Math.min(Math.min(b.remaining(), maxFrame), Math.min(sendWindow, s.sendWindow));
+            if (n <= 0) {
+                sending.addLast(s);
+                if (sendWindow <= 0) {
+                    break;
+                }
+                blocked++;
+                continue;
+            }
+            ByteBuffer chunk = b.duplicate();
+            chunk.limit(chunk.position() + n);
+            b.position(b.position() + n);
+            if (!b.hasRemaining()) {
+                s.data.removeFirst();
+            }
+            sendWindow -= n;
+            s.sendWindow -= n;
+            boolean last = s.endQueued && s.data.isEmpty();
+            ByteBuffer head = header(n, DATA, last ? END_STREAM : 0, s.id);
+            out.add(head);
+            out.add(chunk);
+            blocked = 0;
+            if (last) {
+                closeLocal(s);
+            } else if (!s.data.isEmpty()) {
+                sending.addLast(s);
+            }
+        }
+    }
+
+    // guarded by atta: the response is sent
+    private void closeLocal(Http2Stream stream) {
+        stream.closed = true;
+        streams.remove(stream.id);
+        release(stream);
+        if (goawayReceived && streams.isEmpty()) {
+            atta.keepalive = false;
+        }
+    }
+
+    private byte[] encodeHeaders(int status, HeaderMap headers, String serverHeader, long length) {
+        DynamicBytes out = new DynamicBytes(128);
+        Hpack.encodeStatus(out, status);
+        boolean hasServer = false, hasDate = false;
+        for (int i = 0; i < headers.size(); i++) {
+            String k = headers.getKey(i);
+            Object v = headers.getValue(i);
+            if (k == null || v == null) {
+                continue;
+            }
+            String name = k.toLowerCase();
+            if (isHopByHop(name) || (length >= 0 && CONTENT_LENGTH.equals(name))) {
+                continue;
+            }
+            hasServer |= "server".equals(name);
+            hasDate |= "date".equals(name);
+            if (v instanceof Seqable) {
+                for (ISeq seq = ((Seqable) v).seq(); seq != null; seq = seq.next()) {
+                    Hpack.encodeHeader(out, name, seq.first().toString());
+                }
+            } else {
+                Hpack.encodeHeader(out, name, v.toString());
+            }
+        }
+        if (serverHeader != null && !hasServer) {
+            Hpack.encodeHeader(out, "server", serverHeader);
+        }
+        if (!hasDate) {
+            Hpack.encodeHeader(out, "date", httpDate());
+        }
+        if (length >= 0) {
+            Hpack.encodeHeader(out, CONTENT_LENGTH, Long.toString(length));
+        }
+        byte[] block = new byte[out.length()];
+        System.arraycopy(out.get(), 0, block, 0, block.length);
+        return block;
+    }
+
+    private static boolean isHopByHop(String name) {
+        for (String h : HOP_BY_HOP) {
+            if (h.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ByteBuffer rstStream(int streamId, int code) {
+        ByteBuffer b = frame(4, RST_STREAM, 0, streamId);
+        b.putInt(code).flip();
+        return b;
+    }
+
+    // the frame header, room for length bytes of payload after it
+    private static ByteBuffer frame(int length, int type, int flags, int streamId) {
+        return put(ByteBuffer.allocate(9 + length), length, type, flags, streamId);
+    }
+
+    // the frame header alone, ready to write, the payload is another buffer
+    private static ByteBuffer header(int length, int type, int flags, int streamId) {
+        ByteBuffer b = put(ByteBuffer.allocate(9), length, type, flags, streamId);
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer put(ByteBuffer b, int length, int type, int flags, int streamId) {
+        b.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        b.put((byte) type).put((byte) flags).putInt(streamId);
+        return b;
+    }
+
+    // an error closing the connection, with a GOAWAY
+    static class ConnectionError extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        ConnectionError(int code, String msg) {
+            super(msg);
+            this.code = code;
+        }
+    }
+}
+
+class Http2RespCallback extends RespCallback {
+    private final Http2Stream stream;
+
+    Http2RespCallback(SelectionKey key, HttpServer server, Http2Stream stream) {
+        super(key, server);
+        this.stream = stream;
+    }
+
+    public void respond(int status, HeaderMap headers, Object body, String serverHeader) {
+        stream.respond(status, headers, body, serverHeader, true);
+    }
+
+    void handled() {
+        stream.conn.handled(stream);
+    }
+
+    /**
+     * An HTTP/1 encoded response, from an IHandler calling run rather than
+     * {@link #respond}: its status line and headers are parsed back, to be sent as HEADERS
+     */
+    public void run(ByteBuffer... buffers) {
+        DynamicBytes bytes = new DynamicBytes(256);
+        for (ByteBuffer b : buffers) {
+            ByteBuffer d = b.duplicate();
+            while (d.hasRemaining()) {
+                bytes.append(d.get());
+            }
+        }
+        byte[] raw = bytes.get();
+        int end = 0;
+        while (end + 3 < bytes.length() && !(raw[end] == '\r' && raw[end + 1] == '\n'
+                && raw[end + 2] == '\r' && raw[end + 3] == '\n')) {
+            end++;
+        }
+        String[] lines = new String(raw, 0, end, ASCII).split("\r\n");
+        int status = 500;
+        String[] statusLine = lines[0].split(" ");
+        if (statusLine.length > 1) {
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        HeaderMap headers = new HeaderMap();
+        for (int i = 1; i < lines.length; i++) {
+            int idx = lines[i].indexOf(':');
+            if (idx > 0) {
+                headers.put(lines[i].substring(0, idx), lines[i].substring(idx + 1).trim());
+            }
+        }
+        int bodyStart = Math.min(end + 4, bytes.length());
+        ByteBuffer body = ByteBuffer.wrap(raw, bodyStart, bytes.length() - bodyStart);
+        stream.respond(status, headers, body.hasRemaining() ? body : null, null, true);
+    }
+}
@@ -0,0 +1,59 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.HeaderMap;
+
+import static org.httpkit.HttpUtils.ASCII;
+import static org.httpkit.HttpUtils.bodyBuffer;
+
+// A request/response exchange of an HTTP/2 connection
+class Http2Stream {
+    final Http2Connection conn;
+    final int id;
+
+    // IO thread
+    HttpRequest request;
+    DynamicBytes body;
+    boolean remoteClosed; // END_STREAM received
+    volatile AsyncChannel channel; // once dispatched
+
+    // guarded by the connection's attachment
+    long sendWindow;
+    final LinkedList<ByteBuffer> data = new LinkedList<ByteBuffer>();
+    boolean endQueued;
+    boolean headersSent;
+    boolean closed; // response sent, or reset
+    boolean handled; // the handler returned
+    boolean released; // no longer counted by the connection
+    long buffered; // bytes of the request body, counted by the connection
+
+    Http2Stream(Http2Connection conn, int id, int sendWindow) {
+        this.conn = conn;
+        this.id = id;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * The response head, and body if not null. If not end, the body goes on with {@link #data}
+     */
+    void respond(int status, HeaderMap headers, Object body, String serverHeader, boolean end) {
+        ByteBuffer b;
+        try {
+            // a File is read (or mapped): no sendfile through DATA frames
+            b = bodyBuffer(body);
+        } catch (IOException e) {
+            status = 500;
+            headers = new HeaderMap();
+            b = ByteBuffer.wrap(e.getMessage().getBytes(ASCII));
+        }
+        conn.headers(this, status, headers, serverHeader, b, end);
+    }
+
+    void data(ByteBuffer body, boolean end) {
+        conn.data(this, body, end);
+    }
+}
@@ -1,10 +1,70 @@
 package org.httpkit.server;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
 public class HttpAtta extends ServerAtta {
 
     public HttpAtta(int maxBody, int maxLine, ProxyProtocolOption proxyProtocolOption) {
         decoder = new HttpDecoder(maxBody, maxLine, proxyProtocolOption);
     }
 
+    public HttpAtta(long maxBody, int maxLine, ProxyProtocolOption proxyProtocolOption,
+                    boolean streamBody) {
+        decoder = new HttpDecoder(maxBody, maxLine, proxyProtocolOption, streamBody);
+    }
+
     public final HttpDecoder decoder;
+
+    // HTTP/1.1 pipelining: one slot per request in flight, in request order.
+    // The first slot is the response allowed to write. guarded by this
+    final ArrayDeque<ResponseSlot> slots = new ArrayDeque<ResponseSlot>();
+
+    // OP_READ cleared because too many requests are in flight, or the handler
+    // is not reading a streamed body fast enough, guarded by this
+    boolean readPaused = false;
+    boolean resumePosted = false;
+
+    // bytes read but not decoded when reading got paused, IO thread only
+    ByteBuffer leftover;
+
+    // the start of what may be the HTTP/2 client preface, split across reads, IO thread only
+    ByteBuffer preface;
+
+    // when the first bytes of the request being read were, IO thread only
+    long requestStart;
+
+    // ns spent decoding the request being read, for metrics, IO thread only
+    long decodeNanos;
+
+    // timed requests: when the first byte of the request being read was (ns), IO thread only
+    long firstByte;
+
+    // timed requests whose last segment is in toWrites, in order, guarded by this
+    final ArrayDeque<HttpRequest> writing = new ArrayDeque<HttpRequest>(2);
+
+    // IO thread
+    ResponseSlot nextSlot(boolean keepalive, AsyncChannel channel) {
+        ResponseSlot slot = new ResponseSlot(keepalive, channel);
+        synchronized (this) {
+            slots.addLast(slot);
+        }
+        return slot;
+    }
+
+    synchronized boolean hasInflight() {
+        return !slots.isEmpty();
+    }
+
+    // IO thread. Pause reading if the pipeline is full
+    synchronized boolean pauseIfFull(int maxPipeline) {
+        if (slots.size() >= maxPipeline) {
+            readPaused = true;
+        }
+        return readPaused;
+    }
+
+    synchronized void pause() {
+        readPaused = true;
+    }
 }
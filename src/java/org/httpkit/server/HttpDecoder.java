@@ -1,5 +1,6 @@
 package org.httpkit.server;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
@@ -17,6 +18,7 @@ import org.httpkit.LineTooLargeException;
 import org.httpkit.ProtocolException;
 import org.httpkit.RequestTooLargeException;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.httpkit.HttpUtils.*;
 import static org.httpkit.HttpVersion.HTTP_1_0;
 import static org.httpkit.HttpVersion.HTTP_1_1;
@@ -46,10 +48,12 @@ public class HttpDecoder {
         "PROXY\\x20TCP4\\x20(" + IPV4ADDR + ")\\x20(" + IPV4ADDR +")\\x20(" + PORT + ")\\x20(" + PORT + ")"
     );
 
+    private static final byte[] HTTP_1_0_BYTES = "HTTP/1.0".getBytes(ISO_8859_1);
+
     private State state;
     private ProxyProtocolOption proxyProtocolOption;
-    private int readRemaining = 0; // bytes need read
-    private int readCount = 0; // already read bytes count
+    private long readRemaining = 0; // bytes need read
+    private long readCount = 0; // already read bytes count
 
     private String xForwardedFor;
     private String xForwardedProto;
@@ -58,11 +62,26 @@ public class HttpDecoder {
     private Map<String, Object> headers = new TreeMap<String, Object>();
     byte[] content;
 
-    private final int maxBody;
+    // streaming: the request is returned once the headers are read,
+    // the body follows through the stream
+    private final boolean streamBody;
+    private BodyInputStream stream;
+    private boolean streamFull = false;
+
+    private final long maxBody;
     private final LineReader lineReader;
 
+    boolean timed = false; // stamp requests' headersTime
+
     public HttpDecoder(int maxBody, int maxLine, ProxyProtocolOption proxyProtocolOption) {
-        this.maxBody = maxBody;
+        this(maxBody, maxLine, proxyProtocolOption, false);
+    }
+
+    public HttpDecoder(long maxBody, int maxLine, ProxyProtocolOption proxyProtocolOption,
+                       boolean streamBody) {
+        // a buffered body is a byte array
+        this.maxBody = streamBody ? maxBody : Math.min(maxBody, Integer.MAX_VALUE - 8);
+        this.streamBody = streamBody;
         this.lineReader = new LineReader(maxLine);
         this.proxyProtocolOption = (proxyProtocolOption == null)
             ? ProxyProtocolOption.DISABLED : proxyProtocolOption;
@@ -110,39 +129,120 @@ public class HttpDecoder {
         }
     }
 
-    private void createRequest(String sb) throws ProtocolException {
-        int aStart;
-        int aEnd;
-        int bStart;
-        int bEnd;
-        int cStart;
-        int cEnd;
+    private static boolean isWhitespace(byte b) {
+        // as Character.isWhitespace, for ASCII
+        return b == ' ' || (b >= 9 && b <= 13) || (b >= 28 && b <= 31);
+    }
 
-        aStart = findNonWhitespace(sb, 0);
-        aEnd = findWhitespace(sb, aStart);
+    private static int findNonWhitespace(byte[] b, int offset, int end) {
+        while (offset < end && isWhitespace(b[offset])) {
+            offset++;
+        }
+        return offset;
+    }
 
-        bStart = findNonWhitespace(sb, aEnd);
-        bEnd = findWhitespace(sb, bStart);
+    private static int findWhitespace(byte[] b, int offset, int end) {
+        while (offset < end && !isWhitespace(b[offset])) {
+            offset++;
+        }
+        return offset;
+    }
 
-        cStart = findNonWhitespace(sb, bEnd);
-        cEnd = findEndOfString(sb, cStart);
+    private static int findEndOfString(byte[] b, int offset, int end) {
+        while (end > offset && isWhitespace(b[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean equals(byte[] b, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (b[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // b[start, end): decoded as the whole line used to be, the cheaper way for ASCII
+    private static String string(byte[] b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (b[i] < 0) {
+                return new String(b, start, end - start);
+            }
+        }
+        return new String(b, start, end - start, ISO_8859_1);
+    }
+
+    private void createRequest(byte[] line, int length) throws ProtocolException {
+        int aStart = findNonWhitespace(line, 0, length);
+        int aEnd = findWhitespace(line, aStart, length);
+
+        int bStart = findNonWhitespace(line, aEnd, length);
+        int bEnd = findWhitespace(line, bStart, length);
+
+        int cStart = findNonWhitespace(line, bEnd, length);
+        int cEnd = findEndOfString(line, cStart, length);
 
         if (cStart < cEnd) {
-            try {
-                HttpMethod method = HttpMethod.valueOf(sb.substring(aStart, aEnd).toUpperCase());
-                HttpVersion version = HTTP_1_1;
-                if ("HTTP/1.0".equals(sb.substring(cStart, cEnd))) {
-                    version = HTTP_1_0;
-                }
-                request = new HttpRequest(method, sb.substring(bStart, bEnd), version);
-            } catch (Exception e) {
+            HttpMethod method = HttpMethod.match(line, aStart, aEnd);
+            if (method == null) {
                 throw new ProtocolException("method not understand");
             }
+            HttpVersion version = HTTP_1_1;
+            if (equals(line, cStart, cEnd, HTTP_1_0_BYTES)) {
+                version = HTTP_1_0;
+            }
+            request = new HttpRequest(method, string(line, bStart, bEnd), version);
         } else {
             throw new ProtocolException("not http?");
         }
     }
 
+    // as HttpUtils.splitAndAddHeader, from the bytes of the line
+    private void addHeader(byte[] line, int length) {
+        int nameStart = findNonWhitespace(line, 0, length);
+        int nameEnd;
+        int hash = 0;
+        boolean ascii = true;
+        for (nameEnd = nameStart; nameEnd < length; nameEnd++) {
+            byte b = line[nameEnd];
+            if (b == ':' || isWhitespace(b)) {
+                break;
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+                line[nameEnd] = b;
+            }
+            ascii &= b >= 0;
+            hash = 31 * hash + b;
+        }
+
+        int colonEnd;
+        for (colonEnd = nameEnd; colonEnd < length; colonEnd++) {
+            if (line[colonEnd] == ':') {
+                colonEnd++;
+                break;
+            }
+        }
+
+        int valueStart = findNonWhitespace(line, colonEnd, length);
+        int valueEnd = findEndOfString(line, valueStart, length);
+
+        String key = ascii ? HeaderNames.of(line, nameStart, nameEnd, hash)
+                : new String(line, nameStart, nameEnd - nameStart).toLowerCase();
+        String value = string(line, valueStart, valueEnd);
+        Object v = headers.get(key);
+        if (v != null) {
+            // https://github.com/http-kit/http-kit/issues/108
+            value = v.toString() + "\n" + value;
+        }
+        headers.put(key, value);
+    }
+
     public boolean requiresContinue() {
 	if (request == null || request.version != HTTP_1_1 || request.sentContinue) {
 	    return false;
@@ -159,13 +259,16 @@ public class HttpDecoder {
     public HttpRequest decode(ByteBuffer buffer) throws LineTooLargeException,
             ProtocolException, RequestTooLargeException {
         String line;
+        int length;
+        streamFull = false;
         while (buffer.hasRemaining()) {
             switch (state) {
                 case ALL_READ:
                     return request;
                 case CONNECTION_OPEN:
-                    line = lineReader.readLine(buffer);
-                    if (line != null) {
+                    length = lineReader.read(buffer);
+                    if (length >= 0) {
+                        line = new String(lineReader.bytes(), 0, length);
                         // parseProxyLines returns true if the line parsed
                         // false if it was not a PROXY line
                         // or throws ProtocolException, if the PROXY line is malformed or unsupported.
@@ -175,7 +278,7 @@ public class HttpDecoder {
                         } else if (proxyProtocolOption == ProxyProtocolOption.OPTIONAL) {
                             // did not parse as a proxy header, try to create a request from it
                             // as the READ_INITIAL state would.
-                            createRequest(line);
+                            createRequest(lineReader.bytes(), length);
                             state = State.READ_HEADER;
                         } else {
                             throw new ProtocolException("Expected PROXY header, got: "+line);
@@ -183,14 +286,17 @@ public class HttpDecoder {
                     }
                     break;
                 case READ_INITIAL:
-                    line = lineReader.readLine(buffer);
-                    if (line != null) {
-                        createRequest(line);
+                    length = lineReader.read(buffer);
+                    if (length >= 0) {
+                        createRequest(lineReader.bytes(), length);
                         state = State.READ_HEADER;
                     }
                     break;
                 case READ_HEADER:
                     readHeaders(buffer);
+                    if (stream != null) {
+                        return request; // dispatch now
+                    }
                     break;
                 case READ_CHUNK_SIZE:
                     line = lineReader.readLine(buffer);
@@ -200,11 +306,14 @@ public class HttpDecoder {
                             state = State.READ_CHUNK_FOOTER;
                         } else {
                             throwIfBodyIsTooLarge();
-                            if (content == null) {
-                                content = new byte[readRemaining];
+                            if (stream != null) {
+                                // nothing to allocate
+                            } else if (content == null) {
+                                content = new byte[(int) readRemaining];
                             } else if (content.length < readCount + readRemaining) {
                                 // *1.3 to protect slow client
-                                int newLength = (int) ((readRemaining + readCount) * 1.3);
+                                int newLength = (int) Math.min((readRemaining + readCount) * 1.3,
+                                        maxBody);
                                 content = Arrays.copyOf(content, newLength);
                             }
                             state = State.READ_CHUNKED_CONTENT;
@@ -212,13 +321,17 @@ public class HttpDecoder {
                     }
                     break;
                 case READ_FIXED_LENGTH_CONTENT:
-                    readFixedLength(buffer);
+                    if (!readContent(buffer)) {
+                        return null;
+                    }
                     if (readRemaining == 0) {
                         finish();
                     }
                     break;
                 case READ_CHUNKED_CONTENT:
-                    readFixedLength(buffer);
+                    if (!readContent(buffer)) {
+                        return null;
+                    }
                     if (readRemaining == 0) {
                         state = State.READ_CHUNK_DELIMITER;
                     }
@@ -237,8 +350,81 @@ public class HttpDecoder {
     }
 
     private void finish() {
-        state = State.ALL_READ;
-        request.setBody(content, readCount);
+        if (stream != null) {
+            // the request is already dispatched: go on with the next one
+            stream.finish();
+            reset();
+        } else {
+            state = State.ALL_READ;
+            request.setBody(content, (int) readCount);
+        }
+    }
+
+    // false if the body stream is full and nothing could be read
+    private boolean readContent(ByteBuffer buffer) {
+        if (stream == null) {
+            readFixedLength(buffer);
+            return true;
+        }
+        int n = stream.offer(buffer, readRemaining);
+        readRemaining -= n;
+        readCount += n;
+        streamFull = n == 0;
+        return !streamFull;
+    }
+
+    /**
+     * The request is dispatched and its body is still being received
+     */
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    /**
+     * decode stopped because the handler is not reading the body fast enough
+     */
+    public boolean isStreamFull() {
+        return streamFull;
+    }
+
+    /**
+     * Between two requests
+     */
+    public boolean isIdle() {
+        return state == State.READ_INITIAL;
+    }
+
+    /**
+     * Part of a request line or headers read, the rest is to come
+     */
+    public boolean isReadingHead() {
+        return state == State.READ_HEADER || ((state == State.READ_INITIAL
+                || state == State.CONNECTION_OPEN) && !lineReader.isEmpty());
+    }
+
+    /**
+     * Part of a request body read (dispatched if streaming), the rest is to come
+     */
+    public boolean isReadingBody() {
+        switch (state) {
+            case READ_FIXED_LENGTH_CONTENT:
+            case READ_CHUNK_SIZE:
+            case READ_CHUNKED_CONTENT:
+            case READ_CHUNK_FOOTER:
+            case READ_CHUNK_DELIMITER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The connection is gone: wake up the handler reading the body
+     */
+    public void abort(IOException e) {
+        if (stream != null) {
+            stream.fail(e);
+        }
     }
 
     void readEmptyLine(ByteBuffer buffer) {
@@ -249,8 +435,8 @@ public class HttpDecoder {
     }
 
     void readFixedLength(ByteBuffer buffer) {
-        int toRead = Math.min(buffer.remaining(), readRemaining);
-        buffer.get(content, readCount, toRead);
+        int toRead = (int) Math.min(buffer.remaining(), readRemaining);
+        buffer.get(content, (int) readCount, toRead);
         readRemaining -= toRead;
         readCount += toRead;
     }
@@ -263,29 +449,41 @@ public class HttpDecoder {
             headers.put("x-forwarded-proto", xForwardedProto);
             headers.put("x-forwarded-port", xForwardedPort);
         }
-        String line = lineReader.readLine(buffer);
-        while (line != null && !line.isEmpty()) {
-            HttpUtils.splitAndAddHeader(line, headers);
-            line = lineReader.readLine(buffer);
+        int length = lineReader.read(buffer);
+        while (length > 0) {
+            addHeader(lineReader.bytes(), length);
+            length = lineReader.read(buffer);
         }
 
-        if (line == null) {
+        if (length < 0) {
             return;
         }
 
         request.setHeaders(headers);
+        if (timed) {
+            request.headersTime = System.nanoTime();
+        }
 
         String te = HttpUtils.getStringValue(headers, TRANSFER_ENCODING);
         if (CHUNKED.equals(te)) {
             state = State.READ_CHUNK_SIZE;
+            if (streamBody) {
+                stream = new BodyInputStream();
+                request.setBodyStream(stream, -1);
+            }
         } else {
             String cl = HttpUtils.getStringValue(headers, CONTENT_LENGTH);
             if (cl != null) {
                 try {
-                    readRemaining = Integer.parseInt(cl);
+                    readRemaining = streamBody ? Long.parseLong(cl) : Integer.parseInt(cl);
                     if (readRemaining > 0) {
                         throwIfBodyIsTooLarge();
-                        content = new byte[readRemaining];
+                        if (streamBody) {
+                            stream = new BodyInputStream();
+                            request.setBodyStream(stream, readRemaining);
+                        } else {
+                            content = new byte[(int) readRemaining];
+                        }
                         state = State.READ_FIXED_LENGTH_CONTENT;
                     } else {
                         state = State.ALL_READ;
@@ -304,6 +502,7 @@ public class HttpDecoder {
         headers = new TreeMap<String, Object>();
         readCount = 0;
         content = null;
+        stream = null;
         lineReader.reset();
         request = null;
     }
@@ -5,6 +5,7 @@ import org.httpkit.*;
 import java.io.InputStream;
 import java.net.SocketAddress;
 import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static org.httpkit.HttpUtils.*;
@@ -17,12 +18,15 @@ public class HttpRequest {
     public final HttpVersion version;
 
     private byte[] body;
+    private BodyInputStream bodyStream;
 
     // package visible
     int serverPort = 80;
+    boolean portInHost = false;
+    boolean isSecure = false; // TLS
     String serverName;
     Map<String, Object> headers;
-    int contentLength = 0;
+    long contentLength = 0; // -1: unknown, the body is streamed chunked
     String contentType;
     String charset = "utf8";
     boolean isKeepAlive = false;
@@ -30,8 +34,21 @@ public class HttpRequest {
     long startTime;
     boolean sentContinue = false;
 
+    // phases, System.nanoTime() stamps, 0 until reached. Only if timed, HTTP/1 (HttpServer.setTimings)
+    boolean timed = false;
+    long firstByteTime;
+    long headersTime;
+    long handlerTime;
+    long responseTime;
+    volatile long lastByteTime;
+    Object lastSegment; // of the response, the last enqueued to the connection's toWrites
+    int status; // of the response
+    long responseBytes; // handed to the connection, head included
+
     SocketAddress remoteAddr;
     AsyncChannel channel;
+    ResponseSlot slot; // position of the response in the connection's pipeline
+    Http2Stream stream; // HTTP/2: the stream the request came on, null for HTTP/1
 
     public HttpRequest(HttpMethod method, String url, HttpVersion version) {
         this.method = method;
@@ -50,9 +67,47 @@ public class HttpRequest {
         this.startTime = time;
     }
 
+    /**
+     * @return when the request was handed to the handler (dispatched), System.nanoTime()
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * The phases of a timed request reached so far, by name, in order: first-byte,
+     * headers (complete), dispatch, handler-start, response (ready), last-byte (written).
+     * System.nanoTime() stamps. Empty if the server does not time requests.
+     */
+    public Map<String, Long> getTimings() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        if (timed) {
+            put(m, "first-byte", firstByteTime);
+            put(m, "headers", headersTime);
+            put(m, "dispatch", startTime);
+            put(m, "handler-start", handlerTime);
+            put(m, "response", responseTime);
+            put(m, "last-byte", lastByteTime);
+        }
+        return m;
+    }
+
+    private static void put(Map<String, Long> m, String phase, long time) {
+        if (time != 0) {
+            m.put(phase, time);
+        }
+    }
+
+    public boolean isTimed() {
+        return timed;
+    }
+
     public InputStream getBody() {
+        if (bodyStream != null) {
+            return bodyStream;
+        }
         if (body != null) {
-            return new BytesInputStream(body, contentLength);
+            return new BytesInputStream(body, (int) contentLength);
         }
         return null;
     }
@@ -77,11 +132,80 @@ public class HttpRequest {
         }
     }
 
+    /**
+     * @param name lowercase. Repeated headers are joined with \n
+     */
+    public String getHeader(String name) {
+        return getStringValue(headers, name);
+    }
+
+    /**
+     * Names are lowercase, not to be modified
+     */
+    public Map<String, Object> getHeaders() {
+        return headers;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public boolean isSecure() {
+        return isSecure;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return -1 if unknown: streamed chunked
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    public boolean isKeepAlive() {
+        return isKeepAlive;
+    }
+
+    /**
+     * The client closed the connection: a long running handler may stop, nobody will read
+     * the response
+     */
+    public boolean isAbandoned() {
+        return channel != null && (channel.isClientClosed() || channel.isClosed());
+    }
+
     public void setBody(byte[] body, int count) {
         this.body = body;
         this.contentLength = count;
     }
 
+    void setSecure() {
+        isSecure = true;
+        if (!portInHost) {
+            serverPort = 443;
+        }
+    }
+
+    void setBodyStream(BodyInputStream stream, long length) {
+        this.bodyStream = stream;
+        this.contentLength = length;
+    }
+
+    BodyInputStream getBodyStream() {
+        return bodyStream;
+    }
+
     public void setHeaders(Map<String, Object> headers) throws ProtocolException {
         String h = getStringValue(headers, "host");
         if (h != null && !h.equals("")) {
@@ -96,6 +220,7 @@ public class HttpRequest {
                 if (!serverPortCandidate.isEmpty()) {
                     try {
                         serverPort = Integer.parseInt(serverPortCandidate);
+                        portInHost = true;
                     } catch (NumberFormatException e) {
                         throw new ProtocolException("Invalid host header (bad port): " + h);
                     }
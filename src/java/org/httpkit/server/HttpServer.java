@@ -3,6 +3,7 @@ package org.httpkit.server;
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.httpkit.HttpUtils.ASCII;
 import static org.httpkit.HttpUtils.HttpEncode;
 import static org.httpkit.HttpUtils.WsEncode;
 import static org.httpkit.server.Frame.CloseFrame.CLOSE_AWAY;
@@ -15,68 +16,102 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
 
 import org.httpkit.HeaderMap;
 import org.httpkit.LineTooLargeException;
+import org.httpkit.PrefixThreadFactory;
 import org.httpkit.ProtocolException;
 import org.httpkit.RequestTooLargeException;
+import org.httpkit.jfr.FlightEvents;
 import org.httpkit.logger.ContextLogger;
 import org.httpkit.logger.EventNames;
 import org.httpkit.logger.EventLogger;
+import org.httpkit.metrics.CountersFile;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.Metrics;
 import org.httpkit.server.Frame.BinaryFrame;
 import org.httpkit.server.Frame.CloseFrame;
 import org.httpkit.server.Frame.PingFrame;
 import org.httpkit.server.Frame.PongFrame;
 import org.httpkit.server.Frame.TextFrame;
 
-class PendingKey {
-    public final SelectionKey key;
-    // operation: can be register for write or close the selectionkey
-    public final int Op;
-
-    PendingKey(SelectionKey key, int op) {
-        this.key = key;
-        Op = op;
-    }
-
-    public static final int OP_WRITE = -1;
-}
-
 public class HttpServer implements Runnable {
 
     static final String THREAD_NAME = "server-loop";
 
+    // to connections over the max, encoded once: no Date
+    private static final byte[] REJECTION = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII);
+
     private final IHandler handler;
-    private final int maxBody; // max http body size
+    private long maxBody; // max http body size
     private final int maxLine; // max header line size
 
     private final int maxWs; // websocket, max message size
 
-    private final Selector selector;
+    private final IOLoop acceptLoop;
+    // acceptLoop only, unless more than one io thread is configured
+    private IOLoop[] ioLoops;
+    private int nextLoop = 0; // round-robin, accept thread only
+    private int ioThreads = 1;
+    private String threadName = THREAD_NAME;
+    private HttpServer admin; // null: none
+    private int maxPipeline = 16; // max requests in flight per connection
+    private boolean streamBody = false; // dispatch requests before their body is received
+
+    private SSLContext sslContext; // null: plaintext
+    private String[] applicationProtocols; // offered by ALPN
+    private boolean http2 = false; // h2c (prior knowledge, Upgrade), h2 on ALPN
+    private ExecutorService sslTasks; // runs handshake delegated tasks, off the IO threads
+
+    // ms, 0: none. Enforced by the IO loops, see TimerWheel
+    private long idleTimeout = 0;
+    private long headerTimeout = 0;
+    private long bodyTimeout = 0;
+    private long writeTimeout = 0;
+    private long writeStall; // writeTimeout, else idleTimeout; by start()
+    private long timeoutCheck; // the shortest: busy connections are checked again after it
+
     private final ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private int backlog = 0; // 0: the JDK default
+
+    private int maxConnections = 0; // 0: no limit
+    private boolean rejectConnections = false; // at the max: 503 and close, not stop accepting
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicBoolean acceptPaused = new AtomicBoolean(false);
 
     private final ProxyProtocolOption proxyProtocolOption;
 
     public final String serverHeader;
     private final SocketAddress socketAddress;
 
-    private Thread serverThread;
-
-    // queue operations from worker threads to the IO thread
-    private final ConcurrentLinkedQueue<PendingKey> pending = new ConcurrentLinkedQueue<PendingKey>();
-
     private final ConcurrentHashMap<SelectionKey, Boolean> keptAlive = new ConcurrentHashMap<SelectionKey, Boolean>();
 
     enum Status { STOPPED, RUNNING, STOPPING }
@@ -84,9 +119,6 @@ public class HttpServer implements Runnable {
     // Will not set keep-alive headers when STOPPING, allowing reqs to drain
     private final AtomicReference<Status> status = new AtomicReference<Status> (Status.STOPPED);
 
-    // shared, single thread
-    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64 - 1);
-
     private final ContextLogger<String, Throwable> errorLogger;
     private final ContextLogger<String, Throwable> warnLogger;
     private final EventLogger<String> eventLogger;
@@ -130,15 +162,13 @@ public class HttpServer implements Runnable {
         this.proxyProtocolOption = proxyProtocolOption;
         this.serverHeader = serverHeader;
 
-        this.selector = Selector.open();
+        this.acceptLoop = new IOLoop(THREAD_NAME);
+        this.ioLoops = new IOLoop[]{acceptLoop};
         this.serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
         this.socketAddress = new InetSocketAddress(ip, port);
-        serverChannel.socket().bind(socketAddress);
-        serverChannel.register(selector, OP_ACCEPT);
     }
 
-
     public HttpServer (AddressFinder addressFinder, ServerChannelFactory channelFactory, IHandler handler, int maxBody, int maxLine, int maxWs,
         ProxyProtocolOption proxyProtocolOption,
         String serverHeader,
@@ -159,20 +189,351 @@ public class HttpServer implements Runnable {
             this.socketAddress = addressFinder.findAddress();
             this.serverChannel = channelFactory.createChannel(socketAddress);
             serverChannel.configureBlocking(false);
-            this.selector = Selector.open();
-            serverChannel.bind(socketAddress);
-            serverChannel.register(selector, OP_ACCEPT);
+            this.acceptLoop = new IOLoop(THREAD_NAME);
+            this.ioLoops = new IOLoop[]{acceptLoop};
+    }
+
+    /**
+     * Sets the number of selector threads doing connection IO (read, decode, write).
+     * With 1 (the default) a single "server-loop" thread accepts and serves every connection.
+     * With n > 1 the "server-loop" thread only accepts, handing connections round-robin
+     * to n "server-loop-i" threads. Must be called before {@link #start()}.
+     */
+    public void setIoThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("io threads should be >= 1, got " + n);
+        }
+        this.ioThreads = n;
+    }
+
+    /**
+     * Names the IO threads: name, name-1... (default: "server-loop").
+     * Must be called before {@link #start()}.
+     */
+    public void setThreadName(String name) {
+        this.threadName = name;
+    }
+
+    /**
+     * Sets the max number of pipelined requests a connection may have in flight.
+     * Reading from the connection pauses at this depth, until a response is written.
+     */
+    public void setMaxPipeline(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("max pipeline should be >= 1, got " + n);
+        }
+        this.maxPipeline = n;
+    }
+
+    /**
+     * Dispatches requests as soon as their headers are read, the handler reading the body
+     * from an InputStream fed while it arrives. Reading from the connection pauses when the
+     * handler falls behind. Must be called before {@link #start()}.
+     */
+    public void setStreamBody(boolean streamBody) {
+        this.streamBody = streamBody;
+    }
+
+    /**
+     * Sets the max request body size. Above 2GB, only applies to streamed bodies,
+     * see {@link #setStreamBody(boolean)}. Must be called before {@link #start()}.
+     */
+    public void setMaxBody(long maxBody) {
+        if (maxBody < 0) {
+            throw new IllegalArgumentException("max body should be >= 0, got " + maxBody);
+        }
+        this.maxBody = maxBody;
+    }
+
+    /**
+     * Serves HTTPS: every connection is TLS, wrapped and unwrapped by the IO threads.
+     * Handshake delegated tasks (key exchange, certificate checks) run on a separate
+     * pool. Must be called before {@link #start()}.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Sets the protocols offered by TLS ALPN, most preferred first. Ignored on JDKs
+     * without ALPN. Must be called before {@link #start()}.
+     */
+    public void setApplicationProtocols(String... protocols) {
+        this.applicationProtocols = protocols;
+    }
+
+    /**
+     * Serves HTTP/2 as well: h2c with prior knowledge or an Upgrade: h2c, and h2 when
+     * selected by TLS ALPN (offered by default). Each stream is dispatched as a request.
+     * Must be called before {@link #start()}.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    /**
+     * Closes connections with no request being read or answered for ms: kept alive
+     * between requests, or opened and nothing sent. Used for the headers or a body
+     * not timed by their own timeout. WebSockets are not timed out. 0 (the default):
+     * never. Must be called before {@link #start()}.
+     */
+    public void setIdleTimeout(long ms) {
+        this.idleTimeout = timeout("idle", ms);
+    }
+
+    /**
+     * Answers 408 and closes the connection if a request line and headers are not
+     * received ms after their first byte. 0 (the default): no limit. Must be called
+     * before {@link #start()}.
+     */
+    public void setHeaderTimeout(long ms) {
+        this.headerTimeout = timeout("header", ms);
+    }
+
+    /**
+     * Answers 408 (if nothing is in flight) and closes the connection if no byte of a
+     * request body is received for ms, unless reading is paused for the handler. Also
+     * applies to HTTP/2 streams. 0 (the default): no limit. Must be called before
+     * {@link #start()}.
+     */
+    public void setBodyTimeout(long ms) {
+        this.bodyTimeout = timeout("body", ms);
+    }
+
+    /**
+     * Closes the connection if a response waiting to be written is not taken by the
+     * client for ms: one not reading keeps no fd, decoder and response. Also applies to
+     * HTTP/2. 0 (the default): the idle timeout. Must be called before {@link #start()}.
+     */
+    public void setWriteTimeout(long ms) {
+        this.writeTimeout = timeout("write", ms);
+    }
+
+    private static long timeout(String name, long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException(name + " timeout should be >= 0, got " + ms);
+        }
+        return ms;
+    }
+
+    /**
+     * Sets the listen backlog: connections the OS queues until accepted. 0 (the
+     * default): the JDK's. Must be called before {@link #start()}, which binds.
+     */
+    public void setBacklog(int backlog) {
+        if (backlog < 0) {
+            throw new IllegalArgumentException("backlog should be >= 0, got " + backlog);
+        }
+        this.backlog = backlog;
+    }
+
+    /**
+     * Sets the max open connections. At the max, the server stops accepting until one
+     * is closed: new connections wait in the listen backlog. 0 (the default): no limit.
+     * Must be called before {@link #start()}.
+     */
+    public void setMaxConnections(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max connections should be >= 0, got " + max);
+        }
+        this.maxConnections = max;
+    }
+
+    /**
+     * At the max connections, accept and close new connections right away, after a 503
+     * (plaintext only), instead of leaving them in the listen backlog.
+     */
+    public void setRejectConnections(boolean reject) {
+        this.rejectConnections = reject;
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    volatile ServerMetrics metrics; // null: not recorded
+
+    private Metrics registry;
+    private final Map<String, Gauge> gauges = new HashMap<String, Gauge>(); // in registry
+
+    /**
+     * Records the server's metrics in m: see ServerMetrics for the histograms and counters.
+     * Gauges: server.connections, server.queued-bytes (of responses not written yet),
+     * server.pool.queued and server.pool.active (of a RingHandler's executor), unregistered
+     * once stopped: m can't be given to another running server.
+     * Must be called before {@link #start()}.
+     */
+    public void setMetrics(Metrics m) {
+        final ServerMetrics sm = new ServerMetrics(m);
+        gauges.put("server.connections", new Gauge() {
+            public long value() {
+                return connections.get();
+            }
+        });
+        gauges.put("server.queued-bytes", new Gauge() {
+            public long value() {
+                return sm.queuedBytes.sum();
+            }
+        });
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            m.gauge(e.getKey(), e.getValue());
+        }
+        if (handler instanceof RingHandler) {
+            ((RingHandler) handler).setMetrics(m, sm);
+        }
+        this.registry = m;
+        this.metrics = sm;
+    }
+
+    /**
+     * @return the registry given to {@link #setMetrics}, null if none
+     */
+    public Metrics getMetrics() {
+        return registry;
+    }
+
+    /**
+     * Serves admin on its own listener, with its own IO thread (named by its
+     * {@link #setThreadName}, e.g. "server-loop-admin") and handler: health checks and
+     * metrics scrapes are answered when this server's workers are all busy, its queue full.
+     * admin is started and stopped with this server, stopped once this one's requests are
+     * done. Must be called before {@link #start()}.
+     */
+    public void setAdmin(HttpServer admin) {
+        this.admin = admin;
+    }
+
+    /**
+     * @return the server given to {@link #setAdmin}, null if none
+     */
+    public HttpServer getAdmin() {
+        return admin;
+    }
+
+    private volatile CountersFile countersFile;
+
+    /**
+     * Publishes the registry's values to a memory-mapped file, see CountersFile. It is
+     * closed once the server is stopped.
+     */
+    public void setCountersFile(CountersFile file) {
+        this.countersFile = file;
+    }
+
+    /**
+     * @return the file given to {@link #setCountersFile}, null if none
+     */
+    public CountersFile getCountersFile() {
+        return countersFile;
+    }
+
+    volatile ServerTimings timings; // null: requests not timed
+
+    private ServerTimings timings() {
+        if (timings == null) {
+            ServerTimings t = new ServerTimings();
+            t.warnLogger = warnLogger;
+            timings = t;
+        }
+        return timings;
+    }
+
+    /**
+     * Stamps the phases of HTTP/1 requests: first byte read, headers read, dispatch,
+     * handler start, response ready, last byte written. See {@link HttpRequest#getTimings()},
+     * :timings of ring requests. Must be called before {@link #start()}, as the ones below.
+     */
+    public void setTimings(boolean timed) {
+        if (timed) {
+            timings();
+        } else {
+            timings = null;
+        }
+    }
+
+    /**
+     * Responses get a Server-Timing header of the phases of their request, in ms: headers,
+     * body, queue, handler. Times requests.
+     */
+    public void setServerTiming(boolean serverTiming) {
+        timings().serverTiming = serverTiming;
+    }
+
+    /**
+     * Writes a line per HTTP/1 request to log once its response is written, see AccessLog.
+     * Times requests. The log is closed once the server is stopped.
+     */
+    public void setAccessLog(AccessLog log) {
+        log.errorLogger = errorLogger;
+        timings().accessLog = log;
+    }
+
+    /**
+     * @return the log given to {@link #setAccessLog}, null if none
+     */
+    public AccessLog getAccessLog() {
+        ServerTimings t = timings;
+        return t == null ? null : t.accessLog;
+    }
+
+    /**
+     * Requests taking longer than thresholdMs, from first byte read to last byte written,
+     * are given to logger: a fraction sample of them (1: all). Times requests.
+     *
+     * @param logger null to log them with the phases to the warn logger
+     */
+    public void setSlowRequests(long thresholdMs, double sample, SlowRequestLogger logger) {
+        ServerTimings t = timings();
+        t.slowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMs));
+        t.sample = sample;
+        t.slowLogger = logger;
+    }
+
+    // ms, monotonic
+    static long now() {
+        return System.nanoTime() / 1000000;
     }
 
     void accept(SelectionKey key) {
         ServerSocketChannel ch = (ServerSocketChannel) key.channel();
         SocketChannel s;
         try {
-            while ((s = ch.accept()) != null) {
+            while (true) {
+                boolean full = maxConnections > 0 && connections.get() >= maxConnections;
+                if (full && !rejectConnections) {
+                    key.interestOps(0);
+                    acceptPaused.set(true);
+                    // a connection closed before the flag was set did not resume
+                    if (connections.get() >= maxConnections || !acceptPaused.compareAndSet(true, false)) {
+                        eventLogger.log(eventNames.serverConnectionsMax);
+                        return;
+                    }
+                    key.interestOps(OP_ACCEPT);
+                    continue;
+                }
+                if ((s = ch.accept()) == null) {
+                    break;
+                }
+                if (full) {
+                    reject(s);
+                    continue;
+                }
+                connections.incrementAndGet();
+                if (FlightEvents.SERVER_ACCEPT.isEnabled()) {
+                    FlightEvents.SERVER_ACCEPT.commit(null, String.valueOf(s.getRemoteAddress()));
+                }
                 s.configureBlocking(false);
-                HttpAtta atta = new HttpAtta(maxBody, maxLine, proxyProtocolOption);
-                SelectionKey k = s.register(selector, OP_READ, atta);
-                atta.channel = new AsyncChannel(k, this);
+                IOLoop loop = ioLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % ioLoops.length;
+                if (loop == acceptLoop) {
+                    register(loop, s);
+                } else {
+                    loop.accepted.add(s);
+                    loop.wakeup();
+                }
             }
         } catch (Exception e) {
             // eg: too many open files. do not quit
@@ -181,28 +542,267 @@ public class HttpServer implements Runnable {
         }
     }
 
+    // accept thread: at the max connections, a 503 if it fits in the socket buffer
+    private void reject(SocketChannel s) {
+        eventLogger.log(eventNames.serverConnectionsMax);
+        try {
+            if (sslContext == null) {
+                s.configureBlocking(false);
+                s.write(ByteBuffer.wrap(REJECTION));
+            }
+        } catch (IOException ignore) {
+        }
+        closeAndWarn(s);
+    }
+
+    // any thread: accepting resumes if it was paused at the max
+    private void connectionClosed() {
+        if (connections.decrementAndGet() < maxConnections && acceptPaused.get()
+                && acceptPaused.compareAndSet(true, false)) {
+            acceptLoop.pending.add(new PendingKey(acceptKey, PendingKey.OP_ACCEPT));
+            acceptLoop.wakeup();
+        }
+    }
+
+    // in the IO thread of the given loop
+    private void register(IOLoop loop, SocketChannel s) throws IOException {
+        HttpAtta atta = new HttpAtta(maxBody, maxLine, proxyProtocolOption, streamBody);
+        atta.loop = loop;
+        if (sslContext != null) {
+            String[] protocols = applicationProtocols;
+            if (protocols == null && http2) {
+                protocols = new String[]{"h2", "http/1.1"};
+            }
+            atta.ssl = new SslConnection(sslContext, protocols);
+        }
+        SelectionKey k = s.register(loop.selector, OP_READ, atta);
+        atta.channel = new AsyncChannel(k, this);
+        atta.lastRead = atta.lastWrite = loop.now;
+        if (loop.timeouts != null) {
+            loop.timeouts.add(k, loop.now + timeoutCheck);
+        }
+    }
+
+    // IO thread: closes the connections timed out, puts the others back in the wheel
+    private void expireTimeouts(IOLoop loop) {
+        loop.timeouts.expire(loop.now, loop.due);
+        for (SelectionKey key : loop.due) {
+            if (key.isValid() && key.attachment() instanceof ServerAtta) {
+                checkTimeout(loop, key, (ServerAtta) key.attachment());
+            }
+        }
+        loop.due.clear();
+    }
+
+    private void checkTimeout(IOLoop loop, SelectionKey key, ServerAtta atta) {
+        long deadline = 0; // 0: busy, check again later
+        String event = eventNames.serverTimeoutIdle;
+        boolean reading = false; // a request: answered 408
+        boolean inflight = false;
+        long lastActive = Math.max(atta.lastRead, atta.lastWrite);
+        if (atta instanceof HttpAtta) {
+            HttpAtta http = (HttpAtta) atta;
+            boolean paused;
+            long stalled; // since, 0: nothing left to write
+            synchronized (http) {
+                // paused: waiting for the handler, not the client
+                paused = http.readPaused;
+                stalled = http.toWrites.isEmpty() ? 0 : http.lastWrite;
+                inflight = !http.slots.isEmpty();
+            }
+            if (stalled != 0) {
+                if (writeStall > 0) { // the client is not reading
+                    deadline = stalled + writeStall;
+                    event = eventNames.serverTimeoutWrite;
+                }
+            } else if (paused) {
+                // checked again later
+            } else if (bodyTimeout > 0 && http.decoder.isReadingBody()) {
+                deadline = atta.lastRead + bodyTimeout;
+                event = eventNames.serverTimeoutBody;
+                reading = true;
+            } else if (headerTimeout > 0 && http.decoder.isReadingHead()) {
+                deadline = http.requestStart + headerTimeout;
+                event = eventNames.serverTimeoutHeader;
+                reading = true;
+            } else if (idleTimeout > 0 && !inflight) {
+                deadline = lastActive + idleTimeout;
+            }
+        } else if (atta instanceof Http2Atta) {
+            Http2Connection conn = ((Http2Atta) atta).conn;
+            long stalled;
+            synchronized (atta) {
+                stalled = atta.toWrites.isEmpty() ? 0 : atta.lastWrite;
+            }
+            if (stalled != 0) {
+                if (writeStall > 0) {
+                    deadline = stalled + writeStall;
+                    event = eventNames.serverTimeoutWrite;
+                }
+            } else if (bodyTimeout > 0 && conn.isReceiving()) {
+                deadline = atta.lastRead + bodyTimeout;
+                event = eventNames.serverTimeoutBody;
+            } else if (idleTimeout > 0 && conn.isIdle()) {
+                deadline = lastActive + idleTimeout;
+            }
+        } else {
+            return; // WebSocket: kept until closed, out of the wheel
+        }
+
+        if (deadline == 0) {
+            loop.timeouts.add(key, loop.now + timeoutCheck);
+        } else if (deadline > loop.now) {
+            loop.timeouts.add(key, deadline);
+        } else {
+            eventLogger.log(event);
+            if (reading && !inflight) {
+                HeaderMap headers = new HeaderMap();
+                headers.put("Connection", "close");
+                writeNow(key, atta, HttpEncode(408, headers, null, serverHeader));
+            }
+            closeKey(key, 0);
+        }
+    }
+
+    // IO thread, best effort: what the socket buffer can't take is dropped
+    private static void writeNow(SelectionKey key, ServerAtta atta, ByteBuffer... buffers) {
+        synchronized (atta) {
+            if (atta.toWrites.isEmpty()) {
+                try {
+                    writeSegments(atta, (SocketChannel) key.channel(), buffers);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
     private void closeKey(final SelectionKey key, int status) {
 
         keptAlive.remove(key);
 
-        try {
-            key.channel().close();
-        } catch (Exception ex) {
-            warnLogger.log("failed to close key", ex);
+        SelectableChannel channel = key.channel();
+        ServerAtta att = (ServerAtta) key.attachment();
+        if (att != null && att.ssl != null && channel.isOpen()) {
+            synchronized (att) {
+                att.ssl.close((SocketChannel) channel);
+            }
+        }
+        boolean open;
+        synchronized (channel) { // counted once, if closed concurrently (stop)
+            open = channel.isOpen();
+            try {
+                channel.close();
+            } catch (Exception ex) {
+                warnLogger.log("failed to close key", ex);
+            }
+        }
+        if (open && channel instanceof SocketChannel) {
+            connectionClosed();
         }
 
-        ServerAtta att = (ServerAtta) key.attachment();
+        if (att != null) {
+            synchronized (att) {
+                PooledBuffer.discard(att.toWrites);
+                att.toWrites.clear();
+                ServerMetrics m = metrics;
+                if (m != null) {
+                    queued(m, att, -att.queuedBytes);
+                }
+            }
+        }
         if (att instanceof HttpAtta) {
+            HttpAtta http = (HttpAtta) att;
+            http.decoder.abort(new IOException("connection closed before the request body was received"));
+            AsyncChannel[] inflight;
+            synchronized (http) {
+                inflight = new AsyncChannel[http.slots.size()];
+                int i = 0;
+                for (ResponseSlot slot : http.slots) {
+                    inflight[i++] = slot.channel;
+                    if (slot.held != null) {
+                        PooledBuffer.discard(slot.held);
+                    }
+                }
+                http.slots.clear();
+            }
+            for (AsyncChannel ch : inflight) {
+                if (ch != null && ch != att.channel) {
+                    handler.clientClose(ch, -1);
+                }
+            }
+            handler.clientClose(att.channel, -1);
+        } else if (att instanceof Http2Atta) {
+            for (AsyncChannel ch : ((Http2Atta) att).conn.close()) {
+                handler.clientClose(ch, -1);
+            }
             handler.clientClose(att.channel, -1);
         } else if (att != null) {
             handler.clientClose(att.channel, status);
         }
     }
 
-    private void decodeHttp(HttpAtta atta, SelectionKey key, SocketChannel ch) {
+    private void decodeHttp(HttpAtta atta, SelectionKey key, SocketChannel ch, ByteBuffer buffer) {
         try {
             do {
+                if (!atta.decoder.isReadingHead()) { // for the header timeout
+                    atta.requestStart = atta.lastRead;
+                }
+                if (http2 && atta.decoder.isIdle() && !atta.hasInflight()) {
+                    if (atta.preface != null) {
+                        ByteBuffer b = ByteBuffer.allocate(atta.preface.remaining() + buffer.remaining());
+                        b.put(atta.preface).put(buffer).flip();
+                        buffer = b;
+                        atta.preface = null;
+                    }
+                    int n = Http2Connection.prefaceMatch(buffer);
+                    if (n == Http2Connection.PREFACE.length) { // h2c with prior knowledge
+                        Http2Atta h2 = switchToHttp2(atta, key);
+                        h2.conn.start();
+                        h2.conn.decode(buffer);
+                        return;
+                    }
+                    if (n > 0) { // the preface so far: wait for the rest
+                        atta.preface = ByteBuffer.allocate(n);
+                        atta.preface.put(buffer).flip();
+                        return;
+                    }
+                }
+
+                ServerTimings t = timings;
+                if (t != null) {
+                    atta.decoder.timed = true;
+                    if (atta.firstByte == 0 && !atta.decoder.isStreaming()) {
+                        atta.firstByte = System.nanoTime();
+                    }
+                }
+
+                ServerMetrics m = metrics;
+                boolean jfr = FlightEvents.SERVER_DECODED.isEnabled();
+                long decodeStart = 0;
+                if (m != null || jfr) {
+                    if (atta.decoder.isIdle()) {
+                        atta.decodeNanos = 0;
+                    }
+                    decodeStart = System.nanoTime();
+                }
                 HttpRequest request = atta.decoder.decode(buffer);
+                if (m != null || jfr) {
+                    atta.decodeNanos += System.nanoTime() - decodeStart;
+                    if (request != null && m != null) {
+                        m.decode.record(atta.decodeNanos);
+                        m.requests.increment();
+                    }
+                    if (request != null && jfr) {
+                        FlightEvents.SERVER_DECODED.commit(null, request.method.toString(),
+                                request.uri, atta.decodeNanos);
+                    }
+                }
+
+                if (request != null && http2 && atta.ssl == null && !atta.hasInflight()
+                        && request.getBodyStream() == null && Http2Connection.isUpgrade(request)) {
+                    upgradeH2c(atta, key, request, buffer);
+                    return;
+                }
 
                 if (request != null) {
 
@@ -216,49 +816,190 @@ public class HttpServer implements Runnable {
                     //    [#375] Important to ensure that AsyncChannels (which may be held by users!)
                     //    stay closed once closed, and don't get accidentally reset+reused for
                     //    different logical requests.
+                    //
+                    // 3. If a previous (pipelined) request is still in flight, its channel is
+                    //    busy: create a new channel.
 
                     // Is this reasonable?
-                    AsyncChannel channel = atta.channel.isClosed() ? new AsyncChannel(key, this) : atta.channel;
+                    AsyncChannel channel = atta.channel;
+                    if (channel.isClosed() || atta.hasInflight()) {
+                        channel = new AsyncChannel(key, this);
+                        atta.channel = channel;
+                    }
 
                     if (status.get() != Status.RUNNING) {
                         request.isKeepAlive = false;
                     }
 
+                    BodyInputStream body = request.getBodyStream();
+                    if (body != null && atta.decoder.requiresContinue()) {
+                        // the handler is about to read the body
+                        tryWrite(key, atta.nextSlot(true, null), true, false,
+                                (Object[]) HttpEncode(100, new HeaderMap(), null, serverHeader));
+                        atta.decoder.setSentContinue();
+                    }
+
                     request.setStartTime(System.nanoTime());
+                    request.slot = atta.nextSlot(request.isKeepAlive, channel);
+                    if (t != null) {
+                        request.timed = true;
+                        request.firstByteTime = atta.firstByte;
+                        atta.firstByte = 0;
+                        request.slot.req = request;
+                    }
+                    if (body != null) {
+                        request.slot.body = body;
+                        body.setDrainHandler(new Runnable() {
+                            public void run() {
+                                requestResume(key);
+                            }
+                        });
+                    }
                     channel.reset(request);
 
+                    if (atta.ssl != null) {
+                        request.setSecure();
+                    }
                     if (request.isWebSocket) {
-                        key.attach(new WsAtta(channel, maxWs));
-                    } else {
-                        atta.keepalive = request.isKeepAlive;
+                        WsAtta ws = new WsAtta(channel, maxWs);
+                        ws.ssl = atta.ssl;
+                        ws.loop = atta.loop;
+                        key.attach(ws);
                     }
                     request.channel = channel;
-                    // can't call socket() on anything else
-                    if (socketAddress instanceof InetSocketAddress){
-                        request.remoteAddr = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
-                    }
-                    handler.handle(request, new RespCallback(key, this));
-                    // pipelining not supported : need queue to ensure order
-                    atta.decoder.reset();
+                    request.remoteAddr = remoteAddress(ch);
+                    handler.handle(request, new RespCallback(key, this, request.slot));
+                    // pipelined requests are dispatched concurrently,
+                    // responses are written in request order (ResponseSlot)
+                    if (!atta.decoder.isStreaming()) {
+                        atta.decoder.reset();
+                    } // else the decoder goes on feeding the body, then resets itself
+                } else if (atta.decoder.isStreamFull()) {
+                    // backpressure: stop reading until the handler reads the body
+                    atta.pause();
+                    pauseRead(atta, key, buffer);
+                    return;
                 } else if (atta.decoder.requiresContinue()) {
-                    tryWrite(key, HttpEncode(100, new HeaderMap(), null, serverHeader));
+                    tryWrite(key, atta.nextSlot(true, null), true, false,
+                            (Object[]) HttpEncode(100, new HeaderMap(), null, serverHeader));
                     atta.decoder.setSentContinue();
                 }
+
+                if (atta.decoder.isIdle() && key.attachment() == atta
+                        && atta.pauseIfFull(maxPipeline)) {
+                    // backpressure: stop reading until a response is written
+                    pauseRead(atta, key, buffer);
+                    return;
+                }
             } while (buffer.hasRemaining()); // consume all
         } catch (ProtocolException e) {
             closeKey(key, -1);
         } catch (RequestTooLargeException e) {
-            atta.keepalive = false;
+            atta.decoder.abort(new IOException(e.getMessage()));
             eventLogger.log(eventNames.serverStatus413);
-            tryWrite(key, HttpEncode(413, new HeaderMap(), e.getMessage(), serverHeader));
+            tryWrite(key, atta.nextSlot(false, null), true, false,
+                    (Object[]) HttpEncode(413, new HeaderMap(), e.getMessage(), serverHeader));
         } catch (LineTooLargeException e) {
-            atta.keepalive = false; // close after write
+            // close after write
             eventLogger.log(eventNames.serverStatus414);
-            tryWrite(key, HttpEncode(414, new HeaderMap(), e.getMessage(), serverHeader));
+            tryWrite(key, atta.nextSlot(false, null), true, false,
+                    (Object[]) HttpEncode(414, new HeaderMap(), e.getMessage(), serverHeader));
+        }
+    }
+
+    private SocketAddress remoteAddress(SocketChannel ch) {
+        // can't call socket() on anything else
+        if (socketAddress instanceof InetSocketAddress) {
+            return ch.socket().getRemoteSocketAddress();
+        }
+        return null;
+    }
+
+    // IO thread: the connection goes on as HTTP/2. Nothing is in flight
+    private Http2Atta switchToHttp2(ServerAtta atta, SelectionKey key) {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Http2Atta h2 = new Http2Atta(this, key, handler, maxBody, maxLine, remoteAddress(ch),
+                atta.ssl != null);
+        h2.ssl = atta.ssl;
+        h2.loop = atta.loop;
+        h2.channel = atta.channel;
+        h2.lastRead = atta.lastRead;
+        h2.lastWrite = atta.lastWrite;
+        synchronized (atta) { // e.g. the end of the TLS handshake
+            h2.toWrites.addAll(atta.toWrites);
+            atta.toWrites.clear();
+            h2.queuedBytes = atta.queuedBytes;
+            atta.queuedBytes = 0;
+        }
+        key.attach(h2);
+        return h2;
+    }
+
+    // IO thread: 101, then the request is answered on stream 1 (RFC 7540 3.2)
+    private void upgradeH2c(HttpAtta atta, SelectionKey key, HttpRequest request, ByteBuffer buffer) {
+        Http2Atta h2 = switchToHttp2(atta, key);
+        HeaderMap headers = new HeaderMap();
+        headers.put("Connection", "Upgrade");
+        headers.put("Upgrade", "h2c");
+        tryWrite(key, HttpEncode(101, headers, null));
+        h2.conn.upgrade(request);
+        h2.conn.decode(buffer); // the client preface, maybe more
+    }
+
+    // IO thread, keeps the undecoded bytes until reading resumes
+    private void pauseRead(HttpAtta atta, SelectionKey key, ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            ByteBuffer leftover = ByteBuffer.allocate(buffer.remaining());
+            leftover.put(buffer).flip();
+            atta.leftover = leftover;
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~OP_READ);
         }
     }
 
-    private void decodeWs(WsAtta atta, SelectionKey key) {
+    // any thread: a streamed body was read. Posted even if the IO thread has
+    // not paused yet: it does before running pending keys
+    private void requestResume(SelectionKey key) {
+        if (!(key.attachment() instanceof HttpAtta)) {
+            return;
+        }
+        HttpAtta atta = (HttpAtta) key.attachment();
+        synchronized (atta) {
+            if (!atta.resumePosted) {
+                atta.resumePosted = true;
+                IOLoop loop = atta.loop;
+                loop.pending.add(new PendingKey(key, PendingKey.OP_RESUME));
+                loop.wakeup();
+            }
+        }
+    }
+
+    // IO thread: a response was written, the pipeline has room again,
+    // or the handler read a streamed body
+    private void resumeRead(SelectionKey key, ByteBuffer buffer) {
+        if (!key.isValid() || !(key.attachment() instanceof HttpAtta)) {
+            return;
+        }
+        HttpAtta atta = (HttpAtta) key.attachment();
+        synchronized (atta) {
+            atta.resumePosted = false;
+            atta.readPaused = false;
+        }
+        ByteBuffer leftover = atta.leftover;
+        if (leftover != null) {
+            atta.leftover = null;
+            decodeHttp(atta, key, (SocketChannel) key.channel(), leftover);
+        }
+        if (atta.ssl != null && !atta.readPaused) { // records read, not yet unwrapped
+            unwrapSsl(key, buffer);
+        }
+        if (key.isValid() && !atta.readPaused && (key.interestOps() & OP_WRITE) == 0) {
+            key.interestOps(OP_READ);
+        }
+    }
+
+    private void decodeWs(WsAtta atta, SelectionKey key, ByteBuffer buffer) {
         try {
             do {
                 Frame frame = atta.decoder.decode(buffer);
@@ -295,57 +1036,206 @@ public class HttpServer implements Runnable {
         }
     }
 
-    private void doRead(final SelectionKey key) {
+    private void decode(SelectionKey key, ByteBuffer buffer) {
+        final ServerAtta atta = (ServerAtta) key.attachment();
+        if (atta instanceof HttpAtta) {
+            decodeHttp((HttpAtta) atta, key, (SocketChannel) key.channel(), buffer);
+        } else if (atta instanceof Http2Atta) {
+            ((Http2Atta) atta).conn.decode(buffer);
+        } else {
+            decodeWs((WsAtta) atta, key, buffer);
+        }
+    }
+
+    private void doRead(final SelectionKey key, ByteBuffer buffer) {
         SocketChannel ch = (SocketChannel) key.channel();
         try {
+            SslConnection ssl = ((ServerAtta) key.attachment()).ssl;
+            ServerMetrics m = metrics;
+            if (ssl != null) {
+                int read = ssl.read(ch);
+                if (read == -1) {
+                    closeKey(key, CLOSE_AWAY);
+                } else {
+                    if (m != null) {
+                        m.bytesIn.add(read);
+                    }
+                    unwrapSsl(key, buffer);
+                }
+                return;
+            }
             buffer.clear(); // clear for read
             int read = ch.read(buffer);
             if (read == -1) {
                 // remote entity shut the socket down cleanly.
                 closeKey(key, CLOSE_AWAY);
             } else if (read > 0) {
-                buffer.flip(); // flip for read
-                final ServerAtta atta = (ServerAtta) key.attachment();
-                if (atta instanceof HttpAtta) {
-                    decodeHttp((HttpAtta) atta, key, ch);
-                } else {
-                    decodeWs((WsAtta) atta, key);
+                if (m != null) {
+                    m.bytesIn.add(read);
                 }
+                buffer.flip(); // flip for read
+                decode(key, buffer);
             }
         } catch (IOException e) { // the remote forcibly closed the connection
             closeKey(key, CLOSE_AWAY);
         }
     }
 
-    private void doWrite(SelectionKey key) {
+    // IO thread: handshake, then decode the application data unwrapped
+    private void unwrapSsl(SelectionKey key, ByteBuffer buffer) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        SslConnection ssl = atta.ssl;
+        try {
+            while (key.isValid() && !ssl.taskRunning) {
+                HandshakeStatus hs = ssl.engine.getHandshakeStatus();
+                if (hs == HandshakeStatus.NEED_TASK) {
+                    runSslTasks(key, ssl);
+                    return;
+                }
+                if (hs == HandshakeStatus.NEED_WRAP) {
+                    synchronized (atta) {
+                        write(key, atta, atta.chunkedResponseInprogress, SslConnection.EMPTY);
+                        if (ssl.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                            // the socket is full: wrapped by doWrite, which unwraps again once
+                            // done. Nothing is read meanwhile, netIn would only grow
+                            if (atta.toWrites.isEmpty()) {
+                                atta.toWrites.add(SslConnection.EMPTY);
+                            }
+                            ssl.wrapBlocked = true;
+                            key.interestOps(OP_WRITE);
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                buffer.clear();
+                SSLEngineResult res = ssl.unwrap(buffer);
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    if (!ssl.negotiated) {
+                        ssl.negotiated = true;
+                        negotiated(key, ssl);
+                    }
+                    decode(key, buffer);
+                    atta = (ServerAtta) key.attachment(); // websocket upgrade
+                    if (atta instanceof HttpAtta && ((HttpAtta) atta).readPaused) {
+                        return; // the rest is unwrapped once resumed
+                    }
+                }
+                if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closeKey(key, CLOSE_AWAY);
+                    return;
+                }
+                if (res.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || (res.bytesConsumed() == 0 && res.bytesProduced() == 0
+                        && ssl.engine.getHandshakeStatus() == hs)) {
+                    return; // need more bytes
+                }
+            }
+        } catch (SSLException e) {
+            warnLogger.log("TLS error", e);
+            eventLogger.log(eventNames.serverSslError);
+            closeKey(key, CLOSE_AWAY);
+        }
+    }
+
+    // IO thread, before decoding the first request of a TLS connection:
+    // switches to HTTP/2 if ALPN selected it
+    private void negotiated(SelectionKey key, SslConnection ssl) {
+        if (http2 && "h2".equals(ssl.applicationProtocol())) {
+            switchToHttp2((ServerAtta) key.attachment(), key).conn.start();
+        }
+    }
+
+    private void runSslTasks(final SelectionKey key, final SslConnection ssl) {
+        ssl.taskRunning = true;
+        key.interestOps(key.interestOps() & ~OP_READ);
+        final IOLoop loop = ((ServerAtta) key.attachment()).loop;
+        try {
+            sslTasks.execute(new Runnable() {
+                public void run() {
+                    Runnable task;
+                    while ((task = ssl.engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    loop.pending.add(new PendingKey(key, PendingKey.OP_SSL_TASK));
+                    loop.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) { // stopping
+            closeKey(key, CLOSE_AWAY);
+        }
+    }
+
+    private void sslTaskDone(SelectionKey key, ByteBuffer buffer) {
+        if (!key.isValid()) {
+            return;
+        }
+        ((ServerAtta) key.attachment()).ssl.taskRunning = false;
+        if ((key.interestOps() & OP_WRITE) == 0) {
+            key.interestOps(OP_READ);
+        }
+        unwrapSsl(key, buffer);
+    }
+
+    private void doWrite(SelectionKey key, ByteBuffer buffer) {
         ServerAtta atta = (ServerAtta) key.attachment();
         SocketChannel ch = (SocketChannel) key.channel();
+        boolean unwrap = false;
         try {
             // the sync is per socket (per client). virtually, no contention
             // 1. keep byte data order, 2. ensure visibility
             synchronized (atta) {
-                LinkedList<ByteBuffer> toWrites = atta.toWrites;
+                LinkedList<Object> toWrites = atta.toWrites;
                 int size = toWrites.size();
-                if (size == 1) {
-                    ch.write(toWrites.get(0));
+                if (size == 1 && atta.ssl == null && toWrites.get(0) instanceof ByteBuffer) {
+                    ByteBuffer b = (ByteBuffer) toWrites.get(0);
+                    atta.consumed = ch.write(b);
+                    if (!b.hasRemaining()) {
+                        toWrites.clear();
+                        written(atta, b);
+                    }
                     // TODO investigate why needed.
                     // ws request for write, but has no data?
                 } else if (size > 0) {
-                    ByteBuffer buffers[] = new ByteBuffer[size];
-                    toWrites.toArray(buffers);
-                    ch.write(buffers, 0, buffers.length);
+                    int written = writeSegments(atta, ch, toWrites.toArray());
+                    for (int i = 0; i < written; i++) {
+                        Object o = toWrites.removeFirst();
+                        if (o instanceof PooledBuffer) {
+                            ((PooledBuffer) o).release();
+                        }
+                        written(atta, o);
+                    }
+                }
+                ServerMetrics m = metrics;
+                if (m != null && size > 0) {
+                    queued(m, atta, -atta.consumed);
+                }
+                if (size > 0 && atta.consumed > 0) { // the client reads: not stalled
+                    atta.lastWrite = now();
                 }
-                Iterator<ByteBuffer> ite = toWrites.iterator();
-                while (ite.hasNext()) {
-                    if (!ite.next().hasRemaining()) {
-                        ite.remove();
+                if (toWrites.size() == 0 && atta.writeStart != 0) {
+                    long elapsed = System.nanoTime() - atta.writeStart;
+                    atta.writeStart = 0;
+                    if (m != null) {
+                        m.write.record(elapsed);
+                    }
+                    if (FlightEvents.SERVER_WRITTEN.isEnabled()) {
+                        FlightEvents.SERVER_WRITTEN.commit(null, elapsed, true);
                     }
                 }
                 // all done
                 if (toWrites.size() == 0) {
+                    atta.lastWrite = now();
                     if (atta.isKeepAlive()) {
-                        key.interestOps(OP_READ);
+                        boolean paused = (atta instanceof HttpAtta && ((HttpAtta) atta).readPaused)
+                                || (atta.ssl != null && atta.ssl.taskRunning);
+                        key.interestOps(paused ? 0 : OP_READ);
                         keptAlive.put(key, true);
+                        if (atta.ssl != null && atta.ssl.wrapBlocked) {
+                            atta.ssl.wrapBlocked = false;
+                            unwrap = true;
+                        }
                     } else {
                         closeKey(key, CLOSE_NORMAL);
                     }
@@ -354,63 +1244,324 @@ public class HttpServer implements Runnable {
         } catch (IOException e) { // the remote forcibly closed the connection
             closeKey(key, CLOSE_AWAY);
         }
+        if (unwrap) { // what was read while the handshake waited
+            unwrapSsl(key, buffer);
+        }
+    }
+
+    // synchronized by caller: segment left toWrites, the last of a timed response?
+    private void written(ServerAtta atta, Object segment) {
+        if (!(atta instanceof HttpAtta)) {
+            return;
+        }
+        ArrayDeque<HttpRequest> writing = ((HttpAtta) atta).writing;
+        HttpRequest req = writing.peekFirst();
+        ServerTimings t = timings;
+        if (req != null && req.lastSegment == segment) {
+            writing.pollFirst();
+            req.lastSegment = null;
+            if (t != null) {
+                t.written(req);
+            }
+        }
+    }
+
+    // synchronized by caller: server.queued-bytes follows the bytes left in toWrites,
+    // delta of them added (enqueued) or taken (written)
+    private static void queued(ServerMetrics m, ServerAtta atta, long delta) {
+        m.queuedBytes.add(delta);
+        atta.queuedBytes += delta;
+    }
+
+    private static long remaining(Object segment) {
+        ByteBuffer b = PooledBuffer.bytes(segment);
+        return b != null ? b.remaining() : ((FileRegion) segment).remaining();
+    }
+
+    /**
+     * Writes ByteBuffers and PooledBuffers (gathering) and FileRegions, in order, until
+     * the socket buffer is full. atta.consumed: how many of their bytes were taken
+     *
+     * @return number of segments fully written
+     */
+    private static int writeSegments(ServerAtta atta, SocketChannel ch, Object[] segments)
+            throws IOException {
+        if (atta.ssl != null) {
+            try {
+                return atta.ssl.write(ch, segments);
+            } finally {
+                atta.consumed = atta.ssl.consumed;
+            }
+        }
+        atta.consumed = 0;
+        if (segments instanceof ByteBuffer[]) { // no FileRegion, no copy
+            ByteBuffer[] buffers = (ByteBuffer[]) segments;
+            atta.consumed = ch.write(buffers, 0, buffers.length);
+            return written(buffers);
+        }
+        int i = 0;
+        while (i < segments.length) {
+            if (segments[i] instanceof FileRegion) {
+                FileRegion region = (FileRegion) segments[i];
+                long before = region.remaining();
+                boolean done = region.transferTo(ch);
+                atta.consumed += before - region.remaining();
+                if (!done) {
+                    return i;
+                }
+                i++;
+            } else {
+                int end = i;
+                while (end < segments.length && !(segments[end] instanceof FileRegion)) {
+                    end++;
+                }
+                ByteBuffer[] buffers = new ByteBuffer[end - i];
+                for (int j = 0; j < buffers.length; j++) {
+                    buffers[j] = PooledBuffer.bytes(segments[i + j]);
+                }
+                atta.consumed += ch.write(buffers, 0, buffers.length);
+                int n = written(buffers);
+                i += n;
+                if (n < buffers.length) {
+                    return i;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static int written(ByteBuffer[] buffers) {
+        int i = 0;
+        while (i < buffers.length && !buffers[i].hasRemaining()) {
+            i++;
+        }
+        return i;
     }
 
     public void tryWrite(final SelectionKey key, ByteBuffer... buffers) {
         tryWrite(key, false, buffers);
     }
 
+    // a WebSocket frame
+    void tryWrite(final SelectionKey key, PooledBuffer frame) {
+        ServerMetrics m = metrics;
+        if (m != null) {
+            m.wsFramesOut.increment();
+        }
+        if (FlightEvents.SERVER_WS_FRAME.isEnabled()) {
+            ByteBuffer b = frame.buffer;
+            FlightEvents.SERVER_WS_FRAME.commit(null, "out",
+                    FlightEvents.wsType(b.get(b.position()) & 0x0f), b.remaining());
+        }
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta) {
+            write(key, atta, false, frame);
+        }
+    }
+
     public void tryWrite(final SelectionKey key, boolean chunkInprogress, ByteBuffer... buffers) {
         ServerAtta atta = (ServerAtta) key.attachment();
         synchronized (atta) {
-            atta.chunkedResponseInprogress(chunkInprogress);
-            if (atta.toWrites.isEmpty()) {
-                SocketChannel ch = (SocketChannel) key.channel();
-                try {
-                    // TCP buffer most of time is empty, writable(8K ~ 256k)
-                    // One IO thread => One thread reading + Many thread writing
-                    // Save 2 system call
-                    ch.write(buffers, 0, buffers.length);
-                    if (buffers[buffers.length - 1].hasRemaining()) {
-                        for (ByteBuffer b : buffers) {
-                            if (b.hasRemaining()) {
-                                atta.toWrites.add(b);
-                            }
+            write(key, atta, chunkInprogress, (Object[]) buffers);
+        }
+    }
+
+    /**
+     * Writes part of the response held by slot; last if the response is complete.
+     * Responses of pipelined requests are written in request order: until slot is
+     * the first in flight, its buffers are held.
+     */
+    void tryWrite(final SelectionKey key, ResponseSlot slot, boolean last, boolean chunkInprogress,
+                  Object... segments) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        if (slot == null || !(atta instanceof HttpAtta)) { // WebSocket after handshake
+            synchronized (atta) {
+                write(key, atta, chunkInprogress, segments);
+            }
+            return;
+        }
+        HttpAtta http = (HttpAtta) atta;
+        synchronized (http) {
+            if (http.slots.peekFirst() != slot) {
+                slot.hold(segments, chunkInprogress, last);
+                return;
+            }
+            writeSlot(key, http, slot, last, chunkInprogress, segments);
+            if (!last) {
+                return;
+            }
+            http.slots.pollFirst();
+            // flush responses held behind this one
+            ResponseSlot next;
+            while ((next = http.slots.peekFirst()) != null && next.held != null) {
+                Object[] held = next.held.toArray();
+                next.held = null;
+                writeSlot(key, http, next, next.done, next.chunkInprogress, held);
+                if (!next.done) {
+                    break;
+                }
+                http.slots.pollFirst();
+            }
+            if (http.readPaused && !http.resumePosted && http.slots.size() < maxPipeline) {
+                http.resumePosted = true;
+                IOLoop loop = http.loop;
+                loop.pending.add(new PendingKey(key, PendingKey.OP_RESUME));
+                loop.wakeup();
+            }
+        }
+    }
+
+    // synchronized by caller
+    private void writeSlot(SelectionKey key, HttpAtta atta, ResponseSlot slot, boolean last,
+                           boolean chunkInprogress, Object[] segments) {
+        if (last) { // close the connection after the response if the request asked so
+            atta.keepalive = slot.keepalive;
+        }
+        if (slot.req != null) {
+            for (Object o : segments) {
+                slot.req.responseBytes += remaining(o);
+            }
+        }
+        Object tail = atta.toWrites.peekLast();
+        if (segments.length > 0) {
+            write(key, atta, chunkInprogress, segments);
+        }
+        LinkedList<Object> toWrites = atta.toWrites;
+        if (slot.req != null && !toWrites.isEmpty() && toWrites.getLast() != tail) {
+            slot.req.lastSegment = toWrites.getLast(); // enqueued by this write: of this response
+        }
+        if (last && slot.req != null) {
+            ServerTimings t = timings;
+            if (toWrites.isEmpty() || toWrites.getLast() != slot.req.lastSegment) {
+                slot.req.lastSegment = null; // none of this response queued
+                if (t != null) {
+                    t.written(slot.req);
+                }
+            } else { // stamped by doWrite
+                atta.writing.addLast(slot.req);
+            }
+        }
+        if (last && slot.body != null) {
+            // unread body: skip it to get to the next request
+            slot.body.discard();
+        }
+    }
+
+    // synchronized by caller
+    // segments: ByteBuffer or FileRegion
+    private void write(final SelectionKey key, ServerAtta atta, boolean chunkInprogress, Object... segments) {
+        IOLoop loop = atta.loop;
+        ServerMetrics m = metrics;
+        boolean jfr = FlightEvents.SERVER_WRITTEN.isEnabled();
+        long start = m == null && !jfr ? 0 : System.nanoTime();
+        if (m != null) {
+            for (Object o : segments) {
+                m.bytesOut.add(remaining(o));
+            }
+        }
+        atta.chunkedResponseInprogress(chunkInprogress);
+        if (atta.toWrites.isEmpty()) {
+            atta.lastWrite = now(); // all written, or what is left stalls from now
+            SocketChannel ch = (SocketChannel) key.channel();
+            try {
+                // TCP buffer most of time is empty, writable(8K ~ 256k)
+                // One IO thread => One thread reading + Many thread writing
+                // Save 2 system call
+                int written = writeSegments(atta, ch, segments);
+                for (int i = 0; i < written; i++) {
+                    if (segments[i] instanceof PooledBuffer) {
+                        ((PooledBuffer) segments[i]).release();
+                    }
+                }
+                if (written < segments.length) {
+                    long left = 0;
+                    for (int i = written; i < segments.length; i++) {
+                        atta.toWrites.add(segments[i]);
+                        left += remaining(segments[i]);
+                    }
+                    atta.writeStart = start;
+                    if (m != null) {
+                        queued(m, atta, left);
+                    }
+                    loop.pending.add(new PendingKey(key, PendingKey.OP_WRITE));
+                    loop.wakeup();
+                } else {
+                    if (start != 0) {
+                        long elapsed = System.nanoTime() - start;
+                        if (m != null) {
+                            m.write.record(elapsed);
                         }
-                        pending.add(new PendingKey(key, PendingKey.OP_WRITE));
-                        selector.wakeup();
-                    } else if (!atta.isKeepAlive()) {
-                        pending.add(new PendingKey(key, CLOSE_NORMAL));
-                        selector.wakeup();
+                        if (jfr) {
+                            FlightEvents.SERVER_WRITTEN.commit(null, elapsed, false);
+                        }
+                    }
+                    if (!atta.isKeepAlive()) {
+                        loop.pending.add(new PendingKey(key, CLOSE_NORMAL));
+                        loop.wakeup();
                     }
-                } catch (IOException e) {
-                    pending.add(new PendingKey(key, CLOSE_AWAY));
-                    selector.wakeup();
                 }
-            } else {
-                // If has pending write, order should be maintained. (WebSocket)
-                Collections.addAll(atta.toWrites, buffers);
-                pending.add(new PendingKey(key, PendingKey.OP_WRITE));
-                selector.wakeup();
+            } catch (IOException e) {
+                PooledBuffer.discard(Arrays.asList(segments));
+                loop.pending.add(new PendingKey(key, CLOSE_AWAY));
+                loop.wakeup();
             }
+        } else {
+            // If has pending write, order should be maintained. (WebSocket)
+            Collections.addAll(atta.toWrites, segments);
+            if (m != null) {
+                long added = 0;
+                for (Object o : segments) {
+                    added += remaining(o);
+                }
+                queued(m, atta, added);
+            }
+            loop.pending.add(new PendingKey(key, PendingKey.OP_WRITE));
+            loop.wakeup();
         }
     }
 
     public void run() {
+        run(acceptLoop);
+    }
+
+    private void run(IOLoop loop) {
+        final Selector selector = loop.selector;
         while (true) {
             try {
+                if (loop.timeouts != null) {
+                    expireTimeouts(loop);
+                }
                 PendingKey k;
-                while (!pending.isEmpty()) {
-                    k = pending.poll();
+                while (!loop.pending.isEmpty()) {
+                    k = loop.pending.poll();
                     if (k.Op == PendingKey.OP_WRITE) {
                         if (k.key.isValid()) {
                             k.key.interestOps(OP_WRITE);
                         }
+                    } else if (k.Op == PendingKey.OP_RESUME) {
+                        resumeRead(k.key, loop.buffer);
+                    } else if (k.Op == PendingKey.OP_SSL_TASK) {
+                        sslTaskDone(k.key, loop.buffer);
+                    } else if (k.Op == PendingKey.OP_ACCEPT) {
+                        if (k.key.isValid()) {
+                            k.key.interestOps(SelectionKey.OP_ACCEPT);
+                        }
                     } else {
                         closeKey(k.key, k.Op);
                     }
                 }
-                if (selector.select() <= 0) {
+                SocketChannel s;
+                while ((s = loop.accepted.poll()) != null) {
+                    try {
+                        register(loop, s);
+                    } catch (IOException e) {
+                        closeAndWarn(s);
+                        connectionClosed();
+                    }
+                }
+                int selected = selector.select(loop.timeouts == null ? 0 : loop.timeouts.timeout(now()));
+                loop.now = now();
+                if (selected <= 0) {
                     continue;
                 }
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
@@ -427,9 +1578,10 @@ public class HttpServer implements Runnable {
                     if (key.isAcceptable()) {
                         accept(key);
                     } else if (key.isReadable()) {
-                        doRead(key);
+                        ((ServerAtta) key.attachment()).lastRead = loop.now;
+                        doRead(key, loop.buffer);
                     } else if (key.isWritable()) {
-                        doWrite(key);
+                        doWrite(key, loop.buffer);
                     }
                 }
                 selectedKeys.clear();
@@ -447,8 +1599,57 @@ public class HttpServer implements Runnable {
 
     public boolean start() throws IOException {
         if (!status.compareAndSet(Status.STOPPED, Status.RUNNING)) { return false; }
-        serverThread = new Thread(this, THREAD_NAME);
-        serverThread.start();
+        try {
+            if (admin != null) {
+                admin.start();
+            }
+        } catch (IOException e) {
+            status.set(Status.STOPPED);
+            throw e;
+        }
+        try {
+            serverChannel.bind(socketAddress, backlog);
+        } catch (IOException e) {
+            if (admin != null) {
+                admin.stop(0);
+            }
+            status.set(Status.STOPPED);
+            throw e;
+        }
+        acceptKey = serverChannel.register(acceptLoop.selector, OP_ACCEPT);
+        if (ioThreads > 1 && ioLoops.length == 1) {
+            IOLoop[] loops = new IOLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new IOLoop(threadName + "-" + (i + 1));
+            }
+            ioLoops = loops;
+        }
+        timeoutCheck = Long.MAX_VALUE;
+        writeStall = writeTimeout > 0 ? writeTimeout : idleTimeout;
+        for (long t : new long[]{idleTimeout, headerTimeout, bodyTimeout, writeTimeout}) {
+            if (t > 0) {
+                timeoutCheck = Math.min(timeoutCheck, t);
+            }
+        }
+        for (IOLoop loop : ioLoops) {
+            loop.now = now();
+            if (timeoutCheck != Long.MAX_VALUE) {
+                loop.timeouts = new TimerWheel(TimerWheel.tickFor(timeoutCheck), loop.now);
+            }
+        }
+        for (final IOLoop loop : ioLoops) {
+            if (loop != acceptLoop) {
+                loop.thread = new Thread(new Runnable() {
+                    public void run() { HttpServer.this.run(loop); }
+                }, loop.name);
+                loop.thread.start();
+            }
+        }
+        if (sslContext != null && sslTasks == null) {
+            sslTasks = Executors.newCachedThreadPool(new PrefixThreadFactory("server-ssl-task-"));
+        }
+        acceptLoop.thread = new Thread(this, threadName);
+        acceptLoop.thread.start();
         return true;
     }
 
@@ -473,6 +1674,48 @@ public class HttpServer implements Runnable {
         handler.close(timeout);
 
         // close socket, notify on-close handlers
+        for (IOLoop loop : allLoops()) {
+            closeKeys(loop.selector);
+        }
+        if (sslTasks != null) {
+            sslTasks.shutdown();
+            sslTasks = null;
+        }
+
+        // Start daemon thread to run once serverThread actually completes.
+        // This could take some time if handler.close() was struggling to
+        // actually kill some tasks.
+        Thread cbThread = new Thread(new Runnable() {
+                public void run() {
+                    try { join(); } catch (InterruptedException e) { }
+                    AccessLog log = getAccessLog();
+                    if (log != null) {
+                        log.close(); // what was written is logged
+                    }
+                    CountersFile counters = countersFile;
+                    if (counters != null) {
+                        counters.close(); // the last values are published
+                    }
+                    if (registry != null) {
+                        registry.unregister(gauges);
+                    }
+                    if (admin != null && admin.stop(0)) { // served while requests drained
+                        try { admin.join(); } catch (InterruptedException e) { }
+                    }
+                    if (callback != null) {
+                        try { callback.run(); } catch (Throwable t) { }
+                    }
+                    status.set(Status.STOPPED);
+                }
+            });
+
+        cbThread.setDaemon(true);
+        cbThread.start();
+
+        return true;
+    }
+
+    private void closeKeys(Selector selector) {
         if (selector.isOpen()) {
             //            Set<SelectionKey> keys = selector.keys();
             //            SelectionKey[] keys = t.toArray(new SelectionKey[t.size()]);
@@ -505,24 +1748,18 @@ public class HttpServer implements Runnable {
 
             closeAndWarn(selector);
         }
+    }
 
-        // Start daemon thread to run once serverThread actually completes.
-        // This could take some time if handler.close() was struggling to
-        // actually kill some tasks.
-        Thread cbThread = new Thread(new Runnable() {
-                public void run() {
-                    try { serverThread.join(); } catch (InterruptedException e) { }
-                    if (callback != null) {
-                        try { callback.run(); } catch (Throwable t) { }
-                    }
-                    status.set(Status.STOPPED);
-                }
-            });
-
-        cbThread.setDaemon(true);
-        cbThread.start();
-
-        return true;
+    // acceptLoop first, then the io loops (if any are separate)
+    private IOLoop[] allLoops() {
+        IOLoop[] loops = ioLoops;
+        if (loops[0] == acceptLoop) {
+            return loops;
+        }
+        IOLoop[] all = new IOLoop[loops.length + 1];
+        all[0] = acceptLoop;
+        System.arraycopy(loops, 0, all, 1, loops.length);
+        return all;
     }
 
     public int getPort() {
@@ -534,7 +1771,14 @@ public class HttpServer implements Runnable {
     }
 
     public Status  getStatus() { return status.get();           }
-    public boolean isAlive()   { return serverThread.isAlive(); }
+    public boolean isAlive() {
+        for (IOLoop loop : allLoops()) {
+            if (loop.thread != null && loop.thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     void closeAndWarn(Closeable closable) {
         try {
@@ -545,11 +1789,15 @@ public class HttpServer implements Runnable {
     }
 
     /**
-     * Joins the thread in which the server runs; this will block until the server is stopped.
+     * Joins the threads in which the server runs; this will block until the server is stopped.
      *
      * @throws InterruptedException
      */
     public void join() throws InterruptedException {
-        serverThread.join();
+        for (IOLoop loop : allLoops()) {
+            if (loop.thread != null) {
+                loop.thread.join();
+            }
+        }
     }
 }
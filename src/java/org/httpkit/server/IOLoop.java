@@ -0,0 +1,43 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector + thread. Owns the read buffer and the queue of operations
+// posted by worker threads for the connections registered with it.
+class IOLoop {
+    final String name;
+    final Selector selector;
+
+    // queue operations from worker threads to the IO thread
+    final ConcurrentLinkedQueue<PendingKey> pending = new ConcurrentLinkedQueue<PendingKey>();
+    // connections handed over by the acceptor, registered by the IO thread
+    final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+    // shared, single thread
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64 - 1);
+
+    // connection deadlines, null if no timeout is set. IO thread only
+    TimerWheel timeouts;
+    final ArrayList<SelectionKey> due = new ArrayList<SelectionKey>();
+    long now; // ms (HttpServer.now), once select returned
+
+    Thread thread;
+
+    IOLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    // not needed from the loop itself, a handler run inline say: pending is seen before select
+    void wakeup() {
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+}
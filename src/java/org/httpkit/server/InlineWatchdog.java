@@ -0,0 +1,91 @@
+package org.httpkit.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.httpkit.PrefixThreadFactory;
+
+/**
+ * Watches the handlers run inline by the IO threads: one running past the budget is
+ * reported while its IO thread is still stuck, with the stack of where it is, not only
+ * once it returns. Each run is reported once.
+ */
+class InlineWatchdog {
+    private final RingHandler handler;
+    private final long budget; // ns
+    private final ScheduledExecutorService timer;
+    private final Queue<Run> runs = new ConcurrentLinkedQueue<Run>(); // one per IO thread
+
+    private final ThreadLocal<Run> current = new ThreadLocal<Run>() {
+        protected Run initialValue() {
+            Run r = new Run(Thread.currentThread());
+            runs.add(r);
+            return r;
+        }
+    };
+
+    // the inline handler an IO thread is running, if any
+    private static class Run {
+        final Thread thread;
+        volatile HttpRequest req;
+        volatile long start; // ns, 0: none running
+        final AtomicBoolean reported = new AtomicBoolean(false);
+
+        Run(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    InlineWatchdog(RingHandler handler, long budget) {
+        this.handler = handler;
+        this.budget = budget;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new PrefixThreadFactory("http-kit-inline-watchdog-"));
+        long period = Math.max(budget / 2, TimeUnit.MILLISECONDS.toNanos(1));
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    // IO thread
+    void run(HttpRequest req, Runnable task) {
+        Run r = current.get();
+        r.req = req;
+        r.reported.set(false);
+        long start = System.nanoTime();
+        r.start = start;
+        try {
+            task.run(); // errors are responded by the task
+        } finally {
+            r.start = 0;
+            long elapsed = System.nanoTime() - start;
+            // over, but returned between two checks
+            if (elapsed > budget && r.reported.compareAndSet(false, true)) {
+                handler.inlineSlow(req, elapsed, null);
+            }
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Run r : runs) {
+            long start = r.start;
+            HttpRequest req = r.req;
+            if (start != 0 && now - start > budget && r.reported.compareAndSet(false, true)) {
+                Throwable where = new Throwable("stack of " + r.thread.getName());
+                where.setStackTrace(r.thread.getStackTrace());
+                handler.inlineSlow(req, now - start, where);
+            }
+        }
+    }
+
+    void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,88 @@
+package org.httpkit.server;
+
+import java.util.concurrent.ExecutorService;
+
+import org.httpkit.jfr.FlightEvents;
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+import clojure.lang.IPersistentMap;
+
+class JavaTask implements Runnable {
+    private final HttpRequest req;
+    private final RespCallback cb;
+    private final Response resp;
+    private final RequestHandler handler;
+
+    private final ContextLogger<String, Throwable> errorLogger;
+    private final EventLogger<String> eventLogger;
+    private final EventNames eventNames;
+    ServerMetrics metrics; // null: not recorded
+
+    JavaTask(HttpRequest req, RespCallback cb, RequestHandler handler, String serverHeader,
+             ContextLogger<String, Throwable> errorLogger, EventLogger<String> eventLogger, EventNames eventNames) {
+        this.req = req;
+        this.cb = cb;
+        this.resp = new Response(req, cb, serverHeader, eventLogger, eventNames);
+        this.handler = handler;
+        this.errorLogger = errorLogger;
+        this.eventLogger = eventLogger;
+        this.eventNames = eventNames;
+    }
+
+    public void run() {
+        if (req.timed) {
+            req.handlerTime = System.nanoTime();
+        }
+        ServerMetrics m = metrics;
+        long started = m == null ? 0 : m.started(req);
+        Object event = ServerEvents.started(req);
+        try {
+            handler.handle(req, resp);
+        } catch (Throwable e) {
+            errorLogger.log(req.method + " " + req.uri, e);
+            if (resp.sendError(e)) {
+                eventLogger.log(eventNames.serverStatus500);
+            }
+        }
+        cb.handled();
+        if (m != null) {
+            m.handled(started);
+        }
+        if (event != null) {
+            FlightEvents.SERVER_HANDLER.commit(event, req.method.toString(), req.uri);
+        }
+    }
+}
+
+/**
+ * Runs a {@link RequestHandler} in a thread pool as RingHandler runs a ring handler, without
+ * the Clojure translation: no request map, no response map, no keyword lookups.
+ * WebSocket frames and client closes are handled as by RingHandler.
+ */
+public class JavaHandler extends RingHandler {
+    final RequestHandler javaHandler;
+
+    public JavaHandler(RequestHandler handler, ExecutorService execs) {
+        this(handler, execs, ContextLogger.ERROR_PRINTER, EventLogger.NOP, EventNames.DEFAULT, "http-kit");
+    }
+
+    public JavaHandler(int thread, RequestHandler handler, String prefix, int queueSize, String serverHeader) {
+        super(thread, null, false, prefix, queueSize, serverHeader);
+        this.javaHandler = handler;
+    }
+
+    public JavaHandler(RequestHandler handler, ExecutorService execs,
+            ContextLogger<String, Throwable> errorLogger, EventLogger<String> eventLogger, EventNames eventNames,
+            String serverHeader) {
+        super(null, false, execs, errorLogger, eventLogger, eventNames, serverHeader);
+        this.javaHandler = handler;
+    }
+
+    Runnable task(HttpRequest req, RespCallback cb, IPersistentMap requestMap) {
+        JavaTask t = new JavaTask(req, cb, javaHandler, serverHeader, errorLogger, eventLogger, eventNames);
+        t.metrics = metrics;
+        return t;
+    }
+}
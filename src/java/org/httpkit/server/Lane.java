@@ -0,0 +1,57 @@
+package org.httpkit.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.HeaderMap;
+
+/**
+ * An executor of its own for a class of requests (a bulkhead): its queue, its threads,
+ * its 503s. Requests are put in lanes by the classifier given to
+ * {@link RingHandler#setLanes}, so that a burst on one route can not starve the others.
+ */
+public class Lane {
+    final String name;
+    final ExecutorService execs;
+    volatile CoDel codel; // null: requests are never dropped for waiting
+    volatile HeaderMap rejectHeaders = ErrorResponse.headers;
+    final AtomicLong rejected = new AtomicLong(0);
+
+    public Lane(String name, ExecutorService execs) {
+        this.name = name;
+        this.execs = execs;
+    }
+
+    /**
+     * As {@link RingHandler#setQueueTarget}, for this lane
+     */
+    public void setQueueTarget(long targetMs, long intervalMs) {
+        this.codel = targetMs > 0 ? new CoDel(targetMs, intervalMs) : null;
+    }
+
+    /**
+     * The Retry-After header of the lane's 503s, 0 for none
+     */
+    public void setRetryAfter(int seconds) {
+        this.rejectHeaders = ErrorResponse.headers(seconds);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return how many requests were answered 503, the lane's queue being full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how many requests were dropped for waiting too long
+     */
+    public long getQueueDropped() {
+        CoDel c = codel;
+        return c == null ? 0 : c.getDropped();
+    }
+}
@@ -0,0 +1,22 @@
+package org.httpkit.server;
+
+import java.nio.channels.SelectionKey;
+
+class PendingKey {
+    public final SelectionKey key;
+    // operation: can be register for write or close the selectionkey
+    public final int Op;
+
+    PendingKey(SelectionKey key, int op) {
+        this.key = key;
+        Op = op;
+    }
+
+    public static final int OP_WRITE = -1;
+    // resume reading a connection paused by a full pipeline
+    public static final int OP_RESUME = -2;
+    // go on with a TLS handshake once its delegated tasks are run
+    public static final int OP_SSL_TASK = -3;
+    // accept again, a connection closed below the max
+    public static final int OP_ACCEPT = -4;
+}
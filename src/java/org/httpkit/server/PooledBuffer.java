@@ -0,0 +1,161 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.httpkit.HeaderMap;
+
+import static org.httpkit.HttpUtils.WsEncode;
+import static org.httpkit.HttpUtils.encodeBody;
+import static org.httpkit.HttpUtils.encodeHead;
+import static org.httpkit.HttpUtils.errorBody;
+
+/**
+ * A direct buffer from a pool in size classes, response heads and WebSocket frames are
+ * encoded into: no allocation, and written without the copy into a temporary direct
+ * buffer the JDK does for heap ones. A segment of its own to write (next to ByteBuffer
+ * and FileRegion), released by the server once written, or the connection closed.
+ * Larger than the largest class: a heap buffer, not pooled.
+ * <p>
+ * The free lists are striped by the thread acquiring: a buffer goes back to the stripe
+ * it was taken from, whichever thread writes it, so the worker threads encoding
+ * responses don't all contend for one lock.
+ */
+class PooledBuffer {
+    private static final int[] SIZES = {512, 4096, 32768};
+    private static final int[] KEPT = {1024, 256, 64}; // free buffers kept, per class
+    private static final int STRIPES = Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors()));
+
+    // by size class, then stripe
+    private static final List<ArrayDeque<PooledBuffer>> FREE = new ArrayList<ArrayDeque<PooledBuffer>>();
+
+    static {
+        for (int i = 0; i < SIZES.length * STRIPES; i++) {
+            FREE.add(new ArrayDeque<PooledBuffer>());
+        }
+    }
+
+    final ByteBuffer buffer;
+    private final int sizeClass; // -1: not pooled
+    private final int stripe;
+    private boolean free = false;
+
+    private PooledBuffer(ByteBuffer buffer, int sizeClass, int stripe) {
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.stripe = stripe;
+    }
+
+    private static ArrayDeque<PooledBuffer> free(int sizeClass, int stripe) {
+        return FREE.get(sizeClass * STRIPES + stripe);
+    }
+
+    /**
+     * @return a cleared buffer of size bytes at least
+     */
+    static PooledBuffer acquire(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+                ArrayDeque<PooledBuffer> list = free(i, stripe);
+                PooledBuffer b;
+                synchronized (list) {
+                    b = list.pollLast(); // the most recently used
+                }
+                if (b == null) {
+                    return new PooledBuffer(ByteBuffer.allocateDirect(SIZES[i]), i, stripe);
+                }
+                b.free = false;
+                b.buffer.clear();
+                return b;
+            }
+        }
+        return new PooledBuffer(ByteBuffer.allocate(size), -1, 0);
+    }
+
+    /**
+     * Back to the pool, once written. Not to be used after
+     */
+    void release() {
+        if (sizeClass < 0 || free) {
+            return;
+        }
+        free = true;
+        ArrayDeque<PooledBuffer> list = free(sizeClass, stripe);
+        synchronized (list) {
+            if (list.size() < (KEPT[sizeClass] + STRIPES - 1) / STRIPES) {
+                list.addLast(this);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of a ByteBuffer or PooledBuffer segment, null for a FileRegion
+     */
+    static ByteBuffer bytes(Object segment) {
+        if (segment instanceof ByteBuffer) {
+            return (ByteBuffer) segment;
+        }
+        if (segment instanceof PooledBuffer) {
+            return ((PooledBuffer) segment).buffer;
+        }
+        return null;
+    }
+
+    // the segments not written: releases the buffers, closes the files
+    static void discard(Iterable<Object> segments) {
+        for (Object o : segments) {
+            if (o instanceof PooledBuffer) {
+                ((PooledBuffer) o).release();
+            } else if (o instanceof FileRegion) {
+                ((FileRegion) o).close();
+            }
+        }
+    }
+
+    /**
+     * HttpEncode, the head in a pooled buffer: {head} or {head, body}
+     */
+    static Object[] encode(int status, HeaderMap headers, Object body, String serverHeader) {
+        ByteBuffer bodyBuffer;
+        try {
+            bodyBuffer = encodeBody(status, headers, body);
+        } catch (IOException e) {
+            status = 500;
+            bodyBuffer = errorBody(headers, e);
+        }
+        PooledBuffer head = head(status, headers, serverHeader);
+        return bodyBuffer == null ? new Object[]{head} : new Object[]{head, bodyBuffer};
+    }
+
+    /**
+     * The status line and headers, Content-Length already set
+     */
+    static PooledBuffer head(int status, HeaderMap headers, String serverHeader) {
+        for (int size = SIZES[0]; ; size *= 8) {
+            PooledBuffer b = acquire(size);
+            try {
+                encodeHead(status, headers, serverHeader, b.buffer);
+                b.buffer.flip();
+                return b;
+            } catch (BufferOverflowException e) { // large headers, rare
+                b.release();
+            }
+        }
+    }
+
+    static PooledBuffer frame(byte opcode, byte[] data, int length) {
+        PooledBuffer b = acquire(length + 10);
+        WsEncode(opcode, data, length, b.buffer);
+        b.buffer.flip();
+        return b;
+    }
+
+    static PooledBuffer frame(byte opcode, byte[] data) {
+        return frame(opcode, data, data.length);
+    }
+}
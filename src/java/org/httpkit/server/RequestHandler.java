@@ -0,0 +1,13 @@
+package org.httpkit.server;
+
+/**
+ * A handler in plain Java, for {@link JavaHandler}: no ring map is built for the request,
+ * the response is encoded as it is sent.
+ */
+public interface RequestHandler {
+    /**
+     * Runs in the handler's thread pool. The response may be sent later, from another
+     * thread. An exception thrown before it is sent: a 500.
+     */
+    void handle(HttpRequest request, Response response) throws Exception;
+}
@@ -1,19 +1,69 @@
 package org.httpkit.server;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
+import org.httpkit.HeaderMap;
+
+import static org.httpkit.HttpUtils.HttpEncode;
+
 public class RespCallback {
     private final SelectionKey key;
     private final HttpServer server;
+    private final ResponseSlot slot;
+    // responses written as segments, the head in a pooled buffer; else through run,
+    // that subclasses may override
+    private final boolean segments;
 
     public RespCallback(SelectionKey key, HttpServer server) {
         this.key = key;
         this.server = server;
+        this.slot = null;
+        this.segments = false;
+    }
+
+    // the server's own, for a request of an HTTP/1 connection
+    RespCallback(SelectionKey key, HttpServer server, ResponseSlot slot) {
+        this.key = key;
+        this.server = server;
+        this.slot = slot;
+        this.segments = true;
     }
 
     // maybe in another thread :worker thread
     public void run(ByteBuffer... buffers) {
-        server.tryWrite(key, buffers);
+        server.tryWrite(key, slot, true, false, (Object[]) buffers);
+    }
+
+    // ByteBuffers, PooledBuffers and FileRegions
+    void write(Object... segments) {
+        server.tryWrite(key, slot, true, false, segments);
+    }
+
+    /**
+     * A complete response, encoded for the connection's protocol: what an IHandler should
+     * call rather than {@link #run}, for HTTP/2 not to parse the HTTP/1 encoding back
+     */
+    public void respond(int status, HeaderMap headers, Object body, String serverHeader) {
+        ServerMetrics m = server == null ? null : server.metrics;
+        if (m != null) {
+            m.status(status);
+        }
+        ServerTimings t = server == null ? null : server.timings;
+        if (t != null && slot != null && slot.req != null) {
+            headers = t.responding(slot.req, status, headers);
+        }
+        if (body instanceof File) { // zero-copy
+            write(FileRegion.encode(status, headers, (File) body, serverHeader));
+        } else if (segments) {
+            write(PooledBuffer.encode(status, headers, body, serverHeader));
+        } else { // run may be overridden
+            run(HttpEncode(status, headers, body, serverHeader));
+        }
+    }
+
+    // the handler returned: nothing more will be written, unless it went async
+    void handled() {
     }
 }
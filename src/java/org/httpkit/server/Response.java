@@ -0,0 +1,85 @@
+package org.httpkit.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.httpkit.HeaderMap;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+import static org.httpkit.HttpVersion.HTTP_1_0;
+import static org.httpkit.HttpVersion.HTTP_1_1;
+
+/**
+ * The response to a request, for a {@link RequestHandler}: status and headers set, then
+ * sent once, encoded straight into the connection's output. Header names are written as
+ * given, not camel cased. Bodies as for ring: String, byte[], ByteBuffer, File,
+ * InputStream, or null.
+ */
+public class Response {
+    private final HttpRequest req;
+    private final RespCallback cb;
+    private final String serverHeader;
+    private final EventLogger<String> eventLogger;
+    private final EventNames eventNames;
+
+    private final HeaderMap headers = new HeaderMap();
+    private final AtomicBoolean sent = new AtomicBoolean(false);
+    private int status = 200;
+
+    Response(HttpRequest req, RespCallback cb, String serverHeader,
+             EventLogger<String> eventLogger, EventNames eventNames) {
+        this.req = req;
+        this.cb = cb;
+        this.serverHeader = serverHeader;
+        this.eventLogger = eventLogger;
+        this.eventNames = eventNames;
+    }
+
+    public Response status(int status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Added: the same name twice is sent twice
+     */
+    public Response header(String name, Object value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public boolean isSent() {
+        return sent.get();
+    }
+
+    public void send() {
+        send(null);
+    }
+
+    /**
+     * @throws IllegalStateException if already sent
+     */
+    public void send(Object body) {
+        if (!sent.compareAndSet(false, true)) {
+            throw new IllegalStateException("response already sent");
+        }
+        if (!headers.containsKey("Connection")) {
+            if (req.version == HTTP_1_0 && req.isKeepAlive) {
+                headers.put("Connection", "Keep-Alive");
+            } else if (req.version == HTTP_1_1 && !req.isKeepAlive) {
+                headers.put("Connection", "Close");
+            }
+        }
+        cb.respond(status, headers, body, serverHeader);
+        eventLogger.log(eventNames.serverStatus(status));
+    }
+
+    // the handler failed: a 500, unless already sent
+    boolean sendError(Throwable e) {
+        if (!sent.compareAndSet(false, true)) {
+            return false;
+        }
+        cb.respond(500, ErrorResponse.headers, e.getMessage(), serverHeader);
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package org.httpkit.server;
+
+import java.util.Collections;
+import java.util.LinkedList;
+
+// A response position in the per-connection pipeline. Writes issued before
+// it becomes the head are held, then flushed in request order.
+class ResponseSlot {
+    final boolean keepalive;
+    final AsyncChannel channel;
+    BodyInputStream body; // streamed request body, IO thread sets it before dispatch
+    HttpRequest req; // timed requests only, IO thread sets it before dispatch
+
+    // guarded by the HttpAtta
+    LinkedList<Object> held;
+    boolean chunkInprogress;
+    boolean done;
+
+    ResponseSlot(boolean keepalive, AsyncChannel channel) {
+        this.keepalive = keepalive;
+        this.channel = channel;
+    }
+
+    void hold(Object[] segments, boolean chunkInprogress, boolean last) {
+        if (held == null) {
+            held = new LinkedList<Object>();
+        }
+        Collections.addAll(held, segments);
+        this.chunkInprogress = chunkInprogress;
+        this.done = last;
+    }
+}
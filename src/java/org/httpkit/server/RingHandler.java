@@ -1,7 +1,5 @@
 package org.httpkit.server;
 
-import static clojure.lang.Keyword.intern;
-import static org.httpkit.HttpUtils.HttpEncode;
 import static org.httpkit.HttpVersion.HTTP_1_0;
 import static org.httpkit.HttpVersion.HTTP_1_1;
 import static org.httpkit.server.ClojureRing.BODY;
@@ -9,21 +7,30 @@ import static org.httpkit.server.ClojureRing.HEADERS;
 import static org.httpkit.server.ClojureRing.buildRequestMap;
 import static org.httpkit.server.ClojureRing.getStatus;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.httpkit.BoundedExecutor;
 import org.httpkit.HeaderMap;
+import org.httpkit.HttpMethod;
 import org.httpkit.PrefixThreadFactory;
+import org.httpkit.jfr.FlightEvents;
 import org.httpkit.logger.ContextLogger;
 import org.httpkit.logger.EventNames;
 import org.httpkit.logger.EventLogger;
+import org.httpkit.metrics.Gauge;
+import org.httpkit.metrics.Metrics;
 import org.httpkit.server.Frame.TextFrame;
 import org.httpkit.server.Frame.BinaryFrame;
 import org.httpkit.server.Frame.PingFrame;
@@ -32,78 +39,7 @@ import org.httpkit.server.Frame.PongFrame;
 import clojure.lang.AFn;
 import clojure.lang.IFn;
 import clojure.lang.IPersistentMap;
-import clojure.lang.Keyword;
-import clojure.lang.PersistentArrayMap;
-import clojure.lang.PersistentHashMap;
-import clojure.lang.ITransientMap;
-
-@SuppressWarnings({"rawtypes", "unchecked"})
-class ClojureRing {
-
-    static final Keyword SERVER_PORT = intern("server-port");
-    static final Keyword SERVER_NAME = intern("server-name");
-    static final Keyword REMOTE_ADDR = intern("remote-addr");
-    static final Keyword URI = intern("uri");
-    static final Keyword QUERY_STRING = intern("query-string");
-    static final Keyword SCHEME = intern("scheme");
-    static final Keyword REQUEST_METHOD = intern("request-method");
-    static final Keyword HEADERS = intern("headers");
-    static final Keyword CONTENT_TYPE = intern("content-type");
-    static final Keyword CONTENT_LENGTH = intern("content-length");
-    static final Keyword CHARACTER_ENCODING = intern("character-encoding");
-    static final Keyword BODY = intern("body");
-    static final Keyword WEBSOCKET = intern("websocket?");
-    static final Keyword ASYC_CHANNEL = intern("async-channel");
-    static final Keyword START_TIME = intern("start-time");
-
-    static final Keyword HTTP = intern("http");
-
-    static final Keyword STATUS = intern("status");
-
-    public static int getStatus(Map<Keyword, Object> resp) {
-        int status = 200;
-        Object s = resp.get(STATUS);
-        if (s instanceof Long) {
-            status = ((Long) s).intValue();
-        } else if (s instanceof Integer) {
-            status = (Integer) s;
-        }
-        return status;
-    }
-
-    public static IPersistentMap buildRequestMap(HttpRequest req) {
-        // ring spec
-        ITransientMap m = PersistentHashMap.EMPTY.asTransient();
-        return
-            m
-            .assoc(SERVER_PORT, req.serverPort)
-            .assoc(SERVER_NAME, req.serverName)
-            .assoc(REMOTE_ADDR, req.getRemoteAddr())
-            .assoc(URI, req.uri)
-            .assoc(QUERY_STRING, req.queryString)
-            .assoc(SCHEME, HTTP) // only http is supported
-            .assoc(ASYC_CHANNEL, req.channel)
-            .assoc(WEBSOCKET, req.isWebSocket)
-            .assoc(REQUEST_METHOD, req.method.KEY)
-            .assoc(START_TIME, req.startTime)
-
-            // key is already lower cased, required by ring spec
-            .assoc(HEADERS, PersistentArrayMap.create(req.headers))
-            .assoc(CONTENT_TYPE, req.contentType)
-            .assoc(CONTENT_LENGTH, req.contentLength)
-            .assoc(CHARACTER_ENCODING, req.charset)
-            .assoc(BODY, req.getBody())
-            .persistent();
-    }
-}
-
-class ErrorResponse {
-    static final HeaderMap headers;
-    static {
-        headers = new HeaderMap();
-        headers.put("Content-Type", "text/plain; charset=utf-8");
-    }
-}
+import clojure.lang.RT;
 
 @SuppressWarnings({"rawtypes", "unchecked"})
 class HttpHandler implements Runnable {
@@ -117,6 +53,8 @@ class HttpHandler implements Runnable {
     final EventLogger<String> eventLogger;
     final EventNames eventNames;
     final String serverHeader;
+    ServerMetrics metrics; // null: not recorded
+    IPersistentMap requestMap; // null: built when run
 
     public HttpHandler(HttpRequest req, RespCallback cb, IFn handler, boolean isRingAsync,
                        ContextLogger<String, Throwable> errorLogger, EventLogger<String> eventLogger, EventNames eventNames, String serverHeader) {
@@ -131,17 +69,30 @@ class HttpHandler implements Runnable {
     }
 
     public void run() {
+        if (req.timed) {
+            req.handlerTime = System.nanoTime();
+        }
+        ServerMetrics m = metrics;
+        long started = m == null ? 0 : m.started(req);
+        Object event = ServerEvents.started(req);
         if (isRingAsync) {
             runAsync();
         }
         else {
             runSync();
         }
+        cb.handled();
+        if (m != null) {
+            m.handled(started);
+        }
+        if (event != null) {
+            FlightEvents.SERVER_HANDLER.commit(event, req.method.toString(), req.uri);
+        }
     }
 
     private void runSync() {
         try {
-            handleResponse((Map) handler.invoke(buildRequestMap(req)));
+            handleResponse((Map) handler.invoke(requestMap()));
         } catch (Throwable e) {
             handleError(e);
         }
@@ -149,7 +100,7 @@ class HttpHandler implements Runnable {
 
     private void runAsync() {
         try {
-            handler.invoke(buildRequestMap(req),
+            handler.invoke(requestMap(),
                            new AFn() {
                                public Object invoke(Object resp) {
                                    try {
@@ -171,9 +122,13 @@ class HttpHandler implements Runnable {
         }
     }
 
+    private IPersistentMap requestMap() {
+        return requestMap == null ? buildRequestMap(req) : requestMap;
+    }
+
     private void handleResponse(Map resp) throws Throwable {
         if (resp == null) { // handler return null
-            cb.run(HttpEncode(404, new HeaderMap(), null, this.serverHeader));
+            cb.respond(404, new HeaderMap(), null, this.serverHeader);
             eventLogger.log(eventNames.serverStatus404);
         } else {
             Object body = resp.get(BODY);
@@ -185,8 +140,8 @@ class HttpHandler implements Runnable {
                     headers.put("Connection", "Close");
                 }
                 final int status = getStatus(resp);
-                cb.run(HttpEncode(status, headers, body, this.serverHeader));
-                eventLogger.log(eventNames.serverStatusPrefix + status);
+                cb.respond(status, headers, body, this.serverHeader);
+                eventLogger.log(eventNames.serverStatus(status));
             }
         }
     }
@@ -194,7 +149,57 @@ class HttpHandler implements Runnable {
     private void handleError(Throwable e) {
         errorLogger.log(req.method + " " + req.uri, e);
         eventLogger.log(eventNames.serverStatus500);
-        cb.run(HttpEncode(500, ErrorResponse.headers, e.getMessage(), this.serverHeader));
+        cb.respond(500, ErrorResponse.headers, e.getMessage(), this.serverHeader);
+    }
+}
+
+// checks made as a request leaves the queue, before its handler is run
+class QueuedTask implements Runnable {
+    private final Runnable task;
+    private final HttpRequest req;
+    private final RespCallback cb;
+    private final RingHandler h;
+    private final CoDel codel; // of the lane, null for none
+    private final HeaderMap rejectHeaders;
+
+    QueuedTask(Runnable task, HttpRequest req, RespCallback cb, RingHandler h, CoDel codel,
+               HeaderMap rejectHeaders) {
+        this.task = task;
+        this.req = req;
+        this.cb = cb;
+        this.h = h;
+        this.codel = codel;
+        this.rejectHeaders = rejectHeaders;
+    }
+
+    private boolean skip(AbandonedPolicy policy) {
+        if (policy == AbandonedPolicy.SKIP) {
+            return true;
+        }
+        HttpMethod m = req.method;
+        return m == HttpMethod.GET || m == HttpMethod.HEAD || m == HttpMethod.OPTIONS
+                || m == HttpMethod.TRACE;
+    }
+
+    public void run() {
+        AbandonedPolicy policy = h.abandonedPolicy;
+        if (policy != AbandonedPolicy.RUN && req.isAbandoned()) {
+            h.abandoned.incrementAndGet();
+            h.eventLogger.log(h.eventNames.serverAbandoned);
+            if (skip(policy)) {
+                cb.handled();
+                return; // nobody to respond to
+            }
+        }
+        if (codel != null) {
+            long now = System.nanoTime();
+            if (!codel.admit(now - req.startTime, now)) {
+                h.eventLogger.log(h.eventNames.serverStatus503Shed);
+                cb.respond(503, rejectHeaders, "Server overloaded, please try again", h.serverHeader);
+                return;
+            }
+        }
+        task.run();
     }
 }
 
@@ -300,33 +305,323 @@ public class RingHandler implements IHandler {
         this.serverHeader = serverHeader;
     }
 
+    private static final IFn ALWAYS = new AFn() {
+        public Object invoke(Object req) {
+            return Boolean.TRUE;
+        }
+    };
+
+    // requests handled on the IO thread, no handoff to execs: null for none
+    private volatile IFn inline;
+    private volatile InlineWatchdog watchdog; // null: not watched
+    private final AtomicLong inlineSlow = new AtomicLong(0);
+
+    /**
+     * Every request handled inline, by the IO thread that read it: for handlers faster
+     * than the handoff to the thread pool (health checks, redirects, in-memory lookups).
+     * The IO thread serves none of its other connections meanwhile.
+     *
+     * @param budgetMs an inline handler running longer is logged, with the stack of its
+     *                 IO thread, and counted as it runs, 0 for none
+     */
+    public void setInline(long budgetMs) {
+        setInline(ALWAYS, budgetMs);
+    }
+
+    /**
+     * The requests the predicate is truthy for, given the ring request map, handled inline
+     */
+    public synchronized void setInline(IFn predicate, long budgetMs) {
+        InlineWatchdog old = watchdog;
+        watchdog = budgetMs > 0 ? new InlineWatchdog(this, TimeUnit.MILLISECONDS.toNanos(budgetMs)) : null;
+        if (old != null) {
+            old.close();
+        }
+        this.inline = predicate;
+    }
+
+    /**
+     * @return how many inline handlers took longer than the budget
+     */
+    public long getInlineSlow() {
+        return inlineSlow.get();
+    }
+
+    private static boolean mayInline(IFn p, HttpRequest req) {
+        return p != null && req.getBodyStream() == null; // the body, read by the IO thread
+    }
+
+    private boolean isInline(IFn p, IPersistentMap requestMap) {
+        if (p == ALWAYS) {
+            return true;
+        }
+        try {
+            return RT.booleanCast(p.invoke(requestMap));
+        } catch (Throwable e) {
+            errorLogger.log("inline predicate", e);
+            return false;
+        }
+    }
+
+    private void runInline(HttpRequest req, Runnable task) {
+        InlineWatchdog w = watchdog;
+        if (w == null) {
+            task.run(); // errors are responded by the task
+        } else {
+            w.run(req, task);
+        }
+    }
+
+    // by the watchdog: where is the IO thread stuck, null once returned
+    void inlineSlow(HttpRequest req, long elapsed, Throwable where) {
+        inlineSlow.incrementAndGet();
+        errorLogger.log("inline handler over budget, " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "ms" + (where == null ? "" : " and running") + ", IO thread blocked: "
+                + req.method + " " + req.uri, where);
+        eventLogger.log(eventNames.serverInlineSlow);
+    }
+
+    volatile CoDel codel; // null: requests are never dropped for waiting
+
+    // the lane of a request, by name, from the classifier: null for none, execs
+    private volatile IFn laneFn;
+    private volatile Map<Object, Lane> lanes = Collections.emptyMap();
+
+    /**
+     * Requests dispatched to the executor of their lane: classifier, given the ring
+     * request map on the IO thread, returns the name of the lane (by method and path
+     * prefix, a header...). Not a name in lanes, or nil: this handler's executor.
+     * The lanes' executors are closed with this handler.
+     */
+    public void setLanes(IFn classifier, Map<?, Lane> lanes) {
+        Map<Object, Lane> old = this.lanes;
+        this.lanes = new HashMap<Object, Lane>(lanes);
+        this.laneFn = classifier;
+        synchronized (gauges) {
+            Metrics m = registry;
+            if (m != null) {
+                for (Lane lane : old.values()) {
+                    unregisterGauges(m, "server.pool." + lane.name + ".");
+                }
+                for (Lane lane : lanes.values()) {
+                    poolGauges(m, "server.pool." + lane.name + ".", lane.execs);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the lanes, by name
+     */
+    public Map<Object, Lane> getLanes() {
+        return Collections.unmodifiableMap(lanes);
+    }
+
+    private Lane laneOf(IFn f, IPersistentMap requestMap) {
+        try {
+            Object name = f.invoke(requestMap);
+            return name == null ? null : lanes.get(name);
+        } catch (Throwable e) {
+            errorLogger.log("lane classifier", e);
+            return null;
+        }
+    }
+
+    volatile AbandonedPolicy abandonedPolicy = AbandonedPolicy.RUN;
+    final AtomicLong abandoned = new AtomicLong(0);
+
+    /**
+     * Whether to run the handler of a request whose client disconnected while it was
+     * queued. Not RUN: such requests are also counted, and logged as events.
+     */
+    public void setAbandonedPolicy(AbandonedPolicy policy) {
+        this.abandonedPolicy = policy;
+    }
+
+    /**
+     * @return how many requests were found abandoned by their client before dispatch
+     */
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    /**
+     * Drops requests that waited too long in the queue before a thread picked them, with
+     * a 503: those waiting longer than interval, and longer than target once the queue is
+     * standing (even the shortest wait over an interval exceeded target). 0 to disable.
+     */
+    public void setQueueTarget(long targetMs, long intervalMs) {
+        this.codel = targetMs > 0 ? new CoDel(targetMs, intervalMs) : null;
+    }
+
+    /**
+     * @return how many requests were dropped for waiting too long
+     */
+    public long getQueueDropped() {
+        CoDel c = codel;
+        return c == null ? 0 : c.getDropped();
+    }
+
+    volatile ServerMetrics metrics; // null: not recorded
+    private volatile Metrics registry;
+    private final Map<String, Gauge> gauges = new HashMap<String, Gauge>(); // in registry, guarded by itself
+
+    // by HttpServer.setMetrics: server.pool.*, and server.pool.<lane>.* for each lane,
+    // unregistered once closed
+    void setMetrics(Metrics m, ServerMetrics sm) {
+        this.metrics = sm;
+        synchronized (gauges) {
+            this.registry = m;
+            poolGauges(m, "server.pool.", execs);
+            for (Lane lane : lanes.values()) {
+                poolGauges(m, "server.pool." + lane.name + ".", lane.execs);
+            }
+        }
+    }
+
+    // synchronized by caller
+    private void unregisterGauges(Metrics m, String prefix) {
+        for (String name : new String[]{prefix + "queued", prefix + "active"}) {
+            Gauge g = gauges.remove(name);
+            if (g != null) {
+                m.unregister(name, g);
+            }
+        }
+    }
+
+    // synchronized by caller
+    private void poolGauges(Metrics m, String prefix, final ExecutorService e) {
+        gauge(m, prefix + "queued", new Gauge() {
+            public long value() {
+                if (e instanceof ThreadPoolExecutor) {
+                    return ((ThreadPoolExecutor) e).getQueue().size();
+                }
+                return e instanceof BoundedExecutor ? ((BoundedExecutor) e).getWaiting() : 0;
+            }
+        });
+        gauge(m, prefix + "active", new Gauge() {
+            public long value() {
+                if (e instanceof ThreadPoolExecutor) {
+                    return ((ThreadPoolExecutor) e).getActiveCount();
+                }
+                return e instanceof BoundedExecutor ? ((BoundedExecutor) e).getRunning() : 0;
+            }
+        });
+    }
+
+    // synchronized by caller
+    private void gauge(Metrics m, String name, Gauge g) {
+        m.gauge(name, g);
+        gauges.put(name, g);
+    }
+
+    /**
+     * The job running the handler for the request
+     *
+     * @param requestMap the ring request map if built already, null if not
+     */
+    Runnable task(HttpRequest req, RespCallback cb, IPersistentMap requestMap) {
+        HttpHandler h = new HttpHandler(req, cb, handler, isRingAsync, errorLogger, eventLogger, eventNames, this.serverHeader);
+        h.metrics = metrics;
+        h.requestMap = requestMap;
+        return h;
+    }
+
     public void handle(HttpRequest req, RespCallback cb) {
+        IPersistentMap requestMap = null; // built once: the same map, values, body stream
+        IFn p = inline;
+        if (mayInline(p, req)) {
+            if (p != ALWAYS) {
+                requestMap = buildRequestMap(req);
+            }
+            if (isInline(p, requestMap)) {
+                runInline(req, task(req, cb, requestMap));
+                return;
+            }
+        }
+        Lane lane = null;
+        IFn f = laneFn;
+        if (f != null) {
+            if (requestMap == null) {
+                requestMap = buildRequestMap(req);
+            }
+            lane = laneOf(f, requestMap);
+        }
+        ExecutorService e = lane == null ? execs : lane.execs;
+        CoDel c = lane == null ? codel : lane.codel;
+        HeaderMap rejectHeaders = lane == null ? ErrorResponse.headers : lane.rejectHeaders;
+        if (c != null && !c.accept(System.nanoTime())) {
+            eventLogger.log(eventNames.serverStatus503Shed);
+            cb.respond(503, rejectHeaders, "Server overloaded, please try again", this.serverHeader);
+            return;
+        }
+
+        Runnable task = task(req, cb, requestMap);
+        if (c != null || abandonedPolicy != AbandonedPolicy.RUN) {
+            task = new QueuedTask(task, req, cb, this, c, rejectHeaders);
+        }
         try {
-            execs.submit(new HttpHandler(req, cb, handler, isRingAsync, errorLogger, eventLogger, eventNames, this.serverHeader));
-        } catch (RejectedExecutionException e) {
-            errorLogger.log("failed to submit task to executor service", e);
+            e.submit(task);
+        } catch (RejectedExecutionException ex) {
+            if (lane == null) {
+                errorLogger.log("failed to submit task to executor service", ex);
+            } else {
+                lane.rejected.incrementAndGet(); // expected of a lane: no stack trace
+            }
             eventLogger.log(eventNames.serverStatus503);
-            cb.run(HttpEncode(503, ErrorResponse.headers, "Server unavailable, please try again", this.serverHeader));
+            cb.respond(503, rejectHeaders, "Server unavailable, please try again", this.serverHeader);
         }
     }
 
     public void close(int timeoutTs) {
+        InlineWatchdog w = watchdog;
+        if (w != null) {
+            w.close();
+        }
+        synchronized (gauges) {
+            Metrics m = registry;
+            if (m != null) {
+                m.unregister(gauges);
+                gauges.clear();
+            }
+        }
+        List<ExecutorService> all = new ArrayList<ExecutorService>();
+        all.add(execs);
+        for (Lane lane : lanes.values()) {
+            all.add(lane.execs);
+        }
         if (timeoutTs > 0) {
-            execs.shutdown();
+            for (ExecutorService e : all) {
+                e.shutdown();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutTs);
             try {
-                if (!execs.awaitTermination(timeoutTs, TimeUnit.MILLISECONDS)) {
-                    execs.shutdownNow();
+                for (ExecutorService e : all) {
+                    if (!e.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        e.shutdownNow();
+                    }
                 }
             } catch (InterruptedException ie) {
-                execs.shutdownNow();
+                for (ExecutorService e : all) {
+                    e.shutdownNow();
+                }
                 Thread.currentThread().interrupt();
             }
         } else {
-            execs.shutdownNow();
+            for (ExecutorService e : all) {
+                e.shutdownNow();
+            }
         }
     }
 
     public void handle(AsyncChannel channel, Frame frame) {
+        ServerMetrics m = metrics;
+        if (m != null) {
+            m.wsFramesIn.increment();
+        }
+        if (FlightEvents.SERVER_WS_FRAME.isEnabled()) {
+            FlightEvents.SERVER_WS_FRAME.commit(null, "in", ServerEvents.type(frame), frame.data.length);
+        }
         WSHandler task = new WSHandler(channel, frame, errorLogger, eventLogger, eventNames);
 
         // messages from the same client are handled orderly
@@ -354,6 +649,8 @@ public class RingHandler implements IHandler {
     }
 
     public void clientClose(final AsyncChannel channel, final int status, final String reason) {
+        // seen by the requests still queued right away, not once onClose has run
+        channel.setClientClosed();
         if (!channel.isClosed()) { // server did not close it first
             // has close handler, execute it in another thread
             if (channel.hasCloseHandler()) {
@@ -394,7 +691,7 @@ public class RingHandler implements IHandler {
                 }
             } else {
                 // no close handler, mark the connection as closed
-                channel.closedRan.set(false);
+                channel.closedRan.set(true);
             }
         }
     }
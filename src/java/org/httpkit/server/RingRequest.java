@@ -0,0 +1,197 @@
+package org.httpkit.server;
+
+import static org.httpkit.server.ClojureRing.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.IEditableCollection;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+
+/**
+ * The ring request map, read from the HttpRequest as keys are looked up, each value
+ * computed once. A handler looking at :uri and :request-method does not pay for the
+ * others: the copy of the headers, X-Forwarded-For scanning, the body stream.
+ * A real persistent map is only made when one is needed: assoc, dissoc, seq, meta...
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class RingRequest extends APersistentMap implements IObj, IEditableCollection {
+    private static final long serialVersionUID = 1L;
+
+    private static final Keyword[] KEYS = {
+            SERVER_PORT, SERVER_NAME, REMOTE_ADDR, URI, QUERY_STRING, SCHEME, ASYC_CHANNEL,
+            WEBSOCKET, REQUEST_METHOD, START_TIME, HEADERS, CONTENT_TYPE, CONTENT_LENGTH,
+            CHARACTER_ENCODING, BODY, TIMINGS // last: only timed requests have it
+    };
+
+    private static final Object NONE = new Object(); // not computed yet
+
+    private final HttpRequest req;
+    private final int size; // of KEYS
+    // read without the lock: a value computed by another thread is seen whole
+    private final AtomicReferenceArray<Object> values = new AtomicReferenceArray<Object>(KEYS.length);
+    private IPersistentMap map; // once materialized
+
+    RingRequest(HttpRequest req) {
+        this.req = req;
+        this.size = req.timed ? KEYS.length : KEYS.length - 1;
+        for (int i = 0; i < KEYS.length; i++) {
+            values.set(i, NONE);
+        }
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (KEYS[i] == key) { // keywords are interned
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object value(int i) {
+        Object v = values.get(i);
+        if (v != NONE) {
+            return v;
+        }
+        synchronized (this) { // the body stream, say, is to be made once
+            v = values.get(i);
+            if (v == NONE) {
+                v = compute(KEYS[i]);
+                values.set(i, v);
+            }
+            return v;
+        }
+    }
+
+    private Object compute(Keyword key) {
+        if (key == SERVER_PORT) {
+            return req.serverPort;
+        } else if (key == SERVER_NAME) {
+            return req.serverName;
+        } else if (key == REMOTE_ADDR) {
+            return req.getRemoteAddr();
+        } else if (key == URI) {
+            return req.uri;
+        } else if (key == QUERY_STRING) {
+            return req.queryString;
+        } else if (key == SCHEME) {
+            return req.isSecure ? HTTPS : HTTP;
+        } else if (key == ASYC_CHANNEL) {
+            return req.channel;
+        } else if (key == WEBSOCKET) {
+            return req.isWebSocket;
+        } else if (key == REQUEST_METHOD) {
+            return req.method.KEY;
+        } else if (key == START_TIME) {
+            return req.startTime;
+        } else if (key == HEADERS) {
+            // key is already lower cased, required by ring spec
+            return PersistentArrayMap.create(req.headers);
+        } else if (key == CONTENT_TYPE) {
+            return req.contentType;
+        } else if (key == CONTENT_LENGTH) {
+            return req.contentLength < 0 ? null : req.contentLength;
+        } else if (key == CHARACTER_ENCODING) {
+            return req.charset;
+        } else if (key == TIMINGS) {
+            return timings(req);
+        } else {
+            return req.getBody();
+        }
+    }
+
+    // the phases reached when looked up, as keywords
+    private static IPersistentMap timings(HttpRequest req) {
+        Map<String, Long> t = req.getTimings();
+        Object[] kvs = new Object[t.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, Long> e : t.entrySet()) {
+            kvs[i++] = Keyword.intern(e.getKey());
+            kvs[i++] = e.getValue();
+        }
+        return new PersistentArrayMap(kvs);
+    }
+
+    // the same values as looked up: the same body stream
+    private synchronized IPersistentMap materialize() {
+        if (map == null) {
+            ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+            for (int i = 0; i < size; i++) {
+                m = m.assoc(KEYS[i], value(i));
+            }
+            map = m.persistent();
+        }
+        return map;
+    }
+
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    public Object valAt(Object key, Object notFound) {
+        int i = indexOf(key);
+        return i < 0 ? notFound : value(i);
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public IMapEntry entryAt(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : MapEntry.create(KEYS[i], value(i));
+    }
+
+    public int count() {
+        return size;
+    }
+
+    public IPersistentMap assoc(Object key, Object val) {
+        return materialize().assoc(key, val);
+    }
+
+    public IPersistentMap assocEx(Object key, Object val) {
+        return materialize().assocEx(key, val);
+    }
+
+    public IPersistentMap without(Object key) {
+        return materialize().without(key);
+    }
+
+    public ISeq seq() {
+        return materialize().seq();
+    }
+
+    public Iterator iterator() {
+        return ((Iterable) materialize()).iterator();
+    }
+
+    public IPersistentCollection empty() {
+        return PersistentHashMap.EMPTY;
+    }
+
+    public IPersistentMap meta() {
+        return null;
+    }
+
+    public IObj withMeta(IPersistentMap meta) {
+        return ((IObj) materialize()).withMeta(meta);
+    }
+
+    public ITransientCollection asTransient() {
+        return ((IEditableCollection) materialize()).asTransient();
+    }
+}
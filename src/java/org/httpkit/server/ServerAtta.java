@@ -1,13 +1,30 @@
 package org.httpkit.server;
 
-import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 public abstract class ServerAtta {
-    final LinkedList<ByteBuffer> toWrites = new LinkedList<ByteBuffer>();
+    // ByteBuffer or FileRegion, written in order
+    final LinkedList<Object> toWrites = new LinkedList<Object>();
 
     protected AsyncChannel channel;
 
+    // TLS of the connection, null if plaintext
+    SslConnection ssl;
+
+    // the loop the channel is registered with, set before it is
+    IOLoop loop;
+
+    // timeouts, ms (HttpServer.now). lastWrite: when bytes were last taken by the socket,
+    // or when what is left began waiting, guarded by this
+    long lastRead;
+    long lastWrite;
+
+    // metrics, guarded by this: when toWrites got bytes the socket could not take (ns),
+    // how many bytes are left in it, and how many the last write took
+    long writeStart;
+    long queuedBytes;
+    long consumed;
+
     // close the connection after write?
 
     /* HTTP: greedy, if client support it( HTTP/1.1 without keep-alive: close),
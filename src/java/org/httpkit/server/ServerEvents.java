@@ -0,0 +1,41 @@
+package org.httpkit.server;
+
+import static org.httpkit.jfr.FlightEvents.SERVER_HANDLER;
+import static org.httpkit.jfr.FlightEvents.SERVER_QUEUED;
+
+import org.httpkit.server.Frame.BinaryFrame;
+import org.httpkit.server.Frame.CloseFrame;
+import org.httpkit.server.Frame.PingFrame;
+import org.httpkit.server.Frame.PongFrame;
+import org.httpkit.server.Frame.TextFrame;
+
+// the flight events of handlers, see FlightEvents
+final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    // a handler starting: the request's queue time committed. returns the handler's
+    // event, begun, or null if not enabled
+    static Object started(HttpRequest req) {
+        if (SERVER_QUEUED.isEnabled()) {
+            SERVER_QUEUED.commit(null, req.method.toString(), req.uri,
+                    System.nanoTime() - req.startTime);
+        }
+        return SERVER_HANDLER.begin();
+    }
+
+    static String type(Frame frame) {
+        if (frame instanceof TextFrame) {
+            return "text";
+        } else if (frame instanceof BinaryFrame) {
+            return "binary";
+        } else if (frame instanceof PingFrame) {
+            return "ping";
+        } else if (frame instanceof PongFrame) {
+            return "pong";
+        } else if (frame instanceof CloseFrame) {
+            return "close";
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,68 @@
+package org.httpkit.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.httpkit.metrics.Histogram;
+import org.httpkit.metrics.Metrics;
+
+/**
+ * The metrics of a server, looked up once in the registry:
+ * <ul>
+ * <li>server.decode: reading a request's line and headers, time in the decoder (HTTP/1)</li>
+ * <li>server.queue: from a request read to its handler started</li>
+ * <li>server.handler: the handler, until it returned (the call, if async)</li>
+ * <li>server.write: a response handed to the connection, until all its bytes were written
+ * to the socket (HTTP/1)</li>
+ * <li>server.requests, server.status.1xx ... 5xx: counters</li>
+ * <li>server.bytes-in: read from sockets; server.bytes-out: handed to connections to
+ * write, before TLS</li>
+ * <li>server.ws.frames-in, server.ws.frames-out: WebSocket frames</li>
+ * </ul>
+ */
+class ServerMetrics {
+    final Histogram decode;
+    final Histogram queue;
+    final Histogram handler;
+    final Histogram write;
+    final LongAdder requests;
+    final LongAdder bytesIn;
+    final LongAdder bytesOut;
+    final LongAdder wsFramesIn;
+    final LongAdder wsFramesOut;
+    private final LongAdder[] statuses = new LongAdder[6];
+    final LongAdder queuedBytes; // not written yet, see server.queued-bytes
+
+    ServerMetrics(Metrics m) {
+        decode = m.histogram("server.decode");
+        queue = m.histogram("server.queue");
+        handler = m.histogram("server.handler");
+        write = m.histogram("server.write");
+        requests = m.counter("server.requests");
+        bytesIn = m.counter("server.bytes-in");
+        bytesOut = m.counter("server.bytes-out");
+        wsFramesIn = m.counter("server.ws.frames-in");
+        wsFramesOut = m.counter("server.ws.frames-out");
+        for (int i = 1; i < statuses.length; i++) {
+            statuses[i] = m.counter("server.status." + i + "xx");
+        }
+        queuedBytes = new LongAdder();
+    }
+
+    void status(int status) {
+        int c = status / 100;
+        if (c > 0 && c < statuses.length) {
+            statuses[c].increment();
+        }
+    }
+
+    // a task starting on a thread: the request's time in the queue. returns now
+    long started(HttpRequest req) {
+        long now = System.nanoTime();
+        queue.record(now - req.startTime);
+        return now;
+    }
+
+    void handled(long started) {
+        handler.record(System.nanoTime() - started);
+    }
+}
@@ -0,0 +1,96 @@
+package org.httpkit.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.httpkit.HeaderMap;
+import org.httpkit.logger.ContextLogger;
+
+/**
+ * What a server does with the phases of its requests, HTTP/1 (see HttpRequest.getTimings):
+ * the Server-Timing header, and the log of slow requests, sampled:
+ * <ul>
+ * <li>headers: first byte read, until the headers are</li>
+ * <li>body: headers read, until dispatch (with :stream-body?, the body is read by the handler)</li>
+ * <li>queue: dispatched, until the handler started</li>
+ * <li>handler: started, until the response was ready</li>
+ * <li>write: response ready, until its last byte was written to the socket (waiting for
+ * pipelined responses before it, a slow reader)</li>
+ * </ul>
+ */
+class ServerTimings {
+    boolean serverTiming = false;
+    long slowNanos = -1; // -1: no log
+    double sample = 1;
+    SlowRequestLogger slowLogger; // null: the server's warn logger
+    AccessLog accessLog; // null: none
+    ContextLogger<String, Throwable> warnLogger;
+
+    // the response is ready: its Server-Timing header, if added, in a copy of headers
+    HeaderMap responding(HttpRequest req, int status, HeaderMap headers) {
+        req.responseTime = System.nanoTime();
+        req.status = status;
+        if (!serverTiming) {
+            return headers;
+        }
+        HeaderMap copy = new HeaderMap(); // error headers are shared
+        for (int i = 0; i < headers.size(); i++) {
+            copy.put(headers.getKey(i), headers.getValue(i));
+        }
+        copy.put("Server-Timing", phases(req, ";dur=", ", "));
+        return copy;
+    }
+
+    // the last byte of the response is written
+    void written(HttpRequest req) {
+        long now = System.nanoTime();
+        req.lastByteTime = now;
+        if (accessLog != null) {
+            accessLog.log(req);
+        }
+        long first = req.firstByteTime != 0 ? req.firstByteTime : req.startTime;
+        if (slowNanos < 0 || now - first < slowNanos
+                || (sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample)) {
+            return;
+        }
+        try {
+            if (slowLogger != null) {
+                slowLogger.log(req);
+            } else {
+                warnLogger.log("slow request " + req.method + " " + req.uri + " "
+                        + millis(now - first) + "ms: " + phases(req, " ", ", "), null);
+            }
+        } catch (Throwable e) {
+            warnLogger.log("slow request logger", e);
+        }
+    }
+
+    // ms of the phases reached, e.g. "headers;dur=0.012, queue;dur=1.5"
+    static String phases(HttpRequest req, String dur, String sep) {
+        StringBuilder sb = new StringBuilder();
+        phase(sb, "headers", req.firstByteTime, req.headersTime, dur, sep);
+        phase(sb, "body", req.headersTime, req.startTime, dur, sep);
+        phase(sb, "queue", req.startTime, req.handlerTime, dur, sep);
+        phase(sb, "handler", req.handlerTime, req.responseTime, dur, sep);
+        phase(sb, "write", req.responseTime, req.lastByteTime, dur, sep);
+        return sb.toString();
+    }
+
+    private static void phase(StringBuilder sb, String name, long start, long end,
+                              String dur, String sep) {
+        if (start == 0 || end == 0) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(sep);
+        }
+        sb.append(name).append(dur).append(millis(end - start));
+    }
+
+    // 1.234, not locale dependent
+    static String millis(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        long frac = micros % 1000;
+        return micros / 1000 + (frac < 10 ? ".00" : frac < 100 ? ".0" : ".") + frac;
+    }
+}
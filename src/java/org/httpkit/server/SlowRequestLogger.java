@@ -0,0 +1,10 @@
+package org.httpkit.server;
+
+/**
+ * Given the requests taking longer than a threshold, from first byte read to last byte
+ * written, see {@link HttpServer#setSlowRequests}. Called on the thread that wrote the
+ * last byte, with the connection's writes held: keep it short, hand off slow sinks.
+ */
+public interface SlowRequestLogger {
+    void log(HttpRequest req);
+}
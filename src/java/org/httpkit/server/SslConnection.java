@@ -0,0 +1,227 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * TLS of a server connection, driven by the IO loop: what is read is unwrapped
+ * before decoding, what is written is wrapped, in order, under the attachment's
+ * lock. File bodies are read and wrapped, sendfile can't encrypt.
+ */
+class SslConnection {
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_PLAINTEXT = 16 * 1024; // TLS record
+
+    // ALPN is JDK 9+ (and 8u252+), http-kit compiles for 8
+    private static final Method SET_APPLICATION_PROTOCOLS =
+            method(SSLParameters.class, "setApplicationProtocols", String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL =
+            method(SSLEngine.class, "getApplicationProtocol");
+
+    final SSLEngine engine;
+    private final int packetSize;
+
+    private ByteBuffer netIn; // read, not yet unwrapped. write mode, IO thread
+    private final ByteBuffer netOut; // wrapped, not yet written. read mode, guarded by the atta
+    private ByteBuffer plain; // file bytes being wrapped, guarded by the atta
+    long consumed; // bytes of the segments taken by the last write, guarded by the atta
+
+    boolean taskRunning = false; // a delegated task is running, IO thread
+    boolean wrapBlocked = false; // the handshake waits on the socket to wrap, IO thread
+    boolean negotiated = false; // application data was received, IO thread
+
+    SslConnection(SSLContext context, String[] applicationProtocols) {
+        engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (applicationProtocols != null && SET_APPLICATION_PROTOCOLS != null) {
+            SSLParameters params = engine.getSSLParameters();
+            invoke(SET_APPLICATION_PROTOCOLS, params, (Object) applicationProtocols);
+            engine.setSSLParameters(params);
+        }
+        packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize * 4);
+        netOut.flip();
+    }
+
+    /**
+     * @return the protocol selected by ALPN, null if none
+     */
+    String applicationProtocol() {
+        if (GET_APPLICATION_PROTOCOL == null) {
+            return null;
+        }
+        String protocol = (String) invoke(GET_APPLICATION_PROTOCOL, engine);
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    // IO thread, -1 on end of stream. Not called while unwrapping is held back
+    int read(SocketChannel ch) throws IOException {
+        if (!netIn.hasRemaining()) { // a record larger than the session said
+            if (netIn.capacity() >= 2 * packetSize) {
+                throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() * 2);
+            netIn.flip();
+            larger.put(netIn);
+            netIn = larger;
+        }
+        return ch.read(netIn);
+    }
+
+    boolean hasBufferedInput() {
+        return netIn.position() > 0;
+    }
+
+    /**
+     * IO thread. Unwraps the records read so far, as many as fit in dst
+     */
+    SSLEngineResult unwrap(ByteBuffer dst) throws SSLException {
+        int appSize = engine.getSession().getApplicationBufferSize();
+        netIn.flip();
+        try {
+            SSLEngineResult res;
+            do {
+                res = engine.unwrap(netIn, dst);
+            } while (res.getStatus() == Status.OK
+                    && res.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING
+                    && netIn.hasRemaining() && dst.remaining() >= appSize);
+            return res;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Wraps and writes segments (ByteBuffer, PooledBuffer or FileRegion) in order, until the socket
+     * buffer is full. Handshake messages go first. Synchronized by caller.
+     *
+     * @return number of segments fully written: wrapped, and their records flushed
+     */
+    int write(SocketChannel ch, Object[] segments) throws IOException {
+        consumed = 0;
+        if (!flush(ch)) {
+            return 0;
+        }
+        netOut.clear();
+        int i = 0;
+        try {
+            while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP && room()) {
+                wrap(EMPTY);
+            }
+            while (i < segments.length && room()) {
+                Object o = segments[i];
+                ByteBuffer b = PooledBuffer.bytes(o);
+                if (b != null) {
+                    int before = b.remaining();
+                    while (b.hasRemaining() && room()) {
+                        wrap(b);
+                    }
+                    consumed += before - b.remaining();
+                    if (b.hasRemaining()) {
+                        break;
+                    }
+                } else {
+                    FileRegion region = (FileRegion) o;
+                    long before = region.remaining();
+                    boolean done = wrap(region);
+                    consumed += before - region.remaining();
+                    if (!done) {
+                        break;
+                    }
+                }
+                i++;
+            }
+        } finally {
+            netOut.flip();
+        }
+        // segments fully wrapped are written once their records are
+        return flush(ch) ? i : 0;
+    }
+
+    /**
+     * Sends close_notify, as far as the socket takes it without waiting. Synchronized by caller
+     */
+    void close(SocketChannel ch) {
+        engine.closeOutbound();
+        try {
+            if (!flush(ch)) {
+                return; // the client is not reading
+            }
+            netOut.clear();
+            try {
+                while (!engine.isOutboundDone() && room()) {
+                    engine.wrap(EMPTY, netOut);
+                }
+            } finally {
+                netOut.flip();
+            }
+            flush(ch);
+        } catch (IOException ignore) { // closed anyway
+        }
+    }
+
+    private boolean room() {
+        return netOut.remaining() >= packetSize;
+    }
+
+    private void wrap(ByteBuffer src) throws SSLException {
+        SSLEngineResult res = engine.wrap(src, netOut);
+        if (res.getStatus() == Status.CLOSED) {
+            throw new SSLException("SSLEngine closed");
+        }
+    }
+
+    // false if netOut filled up before the end of the file
+    private boolean wrap(FileRegion region) throws IOException {
+        if (plain == null) {
+            plain = ByteBuffer.allocate(MAX_PLAINTEXT);
+            plain.flip();
+        }
+        while (room()) {
+            if (!plain.hasRemaining()) {
+                plain.clear();
+                int n = region.read(plain);
+                plain.flip();
+                if (n < 0) {
+                    return true;
+                }
+            }
+            wrap(plain);
+        }
+        return false;
+    }
+
+    private boolean flush(SocketChannel ch) throws IOException {
+        if (netOut.hasRemaining()) {
+            ch.write(netOut);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    private static Method method(Class<?> c, String name, Class<?>... params) {
+        try {
+            return c.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method m, Object target, Object... args) {
+        try {
+            return m.invoke(target, args);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
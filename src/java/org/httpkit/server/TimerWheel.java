@@ -0,0 +1,72 @@
+package org.httpkit.server;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection deadlines of an IO loop: a hashed timing wheel, IO thread only.
+ * Adding is O(1), and so is expiring, per connection. Deadlines are not moved
+ * when a connection is active: when its slot is reached, the loop computes it
+ * again, and puts the connection back in a later slot if not passed yet.
+ * Deadlines beyond the wheel are checked early, then put back.
+ */
+class TimerWheel {
+    private static final int SLOTS = 512; // power of 2
+
+    private final long tick; // ms
+    private final ArrayList<ArrayList<SelectionKey>> slots;
+    private long current; // the next tick to expire
+    private int size = 0;
+
+    TimerWheel(long tick, long now) {
+        this.tick = tick;
+        this.slots = new ArrayList<ArrayList<SelectionKey>>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new ArrayList<SelectionKey>()); // empty: no array until a key is added
+        }
+        this.current = now / tick;
+    }
+
+    /**
+     * Ticks of about a quarter of the shortest timeout, from 10ms to 1s
+     */
+    static long tickFor(long timeout) {
+        return Math.max(10, Math.min(1000, timeout / 4));
+    }
+
+    void add(SelectionKey key, long deadline) {
+        long t = Math.min(Math.max(deadline / tick, current), current + SLOTS - 1);
+        slots.get((int) (t & (SLOTS - 1))).add(key);
+        size++;
+    }
+
+    /**
+     * Moves the connections of the slots now past to due, at most one tick after their deadline
+     */
+    void expire(long now, List<SelectionKey> due) {
+        long last = now / tick;
+        while (current < last && size > 0) {
+            ArrayList<SelectionKey> slot = slots.get((int) (current & (SLOTS - 1)));
+            if (!slot.isEmpty()) {
+                due.addAll(slot);
+                size -= slot.size();
+                slot.clear();
+            }
+            current++;
+        }
+        if (current < last) { // empty
+            current = last;
+        }
+    }
+
+    /**
+     * @return ms until the next slot expires, 0 if the wheel is empty (select without timeout)
+     */
+    long timeout(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        return Math.max(1, (current + 1) * tick - now);
+    }
+}
@@ -9,6 +9,7 @@
   (:import
    [org.httpkit.client HttpClient HttpClient$AddressFinder HttpClient$ChannelFactory HttpClient$SSLEngineURIConfigurer IResponseHandler RespListener IFilter RequestConfig]
    [org.httpkit.logger ContextLogger EventLogger EventNames]
+   [org.httpkit.metrics Metrics]
    [org.httpkit HttpMethod PrefixThreadFactory HttpUtils]
    [java.util.concurrent ThreadPoolExecutor LinkedBlockingQueue TimeUnit]
    [java.net URI URLEncoder]
@@ -109,9 +110,11 @@
 
   When on JVM 21+, uses `newVirtualThreadPerTaskExecutor` by default.
   Otherwise creates a standard `ThreadPoolExecutor` with default min and max
-  thread count auto-selected based on currently available processor count."
+  thread count auto-selected based on currently available processor count.
+  See `org.httpkit.server/new-worker` for `:queue-type` and `:max-concurrency`."
 
-  [{:keys [queue-size n-min-threads n-max-threads prefix allow-virtual?] :as opts}]
+  [{:keys [queue-type queue-size queue-wait n-min-threads n-max-threads prefix
+           allow-virtual? max-concurrency] :as opts}]
   (utils/new-worker
     {:default-prefix "http-kit-client-worker-"
      :default-queue-type :linked
@@ -148,8 +151,11 @@
     :error-logger       ; (fn [text ex])
     :event-logger       ; (fn [event-name])
     :event-names        ; {<http-kit-event-name> <loggable-event-name>}
-    :bind-address       ; when present will pass local address to SocketChannel.bind()"
-  [{:keys [max-connections
+    :bind-address       ; when present will pass local address to SocketChannel.bind()
+    :metrics            ; `org.httpkit.metrics.Metrics` to record connect and request
+                        ; latencies, open connections and in-flight requests in, or true
+                        ; for a new one. See `client-metrics`."
+  [{:keys [max-connections metrics
            address-finder
            ssl-configurer
            error-logger
@@ -157,46 +163,56 @@
            event-names
            bind-address
            channel-factory]}]
-  (HttpClient.
-   (or max-connections -1)
-
-   ^HttpClient$AddressFinder
-   (if address-finder
-     (reify HttpClient$AddressFinder (findAddress [this uri] (address-finder uri)))
-     (do    HttpClient$AddressFinder/DEFAULT))
-
-   ^HttpClient$ChannelFactory
-   (if channel-factory
-     (reify HttpClient$ChannelFactory (createChannel [this address] (channel-factory address)))
-     (do    HttpClient$ChannelFactory/DEFAULT))
-
-   ^HttpClient$SSLEngineURIConfigurer
-   (if ssl-configurer
-     (reify HttpClient$SSLEngineURIConfigurer (configure [this ssl-engine uri] (ssl-configurer ssl-engine uri)))
-     (do    HttpClient$SSLEngineURIConfigurer/NOP))
-
-   ^ContextLogger
-   (if error-logger
-     (reify ContextLogger (log [this message error] (error-logger message error)))
-     (do    ContextLogger/ERROR_PRINTER))
-
-   ^EventLogger
-   (if event-logger
-     (reify EventLogger (log [this event] (event-logger event)))
-     (do    EventLogger/NOP))
-
-   ^EventNames
-   (cond
-     (nil?                 event-names)  EventNames/DEFAULT
-     (map?                 event-names) (EventNames. event-names)
-     (instance? EventNames event-names)              event-names
-     :else
-     (throw
-       (IllegalArgumentException.
-         (format "Invalid event-names: (%s) %s"
-           (class event-names) (pr-str event-names)))))
-
-   bind-address))
+  (let [client
+        (HttpClient.
+         (or max-connections -1)
+
+         ^HttpClient$AddressFinder
+         (if address-finder
+           (reify HttpClient$AddressFinder (findAddress [this uri] (address-finder uri)))
+           (do    HttpClient$AddressFinder/DEFAULT))
+
+         ^HttpClient$ChannelFactory
+         (if channel-factory
+           (reify HttpClient$ChannelFactory (createChannel [this address] (channel-factory address)))
+           (do    HttpClient$ChannelFactory/DEFAULT))
+
+         ^HttpClient$SSLEngineURIConfigurer
+         (if ssl-configurer
+           (reify HttpClient$SSLEngineURIConfigurer (configure [this ssl-engine uri] (ssl-configurer ssl-engine uri)))
+           (do    HttpClient$SSLEngineURIConfigurer/NOP))
+
+         ^ContextLogger
+         (if error-logger
+           (reify ContextLogger (log [this message error] (error-logger message error)))
+           (do    ContextLogger/ERROR_PRINTER))
+
+         ^EventLogger
+         (if event-logger
+           (reify EventLogger (log [this event] (event-logger event)))
+           (do    EventLogger/NOP))
+
+         ^EventNames
+         (cond
+           (nil?                 event-names)  EventNames/DEFAULT
+           (map?                 event-names) (EventNames. event-names)
+           (instance? EventNames event-names)              event-names
+           :else
+           (throw
+             (IllegalArgumentException.
+               (format "Invalid event-names: (%s) %s"
+                 (class event-names) (pr-str event-names)))))
+
+         bind-address)]
+    (when metrics
+      (.setMetrics client (if (true? metrics) (Metrics.) metrics)))
+    client))
+
+(defn client-metrics
+  "Given an HttpClient made with `:metrics`, returns a snapshot of its metrics
+  as a map, see `org.httpkit.utils/metrics->map`. Nil without `:metrics`."
+  [^HttpClient client]
+  (when-let [m (.getMetrics client)] (utils/metrics->map m)))
 
 (def ^:private ssl-configurer
   "SNI-capable SSL configurer, or nil."
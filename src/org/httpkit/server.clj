@@ -1,12 +1,15 @@
 (ns org.httpkit.server
   (:require
    [clojure.string :as str]
+   [clojure.java.io :as io]
    [org.httpkit.encode :refer [base64-encode]]
    [org.httpkit.utils :as utils])
 
   (:import
-   [org.httpkit.server AsyncChannel HttpServer RingHandler ProxyProtocolOption HttpServer$AddressFinder HttpServer$ServerChannelFactory Frame$PingFrame Frame$PongFrame]
+   [org.httpkit.server AsyncChannel HttpServer HttpRequest SlowRequestLogger AccessLog AccessLog$OnFull RingHandler Lane ProxyProtocolOption AbandonedPolicy HttpServer$AddressFinder HttpServer$ServerChannelFactory Frame$PingFrame Frame$PongFrame]
    [org.httpkit.logger ContextLogger EventLogger EventNames]
+   [org.httpkit.metrics Metrics CountersFile Prometheus]
+   [org.httpkit ScalingExecutor]
    [java.net InetSocketAddress]
    [java.nio ByteBuffer]
    [java.nio.channels ServerSocketChannel]
@@ -20,12 +23,18 @@
 (defprotocol IHttpServer
   (server-port   [http-server] "Given an HttpServer, returns server's local port.")
   (server-status [http-server] "Given an HttpServer, returns server's status e/o #{:stopped :running :stopping}.")
+  (server-connections [http-server] "Given an HttpServer, returns its number of open connections.")
+  (server-metrics [http-server]
+    "Given an HttpServer run with `:metrics`, returns a snapshot of its metrics as a map,
+    see `org.httpkit.utils/metrics->map`. Nil without `:metrics`.")
   (-server-stop! [http-server opts]))
 
 (extend-type HttpServer
   IHttpServer
   (server-port   [s] (.getPort s))
   (server-status [s] (keyword (str/lower-case (.name (.getStatus s)))))
+  (server-connections [s] (.getConnections s))
+  (server-metrics [s] (when-let [m (.getMetrics s)] (utils/metrics->map m)))
   (-server-stop! [s {:keys [timeout] :or {timeout 100}}]
     (let [p_ (promise)]
       (when (.stop s timeout #(deliver p_ true))
@@ -57,9 +66,27 @@
 
   When on JVM 21+, uses `newVirtualThreadPerTaskExecutor` by default.
   Otherwise creates a standard `ThreadPoolExecutor` with default min and max
-  thread count auto-selected based on currently available processor count."
-
-  [{:keys [queue-size n-min-threads n-max-threads prefix allow-virtual?] :as opts}]
+  thread count auto-selected based on currently available processor count.
+
+  `:queue-type` is `:array` (default), `:linked`, or `:ring`: a lock-free
+  ring buffer, less contended with many threads. Its idle threads wait as
+  told by `:queue-wait`, e/o #{:park :yield :spin} (default: :park). Only
+  with cores to spare for `:yield` and `:spin`: they keep them busy.
+
+  Virtual threads have no limit: with `:max-concurrency`, at most that many
+  requests are handled at a time (an `org.httpkit.BoundedExecutor`), up to
+  `:queue-size` more wait for their turn, and the next ones are answered 503
+  as with a full `ThreadPoolExecutor` queue.
+
+  With `:scale? true`, creates an `org.httpkit.ScalingExecutor` of platform
+  threads instead: it starts with `:n-min-threads`, and adds threads up to
+  `:n-max-threads` once a request waited for one longer than `:scale-target`
+  msecs (default: 10), removing them as they become idle. Decided every
+  `:scale-interval` msecs (default: 100), logged as `poolGrow` and
+  `poolShrink` events."
+
+  [{:keys [queue-type queue-size queue-wait n-min-threads n-max-threads prefix
+           allow-virtual? max-concurrency] :as opts}]
   (utils/new-worker
     {:default-prefix "http-kit-server-worker-"
      :default-queue-type :array
@@ -76,6 +103,23 @@
 
 (declare wrap-ring-websocket)
 
+(defn- admin-handler
+  "The handler of `:admin`: `health-path` and `metrics-path` of `s`, else `handler`."
+  [^HttpServer s handler health-path metrics-path]
+  (fn [req]
+    (condp = (:uri req)
+      health-path
+      (if (= :running (server-status s))
+        {:status 200 :headers {"Content-Type" "text/plain"} :body "running"}
+        {:status 503 :headers {"Content-Type" "text/plain"} :body (name (server-status s))})
+
+      metrics-path
+      (if-let [m (.getMetrics s)]
+        {:status 200 :headers {"Content-Type" Prometheus/CONTENT_TYPE} :body (Prometheus/render m)}
+        {:status 404 :body "no :metrics"})
+
+      (if handler (handler req) {:status 404}))))
+
 (defn run-server
   "Starts a mostly[1] Ring-compatible HttpServer with options:
 
@@ -86,14 +130,137 @@
                         ; for handling requests. Defaults to (:pool (new-worker {})).
                         ; See `new-worker` for details.
 
+    :lanes              ; {<lane-name> <lane-opts>}, executors of their own (bulkheads) for
+                        ; classes of requests, picked by `:lane-fn`: a burst of slow reports
+                        ; can not starve health checks. <lane-opts> are `new-worker` opts
+                        ; (`:n-threads`, `:queue-size`...; platform threads by default),
+                        ; or `:worker-pool`, plus `:queue-target`, `:queue-interval` and
+                        ; `:retry-after` (secs, header of the lane's 503s).
+    :lane-fn            ; (fn [ring-req]) -> lane name, or nil for `:worker-pool`. Called on
+                        ; the IO thread: keep it cheap (method, :uri prefix, a header).
+
+    :inline?            ; Run the handler on the IO thread that read the request, without the
+                        ; handoff to `:worker-pool` (default: false). True for every request,
+                        ; or (fn [ring-req]) -> truthy for those to run inline (e.g. by :uri).
+                        ; For trivially fast handlers only: the IO thread serves none of its
+                        ; other connections meanwhile. Never with `:stream-body?` requests.
+    :inline-budget      ; Msecs an inline handler may take: one running longer is logged, with
+                        ; where its IO thread is stuck, and counted as a `serverInlineSlow`
+                        ; event, while it runs (default: 10, 0 for none).
+
+    :queue-target       ; Msecs, drop requests waiting too long for a `:worker-pool` thread with
+                        ; a 503, CoDel style (default: nil, never). Once even the shortest
+                        ; wait over `:queue-interval` exceeded this target, requests that
+                        ; waited longer than it are dropped: the queue is standing, their
+                        ; clients likely gone, and new requests too, as they arrive. Else
+                        ; those waiting longer than the interval.
+                        ; Logged as `serverStatus503Shed` events.
+    :queue-interval     ; Msecs, see `:queue-target` (default: 100).
+    :abandoned          ; e/o #{:run :skip-safe :skip}, for requests whose client closed the
+                        ; connection while they waited for a thread (default: :run).
+                        ; `:skip-safe` skips the handler for GET, HEAD, OPTIONS and TRACE,
+                        ; `:skip` for any method. Unless `:run`, they are counted and logged
+                        ; as `serverAbandoned` events. Long running handlers may check
+                        ; `(open? (:async-channel req))` to stop early.
+
+    :io-threads         ; Number of selector threads doing connection IO (default: 1).
+                        ; When > 1, one thread accepts and hands connections round-robin
+                        ; to `io-threads` IO loops. Useful on many-core machines where
+                        ; the single IO thread saturates before the worker pool.
+
+    :max-pipeline       ; Max pipelined HTTP/1.1 requests in flight per connection (default: 16).
+                        ; Pipelined requests are handled concurrently and their responses
+                        ; written in request order. At this depth, reading from the
+                        ; connection pauses until a response is written.
+
     :max-body           ; Max HTTP body size in bytes (default: 8MB)
+    :stream-body?       ; Call handler once the request headers are read (default: false).
+                        ; `:body` is then an `InputStream` fed while the body arrives,
+                        ; reading from the connection pauses while the handler is not
+                        ; reading it. Unread bytes are skipped after the response.
+                        ; `:max-body` may exceed 2GB, `:content-length` is nil if chunked.
     :max-ws             ; Max WebSocket message size in bytes (default: 4MB)
     :max-line           ; Max HTTP header line size in bytes (default: 8KB)
 
     :proxy-protocol     ; Proxy protocol e/o #{:disable :enable :optional}
 
+    :max-connections    ; Max open connections (default: nil, no limit). At the max, the
+                        ; server stops accepting until one closes: new ones wait in the
+                        ; listen backlog. See `server-connections`.
+    :reject-connections? ; At `:max-connections`, accept and close new connections right
+                        ; away with a 503 (plaintext) instead (default: false).
+    :backlog            ; Listen backlog, connections queued by the OS until accepted
+                        ; (default: nil, the JDK's 50).
+
+    :idle-timeout       ; Close connections with no request being read or answered for this
+                        ; many msecs, e.g. kept alive between requests (default: nil, never).
+                        ; Also limits headers and bodies when their own timeout is not set.
+                        ; WebSocket connections are not timed out.
+    :header-timeout     ; Msecs to receive a request line and headers once started, else
+                        ; 408 and close (default: nil, no limit).
+    :body-timeout       ; Max msecs between two reads of a request body, else 408 and close
+                        ; (default: nil, no limit). Not counted while reading is paused for
+                        ; the handler (`:stream-body?`).
+    :write-timeout      ; Close connections whose client takes no byte of a response waiting
+                        ; to be written for this many msecs (default: nil, `:idle-timeout`).
+                        ; Timeouts are checked by the IO threads, about every quarter of the
+                        ; shortest one, and logged as `:event-logger` events.
+
+    :ssl-context        ; `javax.net.ssl.SSLContext` to serve HTTPS, TLS is done by the IO
+                        ; threads (default: nil, plain HTTP). Handshake tasks run on a
+                        ; separate pool. File bodies are read and encrypted, not sendfile'd.
+
+    :http2?             ; Serve HTTP/2 too (default: false): h2c with prior knowledge or
+                        ; `Upgrade: h2c`, h2 when TLS ALPN selects it (with `:ssl-context`).
+                        ; Each stream is a normal ring request, dispatched once its body
+                        ; is fully received (`:stream-body?` applies to HTTP/1 only), up to
+                        ; 32 MiB whatever `:max-body`. A connection holds twice that at most:
+                        ; clients wait on flow control until handlers are done with theirs.
+
     :server-header      ; The \"Server\" header, disabled if nil. Default: \"http-kit\".
 
+    :metrics            ; `org.httpkit.metrics.Metrics` to record the server's metrics in, or
+                        ; true for a new one (default: nil, none). Latency histograms of the
+                        ; decode, queue, handler and write phases, request and status
+                        ; counters, gauges of open connections, bytes waiting to be written
+                        ; and `:worker-pool` depth. Recording allocates nothing, the same
+                        ; registry may be given to clients. See `server-metrics`.
+    :metrics-file       ; {:keys [file interval]}, or a file path: the counters and gauges of
+                        ; `:metrics` (implied, a new registry if not given) and the counts of its
+                        ; histograms, published every `interval` msecs (default: 1000) to a
+                        ; memory-mapped file, for other processes to read. See
+                        ; `org.httpkit.metrics.CountersFile`, whose `main` tails it.
+
+    :timings?           ; Stamp the phases of HTTP/1 requests (default: false): `:timings` of the
+                        ; request map, {:first-byte :headers :dispatch :handler-start} so far,
+                        ; `System/nanoTime` stamps as `:start-time` (= :dispatch). Implied by:
+    :server-timing?     ; Add a \"Server-Timing\" header to responses, msecs of the headers, body,
+                        ; queue and handler phases of their request (default: false).
+    :slow-requests      ; {:keys [msecs sample fn]}, requests taking more than `msecs` from first
+                        ; byte read to last byte written, a `sample` fraction of them (default:
+                        ; 1.0, all), are given to (fn [{:keys [request-method uri timings]}]),
+                        ; with :response and :last-byte timings too. Called on the thread that
+                        ; wrote the last byte: keep it short. Default fn: `:warn-logger`.
+    :access-log         ; {:keys [out buffer on-full]}, a line per HTTP/1 request once its response
+                        ; is written: combined log format, then msecs in total and of the queue,
+                        ; handler and write phases. `out`: file path or `java.io.File` (appended
+                        ; to), or `java.io.OutputStream`. Lines are made and written in batches by
+                        ; a background thread, from a ring buffer of `buffer` records (default:
+                        ; 65536). Full, `on-full` e/o #{:drop :block} (default: :drop, counted,
+                        ; see `AccessLog.getDropped`; :block waits up to `AccessLog/BLOCK_MS` ms,
+                        ; then drops). Or an `org.httpkit.server.AccessLog`. Closed once the
+                        ; server is stopped.
+
+    :admin              ; {:keys [ip port handler health-path metrics-path]}, a listener for
+                        ; operations, with its own IO thread: answered when the workers are
+                        ; all busy, unlike a `:lanes` lane it does not share their selector.
+                        ; `health-path` (default: \"/health\"): 200 while running, 503 once
+                        ; stopping. `metrics-path` (default: \"/metrics\"): the `:metrics`
+                        ; in the Prometheus text format. Both run inline on its IO thread;
+                        ; other requests go to `handler` (default: 404s), on a thread of
+                        ; its own. `ip` defaults to \"127.0.0.1\", not `:ip`: give another to
+                        ; expose it. Stopped once the server is.
+
     :error-logger       ; (fn [msg ex])  -> log errors
     :warn-logger        ; (fn [msg ex])  -> log warnings
     :event-logger       ; (fn [ev-name]) -> log events
@@ -108,20 +275,27 @@
     false (recommended) ; Returns the `HttpServer` which can be used with `server-port`,
                         ; `server-status`, `server-stop!`, `server-join`, etc.
 
+  `java.io.File` response bodies are sent with `FileChannel.transferTo` (sendfile),
+  without copying the file into the JVM heap.
+
   The server also supports the following JVM properties:
 
      `org.http-kit.memmap-file-threshold`
-       Files above this size (in MB) are mapped into memory for efficiency when served.
-       Memory mapping could result to file locking. Defaults to 20 (MB).
+       Files above this size (in MB) are mapped into memory for efficiency when served
+       as streaming chunks or WebSocket messages. Memory mapping could result to file
+       locking. Defaults to 20 (MB).
 
   [1] Ref. http://http-kit.org/migration.html for differences."
 
   [handler
-   & [{:keys [ip port max-body max-ws max-line
-              proxy-protocol worker-pool
+   & [{:keys [ip port io-threads max-pipeline max-body stream-body? max-ws max-line
+              proxy-protocol worker-pool inline? inline-budget queue-target queue-interval
+              abandoned lanes lane-fn idle-timeout header-timeout body-timeout write-timeout
+              max-connections reject-connections? backlog metrics metrics-file
+              timings? server-timing? slow-requests access-log admin
               error-logger warn-logger event-logger event-names
               legacy-return-value? server-header address-finder
-              channel-factory ring-async?] :as opts
+              channel-factory ring-async? ssl-context http2?] :as opts
 
        :or   {ip         "0.0.0.0"
               port       8090
@@ -131,7 +305,9 @@
               proxy-protocol :disable
               legacy-return-value? true
               server-header "http-kit"
-              ring-async? false}}]]
+              ring-async? false
+              inline-budget 10
+              queue-interval 100}}]]
 
   (let [^ContextLogger err-logger
         (if error-logger
@@ -161,11 +337,45 @@
 
         worker-pool (or (force worker-pool) (:pool (new-worker (get opts :pool-opts opts))))
 
-        ^org.httpkit.server.IHandler h
+        ^RingHandler h
         (RingHandler.
           (wrap-ring-websocket handler) ring-async? worker-pool
           err-logger evt-logger evt-names server-header)
 
+        _ (cond
+            (true? inline?) (.setInline h (long inline-budget))
+            inline?         (.setInline h ^clojure.lang.IFn inline? (long inline-budget)))
+
+        _ (when (instance? ScalingExecutor worker-pool)
+            (.setEventLogger ^ScalingExecutor worker-pool evt-logger evt-names))
+
+        _ (when queue-target (.setQueueTarget h (long queue-target) (long queue-interval)))
+        _ (when lanes
+            (.setLanes h lane-fn
+              (reduce-kv
+                (fn [m lane-name {:keys [worker-pool queue-target queue-interval retry-after]
+                                  :as   lane-opts}]
+                  (let [pool (or (force worker-pool)
+                                 (:pool (new-worker
+                                          (merge {:prefix (str "http-kit-server-" (name lane-name) "-")
+                                                  :allow-virtual? false}
+                                                 lane-opts))))
+                        lane (Lane. (name lane-name) pool)]
+                    (when (instance? ScalingExecutor pool)
+                      (.setEventLogger ^ScalingExecutor pool evt-logger evt-names))
+                    (when queue-target
+                      (.setQueueTarget lane (long queue-target) (long (or queue-interval 100))))
+                    (when retry-after (.setRetryAfter lane (int retry-after)))
+                    (assoc m lane-name lane)))
+                {} lanes)))
+
+        _ (when abandoned
+            (.setAbandonedPolicy h
+              (case abandoned
+                :run       AbandonedPolicy/RUN
+                :skip-safe AbandonedPolicy/SKIP_SAFE
+                :skip      AbandonedPolicy/SKIP)))
+
         ^ProxyProtocolOption proxy-enum
         (case proxy-protocol
           :enable   ProxyProtocolOption/ENABLED
@@ -183,11 +393,63 @@
           (reify HttpServer$ServerChannelFactory (createChannel [this addr] (ServerSocketChannel/open))))
 
         s (HttpServer. address-finder channel-factory h
-                       ^long max-body ^long max-line ^long max-ws proxy-enum ^String server-header
+                       (min ^long max-body Integer/MAX_VALUE) ^long max-line ^long max-ws
+                       proxy-enum ^String server-header
                        err-logger
                        warn-logger
                        evt-logger
                        evt-names)]
+
+    (when io-threads   (.setIoThreads   s (int io-threads)))
+    (when max-pipeline (.setMaxPipeline s (int max-pipeline)))
+    (when stream-body?
+      (.setStreamBody s true)
+      (.setMaxBody    s (long max-body)))
+    (when ssl-context  (.setSslContext  s ssl-context))
+    (when http2?       (.setHttp2       s true))
+    (when idle-timeout   (.setIdleTimeout   s (long idle-timeout)))
+    (when header-timeout (.setHeaderTimeout s (long header-timeout)))
+    (when body-timeout   (.setBodyTimeout   s (long body-timeout)))
+    (when write-timeout  (.setWriteTimeout  s (long write-timeout)))
+    (when max-connections     (.setMaxConnections   s (int max-connections)))
+    (when reject-connections? (.setRejectConnections s true))
+    (when backlog             (.setBacklog          s (int backlog)))
+    (when (or metrics metrics-file)
+      (.setMetrics s (if (instance? Metrics metrics) metrics (Metrics.))))
+    (when-let [{:keys [file interval] :or {interval 1000}}
+               (if (map? metrics-file) metrics-file (when metrics-file {:file metrics-file}))]
+      (.setCountersFile s (CountersFile. (io/file file) (.getMetrics s) (long interval))))
+    (when timings?            (.setTimings          s true))
+    (when server-timing?      (.setServerTiming     s true))
+    (when-let [{:keys [msecs sample] f :fn :or {msecs 1000 sample 1.0}} slow-requests]
+      (.setSlowRequests s (long msecs) (double sample)
+        (when f
+          (reify SlowRequestLogger
+            (log [_ req]
+              (f {:request-method (.KEY (.method req))
+                  :uri            (.uri req)
+                  :timings        (reduce-kv (fn [m k v] (assoc m (keyword k) v))
+                                    {} (into {} (.getTimings req)))}))))))
+    (when access-log
+      (.setAccessLog s
+        (if (instance? AccessLog access-log)
+          access-log
+          (let [{:keys [out buffer on-full] :or {buffer 65536 on-full :drop}} access-log
+                on-full (case on-full :drop AccessLog$OnFull/DROP :block AccessLog$OnFull/BLOCK)]
+            (if (instance? java.io.OutputStream out)
+              (AccessLog. ^java.io.OutputStream out (int buffer) on-full)
+              (AccessLog. (io/file out) (int buffer) on-full))))))
+    (when-let [{admin-ip :ip admin-port :port f :handler
+                :keys [health-path metrics-path]
+                :or {admin-ip "127.0.0.1" health-path "/health" metrics-path "/metrics"}} admin]
+      (let [paths #{health-path metrics-path}
+            h (doto (RingHandler. 1 (admin-handler s f health-path metrics-path) false
+                      "http-kit-admin-" 16 server-header err-logger evt-logger evt-names)
+                (.setInline (fn [req] (contains? paths (:uri req))) 0))]
+        (.setAdmin s (doto (HttpServer. ^String admin-ip (int admin-port) h
+                             65536 8192 65536 ProxyProtocolOption/DISABLED ^String server-header
+                             err-logger warn-logger evt-logger evt-names)
+                       (.setThreadName "server-loop-admin")))))
     (.start s)
 
     (if-not legacy-return-value?
@@ -1,7 +1,8 @@
 (ns org.httpkit.utils
   (:import
    [java.util.concurrent ThreadPoolExecutor TimeUnit
-    BlockingQueue ArrayBlockingQueue LinkedBlockingQueue]))
+    BlockingQueue ArrayBlockingQueue LinkedBlockingQueue]
+   [org.httpkit RingBlockingQueue RingBlockingQueue$WaitStrategy]))
 
 (defn- java-version
   "Returns Java's major version integer (8, 17, etc.)."
@@ -59,8 +60,11 @@
 
    {:as   _user-opts
     :keys [n-min-threads n-max-threads n-threads
-           queue-type queue-size prefix allow-virtual?]
-    :or   {allow-virtual? true}}]
+           queue-type queue-size queue-wait prefix allow-virtual? max-concurrency
+           scale? scale-target scale-interval]
+    :or   {allow-virtual? true
+           scale-target   10
+           scale-interval 100}}]
 
   (let [;; Calculate at runtime to prevent Graal issues
         n-cores (.availableProcessors (Runtime/getRuntime))
@@ -69,12 +73,22 @@
           (fn [] (java.util.concurrent.Executors/newVirtualThreadPerTaskExecutor))
           nil)]
 
-    (if (and allow-virtual? new-virtual-pool)
+    (if (and allow-virtual? new-virtual-pool (not scale?))
 
       ;; Use JVM 21+ virtual threads
-      {:type    :virtual
-       :n-cores n-cores
-       :pool    (new-virtual-pool)}
+      (if max-concurrency
+        (let [queue-size (or queue-size default-queue-size Integer/MAX_VALUE)]
+          {:type            :virtual
+           :n-cores         n-cores
+           :max-concurrency max-concurrency
+           :queue-size      queue-size
+           :pool
+           (org.httpkit.BoundedExecutor. (new-virtual-pool)
+             (int max-concurrency) (int queue-size))})
+
+        {:type    :virtual
+         :n-cores n-cores
+         :pool    (new-virtual-pool)})
 
       ;; Use fixed thread pool
       (let [factory          (org.httpkit.PrefixThreadFactory. (or prefix default-prefix))
@@ -89,9 +103,15 @@
               :linked
               (if queue-size
                 (LinkedBlockingQueue. (int queue-size))
-                (LinkedBlockingQueue.)))]
-
-        {:type          :fixed
+                (LinkedBlockingQueue.))
+              :ring
+              (RingBlockingQueue. (int (or queue-size 65536))
+                (case (or queue-wait :park)
+                  :spin  RingBlockingQueue$WaitStrategy/SPIN
+                  :yield RingBlockingQueue$WaitStrategy/YIELD
+                  :park  RingBlockingQueue$WaitStrategy/PARK)))]
+
+        {:type          (if scale? :scaling :fixed)
          :n-cores       n-cores
          :n-min-threads n-min-threads
          :n-max-threads n-max-threads
@@ -99,10 +119,29 @@
          :queue-size    queue-size
          :queue         queue
          :pool
-         (ThreadPoolExecutor.
-           (int n-min-threads)
-           (int n-max-threads)
-           (int keep-alive-msecs) TimeUnit/MILLISECONDS
-           ^BlockingQueue queue factory)}))))
+         (if scale?
+           (org.httpkit.ScalingExecutor.
+             (int n-min-threads)
+             (int n-max-threads)
+             ^BlockingQueue queue
+             (long scale-target) (long scale-interval) factory)
+           (ThreadPoolExecutor.
+             (int n-min-threads)
+             (int n-max-threads)
+             (int keep-alive-msecs) TimeUnit/MILLISECONDS
+             ^BlockingQueue queue factory))}))))
 
 (comment (new-worker {} {}))
+
+(defn metrics->map
+  "Returns a snapshot of given `org.httpkit.metrics.Metrics` as a map of
+  metric keyword to value: a long for counters and gauges, a map of
+  {:keys [count mean p50 p90 p99 p999 max]} (µsecs) for histograms."
+  [^org.httpkit.metrics.Metrics metrics]
+  (reduce-kv
+    (fn [m k v]
+      (assoc m (keyword k)
+        (if (instance? java.util.Map v)
+          (reduce-kv (fn [m k v] (assoc m (keyword k) v)) {} (into {} v))
+          v)))
+    {} (into {} (.snapshot metrics))))
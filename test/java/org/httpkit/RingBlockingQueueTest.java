@@ -0,0 +1,103 @@
+package org.httpkit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+public class RingBlockingQueueTest {
+
+    @Test
+    public void shouldBeFifoAndBounded() {
+        RingBlockingQueue<Integer> q = new RingBlockingQueue<Integer>(3);
+        for (int lap = 0; lap < 3; lap++) {
+            Assert.assertTrue(q.offer(1));
+            Assert.assertTrue(q.offer(2));
+            Assert.assertTrue(q.offer(3));
+            Assert.assertFalse(q.offer(4)); // 4 slots, capacity 3
+            Assert.assertThat(q.size(), is(3));
+            Assert.assertThat(q.peek(), is(1));
+            Assert.assertThat(q.poll(), is(1));
+            Assert.assertThat(q.poll(), is(2));
+            Assert.assertThat(q.poll(), is(3));
+            Assert.assertThat(q.poll(), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldRemoveAnyElement() {
+        RingBlockingQueue<Integer> q = new RingBlockingQueue<Integer>(4);
+        q.offer(1);
+        q.offer(2);
+        q.offer(3);
+        Assert.assertTrue(q.remove(2));
+        Assert.assertFalse(q.remove(2));
+        Assert.assertFalse(q.remove(4));
+        Assert.assertTrue(q.remove(1));
+        Assert.assertThat(q.peek(), is(3)); // past the removed ones
+        Assert.assertThat(q.poll(), is(3));
+        Assert.assertThat(q.poll(), nullValue());
+        Assert.assertThat(q.size(), is(0));
+        for (int i = 0; i < 4; i++) { // the slots are free again
+            Assert.assertTrue(q.offer(i));
+        }
+    }
+
+    @Test
+    public void shouldTimeOutWhenEmpty() throws InterruptedException {
+        RingBlockingQueue<Integer> q = new RingBlockingQueue<Integer>(4);
+        Assert.assertThat(q.poll(20, TimeUnit.MILLISECONDS), nullValue());
+    }
+
+    private void transfer(RingBlockingQueue.WaitStrategy strategy) throws InterruptedException {
+        final RingBlockingQueue<Long> q = new RingBlockingQueue<Long>(64, strategy);
+        final int producers = 4, consumers = 4, each = 20000;
+        final AtomicLong sum = new AtomicLong(0);
+        final CountDownLatch done = new CountDownLatch(producers * each);
+        for (int i = 0; i < consumers; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (; ; ) {
+                            sum.addAndGet(q.take());
+                            done.countDown();
+                        }
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        for (int i = 0; i < producers; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (long n = 1; n <= each; n++) {
+                            q.put(n);
+                        }
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(20, TimeUnit.SECONDS));
+        Assert.assertThat(sum.get(), is((long) producers * each * (each + 1) / 2));
+        Assert.assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void shouldTransferAllWithPark() throws InterruptedException {
+        transfer(RingBlockingQueue.WaitStrategy.PARK);
+    }
+
+    @Test
+    public void shouldTransferAllWithYield() throws InterruptedException {
+        transfer(RingBlockingQueue.WaitStrategy.YIELD);
+    }
+}
@@ -40,6 +40,38 @@ public class SpecialHttpClient {
         return new String(buffer, 0, read);
     }
 
+    // pipeline requests for each path, the last one closes. Read till server closes
+    public static String pipelined(String url, String... paths) throws Exception {
+        URI uri = new URI(url);
+        SocketAddress addr = HttpUtils.getServerAddr(uri);
+
+        Socket s = new Socket();
+        s.connect(addr);
+        s.setSoTimeout(5000);
+        OutputStream os = s.getOutputStream();
+
+        StringBuilder request = new StringBuilder();
+        for (int i = 0; i < paths.length; i++) {
+            request.append("GET ").append(paths[i]).append(" HTTP/1.1\r\nHost: localhost\r\n");
+            if (i == paths.length - 1) {
+                request.append("Connection: close\r\n");
+            }
+            request.append("\r\n");
+        }
+        os.write(request.toString().getBytes());
+        os.flush();
+
+        InputStream is = s.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[8096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            sb.append(new String(buffer, 0, read));
+        }
+        s.close();
+        return sb.toString();
+    }
+
     public static String http10(String url) throws Exception {
         URI uri = new URI(url);
         SocketAddress addr = HttpUtils.getServerAddr(uri);
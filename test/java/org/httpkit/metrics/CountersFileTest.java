@@ -0,0 +1,97 @@
+package org.httpkit.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class CountersFileTest {
+
+    @Test
+    public void shouldPublishValues() throws Exception {
+        File file = File.createTempFile("http-kit", ".counters");
+        file.deleteOnExit();
+        Metrics m = new Metrics();
+        m.counter("server.requests").add(3);
+        m.histogram("server.handler").record(1000);
+        m.gauge("server.connections", new Gauge() {
+            public long value() {
+                return 7;
+            }
+        });
+        CountersFile counters = new CountersFile(file, m, 10);
+        try {
+            Map<String, Long> read = CountersFile.read(file);
+            Assert.assertThat(read.get("server.requests"), is(3L));
+            Assert.assertThat(read.get("server.connections"), is(7L));
+            Assert.assertThat(read.get("server.handler.count"), is(1L));
+
+            m.counter("server.requests").increment();
+            m.counter("server.bytes-in").add(100); // a new record
+            Thread.sleep(100);
+            read = CountersFile.read(file);
+            Assert.assertThat(read.get("server.requests"), is(4L));
+            Assert.assertThat(read.get("server.bytes-in"), is(100L));
+        } finally {
+            counters.close();
+        }
+        m.counter("server.requests").increment();
+        Thread.sleep(50);
+        Assert.assertThat(CountersFile.read(file).get("server.requests"), is(4L)); // closed
+    }
+
+    @Test
+    public void shouldSkipNamesPastCapacity() throws Exception {
+        File file = File.createTempFile("http-kit", ".counters");
+        file.deleteOnExit();
+        Metrics m = new Metrics();
+        for (int i = 0; i < 5; i++) {
+            m.counter("c" + i).add(i);
+        }
+        CountersFile counters = new CountersFile(file, m, 1000, 3);
+        counters.close();
+        Map<String, Long> read = CountersFile.read(file);
+        Assert.assertThat(read.size(), is(3));
+        Assert.assertThat(read.get("c2"), is(2L));
+    }
+
+    @Test
+    public void shouldHashLongNames() throws Exception {
+        File file = File.createTempFile("http-kit", ".counters");
+        file.deleteOnExit();
+        Metrics m = new Metrics();
+        StringBuilder prefix = new StringBuilder("server.pool.");
+        while (prefix.length() < 46) {
+            prefix.append("\u00e9"); // 2 bytes in UTF-8: cut inside one, but not split
+        }
+        m.counter(prefix + ".queued").add(1);
+        m.counter(prefix + ".active").add(2);
+        CountersFile counters = new CountersFile(file, m, 1000);
+        counters.close();
+        MappedByteBuffer b = CountersFile.map(file);
+        Map<String, Long> read = CountersFile.read(b);
+        Assert.assertThat(read.size(), is(2));
+        Assert.assertThat(read.get(new String(CountersFile.recordName(prefix + ".queued"), "UTF-8")), is(1L));
+        Assert.assertThat(read.get(new String(CountersFile.recordName(prefix + ".active"), "UTF-8")), is(2L));
+        for (String name : read.keySet()) {
+            Assert.assertTrue(name, name.matches(prefix.substring(0, 20) + "\u00e9*~[0-9a-f]{8}"));
+            Assert.assertTrue(name, name.getBytes("UTF-8").length <= CountersFile.NAME);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectOtherFiles() throws Exception {
+        File file = File.createTempFile("http-kit", ".counters");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(4096);
+        raf.close();
+        CountersFile.read(file);
+    }
+}
@@ -0,0 +1,41 @@
+package org.httpkit.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldBucketWithinPrecision() {
+        for (long v = 0; v < 1L << 40; v = v * 3 / 2 + 1) {
+            int i = Histogram.index(v);
+            Assert.assertTrue(i < Histogram.BUCKETS);
+            long high = Histogram.highest(i);
+            Assert.assertTrue(v + " <= " + high, v <= high);
+            Assert.assertTrue(v + " within 12.5% of " + high, high - v <= v / 8);
+            Assert.assertThat(Histogram.index(high), is(i));
+        }
+        Assert.assertThat(Histogram.index(Long.MAX_VALUE), is(Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void shouldReportPercentiles() {
+        Histogram h = new Histogram();
+        for (long ms = 1; ms <= 100; ms++) {
+            h.record(ms * 1000000);
+        }
+        Assert.assertThat(h.getCount(), is(100L));
+        long p50 = h.percentile(0.5), p99 = h.percentile(0.99);
+        Assert.assertTrue(p50 >= 50000000 && p50 <= 50000000 * 9 / 8);
+        Assert.assertTrue(p99 >= 99000000 && p99 <= 100000000);
+
+        Map<String, Object> m = h.snapshot();
+        Assert.assertThat((Long) m.get("count"), is(100L));
+        Assert.assertThat((Long) m.get("mean"), is(50500L)); // µs
+        Assert.assertThat((Long) m.get("max"), is(100000L));
+    }
+}
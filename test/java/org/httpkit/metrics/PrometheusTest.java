@@ -0,0 +1,39 @@
+package org.httpkit.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+public class PrometheusTest {
+
+    @Test
+    public void shouldNameMetrics() {
+        Assert.assertThat(Prometheus.name("server.status.2xx"), is("httpkit_server_status_2xx"));
+        Assert.assertThat(Prometheus.name("server.queued-bytes"), is("httpkit_server_queued_bytes"));
+    }
+
+    @Test
+    public void shouldRenderTextFormat() {
+        Metrics m = new Metrics();
+        m.counter("server.requests").add(3);
+        m.gauge("server.connections", new Gauge() {
+            public long value() {
+                return 2;
+            }
+        });
+        Histogram h = m.histogram("server.handler");
+        h.record(1000000);
+        h.record(3000000);
+        String text = Prometheus.render(m);
+        Assert.assertThat(text, containsString("# TYPE httpkit_server_requests_total counter\n"
+                + "httpkit_server_requests_total 3\n"));
+        Assert.assertThat(text, containsString("# TYPE httpkit_server_connections gauge\n"
+                + "httpkit_server_connections 2\n"));
+        Assert.assertThat(text, containsString("# TYPE httpkit_server_handler_seconds summary\n"));
+        Assert.assertThat(text, containsString("httpkit_server_handler_seconds{quantile=\"0.5\"} 0.001"));
+        Assert.assertThat(text, containsString("httpkit_server_handler_seconds_sum 0.004\n"));
+        Assert.assertThat(text, containsString("httpkit_server_handler_seconds_count 2\n"));
+    }
+}
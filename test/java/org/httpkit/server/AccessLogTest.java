@@ -0,0 +1,123 @@
+package org.httpkit.server;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class AccessLogTest {
+
+    private static HttpRequest request(String url) throws Exception {
+        HttpRequest req = new HttpRequest(HttpMethod.GET, url, HttpVersion.HTTP_1_1);
+        TreeMap<String, Object> headers = new TreeMap<String, Object>();
+        headers.put("user-agent", "test \"agent\"");
+        req.setHeaders(headers);
+        req.timed = true;
+        req.firstByteTime = 1000000;
+        req.startTime = 2000000;
+        req.handlerTime = 3000000;
+        req.responseTime = 5500000;
+        req.lastByteTime = 6000000;
+        req.status = 200;
+        req.responseBytes = 42;
+        return req;
+    }
+
+    @Test
+    public void shouldWriteCombinedLogLines() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccessLog log = new AccessLog(out, 16, AccessLog.OnFull.DROP);
+        log.log(request("/a?b=c"));
+        log.close();
+        String line = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(line, line.matches(
+                "- - - \\[[^]]+\\] \"GET /a\\?b=c HTTP/1.1\" 200 42 \"-\" \"test \\\\\"agent\\\\\"\" "
+                        + "5.000 queue=1.000 handler=2.500 write=0.500\n"));
+        Assert.assertThat(log.getWritten(), is(1L));
+    }
+
+    @Test
+    public void shouldEscapeControlCharacters() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccessLog log = new AccessLog(out, 16, AccessLog.OnFull.DROP);
+        HttpRequest req = request("/a\n127.0.0.1 - - forged?b=\r\u0001");
+        req.getHeaders().put("user-agent", "x\ty\u007f");
+        log.log(req);
+        log.close();
+        String line = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(line, line.contains(
+                "\"GET /a\\n127.0.0.1 - - forged?b=\\r\\x01 HTTP/1.1\" 200 42 \"-\" \"x\\ty\\x7f\""));
+        Assert.assertThat(line.indexOf('\n'), is(line.length() - 1));
+    }
+
+    @Test
+    public void shouldDropWhenFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccessLog log = new AccessLog(new java.io.OutputStream() {
+            public void write(int b) {
+                bytes.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                bytes.write(b, off, len);
+            }
+        }, 4, AccessLog.OnFull.DROP);
+        log.log(request("/first"));
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS)); // the background thread is stuck
+        for (int i = 0; i < 7; i++) {
+            log.log(request("/" + i));
+        }
+        Assert.assertThat(log.getDropped(), is(3L));
+        release.countDown();
+        log.close();
+        Assert.assertThat(log.getWritten(), is(5L));
+        String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertThat(lines.length, is(5));
+    }
+
+    @Test
+    public void shouldDropWhenBlockedTooLong() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AccessLog log = new AccessLog(new java.io.OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, 1, AccessLog.OnFull.BLOCK);
+        log.log(request("/first"));
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        log.log(request("/queued"));
+        long start = System.nanoTime();
+        log.log(request("/dropped")); // waits BLOCK_MS for room
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(AccessLog.BLOCK_MS));
+        Assert.assertThat(log.getDropped(), is(1L));
+        release.countDown();
+        log.close();
+        Assert.assertThat(log.getWritten(), is(2L));
+    }
+}
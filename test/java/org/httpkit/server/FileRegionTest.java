@@ -0,0 +1,46 @@
+package org.httpkit.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class FileRegionTest {
+
+    private static File tempFile(int size) throws IOException {
+        File file = File.createTempFile("http-kit", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[size]);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void shouldTransferFile() throws IOException {
+        FileRegion region = new FileRegion(tempFile(100000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(region.transferTo(Channels.newChannel(out)));
+        Assert.assertThat(out.size(), is(100000));
+        Assert.assertThat(region.remaining(), is(0L));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnceTruncated() throws IOException {
+        File file = tempFile(100000);
+        FileRegion region = new FileRegion(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(1000); // after the response's Content-Length was sent
+        raf.close();
+        WritableByteChannel ch = Channels.newChannel(new ByteArrayOutputStream());
+        region.transferTo(ch); // not false: the socket would be polled forever
+    }
+}
@@ -0,0 +1,137 @@
+package org.httpkit.server;
+
+import org.httpkit.LineTooLargeException;
+import org.httpkit.ProtocolException;
+import org.httpkit.RequestTooLargeException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+
+public class JavaHandlerTest {
+
+    private HttpDecoder httpDecoder = new HttpDecoder(8388608, 4096, ProxyProtocolOption.DISABLED);
+
+    public class MockRespCallback extends RespCallback {
+        private Vector<String> storage;
+
+        public MockRespCallback(Vector<String> storage) {
+            super(null, null);
+            this.storage = storage;
+        }
+
+        @Override
+        public void run(ByteBuffer... buffers) {
+            StringBuilder builder = new StringBuilder();
+            for (ByteBuffer buffer : buffers) {
+                builder.append(new String(buffer.array(), 0, buffer.limit()));
+            }
+            storage.add(builder.toString());
+        }
+    }
+
+    private HttpRequest aDummyRequest() throws ProtocolException, LineTooLargeException, RequestTooLargeException {
+        httpDecoder.reset();
+        return httpDecoder.decode(ByteBuffer.wrap(("GET /foo/bar?query=baz HTTP/1.1\r\n"
+                + "Host: example.com:8080\r\n"
+                + "X-Custom: a\r\n\r\n").getBytes()));
+    }
+
+    private void awaitResponse(Vector<String> assertionItems) throws InterruptedException {
+        for (int i = 0; i < 200 && assertionItems.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(20); // no second one
+    }
+
+    @Test
+    public void shouldRespondWithoutRingMaps() throws Exception {
+        Vector<String> assertionItems = new Vector<String>();
+
+        ExecutorService testWorkerPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(2));
+        JavaHandler handler = new JavaHandler(new RequestHandler() {
+            public void handle(HttpRequest request, Response response) {
+                response.status(201)
+                        .header("X-Uri", request.uri)
+                        .send(request.getServerName() + ":" + request.getServerPort()
+                                + " " + request.getHeader("x-custom"));
+            }
+        }, testWorkerPool);
+        handler.handle(aDummyRequest(), new MockRespCallback(assertionItems));
+
+        awaitResponse(assertionItems);
+        handler.close(0);
+
+        Assert.assertThat(assertionItems.size(), is(1));
+        String element = assertionItems.firstElement();
+        Assert.assertThat(element, containsString("HTTP/1.1 201 Created"));
+        Assert.assertThat(element, containsString("X-Uri: /foo/bar\r\n"));
+        Assert.assertThat(element, containsString("example.com:8080 a"));
+    }
+
+    @Test
+    public void shouldRespond500OnError() throws Exception {
+        Vector<String> assertionItems = new Vector<String>();
+
+        JavaHandler handler = new JavaHandler(1, new RequestHandler() {
+            public void handle(HttpRequest request, Response response) {
+                throw new IllegalArgumentException("boom");
+            }
+        }, "java-handler-test-", 2, "http-kit");
+        handler.handle(aDummyRequest(), new MockRespCallback(assertionItems));
+
+        awaitResponse(assertionItems);
+        handler.close(0);
+
+        Assert.assertThat(assertionItems.size(), is(1));
+        Assert.assertThat(assertionItems.firstElement(), containsString("HTTP/1.1 500 Internal Server Error"));
+        Assert.assertThat(assertionItems.firstElement(), containsString("boom"));
+    }
+
+    @Test
+    public void shouldServeThroughHttpServer() throws Exception {
+        JavaHandler handler = new JavaHandler(2, new RequestHandler() {
+            public void handle(HttpRequest request, Response response) throws Exception {
+                InputStream body = request.getBody();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b;
+                while (body != null && (b = body.read()) != -1) {
+                    out.write(b);
+                }
+                response.header("Content-Type", "text/plain").send(request.method + " " + out);
+            }
+        }, "java-handler-test-", 16, "http-kit");
+        HttpServer server = new HttpServer("127.0.0.1", 3490, handler, 20480, 2048, 1024 * 1024 * 4,
+                ProxyProtocolOption.DISABLED);
+        server.start();
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:3490/echo").openConnection();
+            con.setRequestMethod("POST");
+            con.setDoOutput(true);
+            con.getOutputStream().write("hello".getBytes());
+            Assert.assertThat(con.getResponseCode(), is(200));
+            Assert.assertThat(con.getHeaderField("Content-Type"), is("text/plain"));
+            InputStream in = con.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+            Assert.assertThat(out.toString(), is("POST hello"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
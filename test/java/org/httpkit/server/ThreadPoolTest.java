@@ -3,6 +3,7 @@ package org.httpkit.server;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.httpkit.RingBlockingQueue;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -107,6 +108,21 @@ public class ThreadPoolTest {
 
     }
 
+    @Test
+    public void testJDKSRing() throws InterruptedException {
+        BlockingQueue<Runnable> queue = new RingBlockingQueue<Runnable>(total);
+        ExecutorService exes = new ThreadPoolExecutor(thread, thread, 0, TimeUnit.MILLISECONDS,
+                queue);
+        pool = queue;
+        int c = 0;
+
+        while (c++ < total) {
+            exes.submit(new Task(counter));
+        }
+        exes.shutdown();
+        exes.awaitTermination(1000, TimeUnit.SECONDS);
+    }
+
     @Test
     public void testHomeMade2() throws InterruptedException {
         BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(total);
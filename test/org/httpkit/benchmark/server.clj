@@ -15,7 +15,7 @@
   ([] ; Headers
    (u/join->csv
      [(u/standard-csv-rows)
-      ["Server.name" "Server.pool-type" "Server.min-threads" "Server.max-threads" "Server.queue-size"]
+      ["Server.name" "Server.pool-type" "Server.min-threads" "Server.max-threads" "Server.queue-size" "Server.queue-type"]
       ["wrk.version" "wrk.warm-up" "wrk.duration" "wrk.timeout" "wrk.threads" "wrk.conns" "wrk.keep-alive?"]
       ["wrk.error" "wrk.duration (µsecs)" "Reqs.total" "Reqs.per-sec" "Bytes.total" "Bytes.per-sec"]
       ["Latency.mean (µsecs)" "Latency.stdev (µsecs)" "Latency.min (µsecs)"
@@ -29,8 +29,9 @@
    (u/join->csv
      [(u/standard-csv-rows row-data)
       (u/quoted server-name)
-      (let [{:keys [type n-min-threads n-max-threads queue-size]} worker]
-        [(when type (name type)) n-min-threads n-max-threads queue-size])
+      (let [{:keys [type n-min-threads n-max-threads queue-size queue-type]} worker]
+        [(when type (name type)) n-min-threads n-max-threads queue-size
+         (when queue-type (name queue-type))])
 
       (let [{:keys [version warm-up duration timeout n-threads n-conns keep-alive?]} (:opts wrk-result)]
         [version warm-up duration timeout n-threads n-conns keep-alive?])
@@ -68,7 +69,7 @@
 
   See current implementors as examples, and
   `org.httpkit.utils/new-worker` for worker details."
-  (^:private server-start [_ handler port {:as worker-opts :keys [n-threads n-min-threads n-max-threads queue-size allow-virtual?]}])
+  (^:private server-start [_ handler port {:as worker-opts :keys [n-threads n-min-threads n-max-threads queue-size queue-type allow-virtual?]}])
   (^:private server-stop  [_ timeout-msecs]))
 
 (deftype ServerHttpKit [state_]
@@ -360,6 +361,7 @@
 
       :worker-opts
       {:queue-size  [queue-size]
+       :queue-type  [:array :linked :ring]
        :n-threads   [(* nc 2) (* nc 8) (* nc 16) nil]}
 
       :wrk-opts
@@ -384,6 +386,7 @@
 
       :worker-opts
       {:queue-size  [queue-size]
+       :queue-type  [:array :ring]
        :n-threads   [(* nc 2) (* nc 16) nil]}
 
       :wrk-opts
@@ -402,6 +405,7 @@
 
             :worker-opts
             {:queue-size  [1024]
+             :queue-type  [:array]
              :n-threads   [(* nc 4)]}
 
             :wrk-opts
@@ -436,19 +440,21 @@
                     resp-work        (:resp-work   server-opts)
                     n-worker-threads (:n-threads   worker-opts)
                     queue-size       (:queue-size  worker-opts)
+                    queue-type       (:queue-type  worker-opts [:array])
                     timeout          (:timeout     wrk-opts)
                     n-wrk-threads    (:n-threads   wrk-opts)
                     n-conns          (:n-conns     wrk-opts)
                     keep-alive?      (:keep-alive? wrk-opts)]
 
-                (let [allow-virtual? (and have-vts? (nil? n-worker-threads))]
+                (let [allow-virtual? (and have-vts? (nil? n-worker-threads))
+                      queue-type     (if allow-virtual? :array queue-type)] ; Unused by virtual threads
 
                   {:nat-idx      (swap! nat-idx_ inc)
                    :metadata     metadata
                    :system-info  system-info
                    ;;
                    :server-opts  {:server-id server-id :port port :resp-len resp-len :resp-work resp-work}
-                   :worker-opts  {:n-threads n-worker-threads :allow-virtual? allow-virtual? :queue-size queue-size}
+                   :worker-opts  {:n-threads n-worker-threads :allow-virtual? allow-virtual? :queue-size queue-size :queue-type queue-type}
                    :wrk-opts     {:timeout timeout :n-threads n-wrk-threads :n-conns n-conns :keep-alive? keep-alive?}}))))
 
           n-specs (count specs)
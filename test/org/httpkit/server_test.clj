@@ -348,6 +348,771 @@
     (= 2 (count (re-seq #"hello world" resp)))
     (= 2 (count (re-seq #"200" resp)))))
 
+(deftest test-pipelining
+  (let [server (run-server
+                (fn [req]
+                  (let [n (to-int (subs (:uri req) 1))]
+                    (if (even? n)
+                      (as-channel req {:on-open
+                                       (fn [ch]
+                                         (schedule-task (- 50 n)
+                                           (send! ch {:status 200 :body (str "r" n)})))})
+                      {:status 200 :body (str "r" n)})))
+                {:port 3479 :max-pipeline 4})]
+    (try
+      (let [paths (map #(str "/" %) (range 20))
+            resp  (SpecialHttpClient/pipelined "http://localhost:3479/"
+                                               (into-array String paths))]
+        (is (= (map #(str "r" %) (range 20)) (re-seq #"r\d+" resp))))
+      (finally (server)))))
+
+(deftest test-stream-body
+  (let [server (run-server
+                (fn [req]
+                  (if (= "/skip" (:uri req))
+                    {:status 200 :body "skipped"}
+                    {:status 200 :body (str (count (slurp (:body req))))}))
+                {:port 3480 :stream-body? true})]
+    (try
+      (let [body (apply str (repeat 1000000 "x"))]
+        (is (= "1000000" (:body @(client/post "http://localhost:3480/"
+                                              {:body body :as :text}))))
+        ;; unread body is skipped, the connection goes on with the next request
+        (is (= "skipped" (:body @(client/post "http://localhost:3480/skip"
+                                              {:body body :as :text}))))
+        (is (= "5" (:body (http/post "http://localhost:3480/"
+                                     {:body (java.io.ByteArrayInputStream. (.getBytes "hello"))})))))
+      (finally (server)))))
+
+(defn- test-ssl-context []
+  (let [password (.toCharArray "123456")
+        ks  (doto (java.security.KeyStore/getInstance "JKS")
+              (.load (FileInputStream. "test/ssl_keystore") password))
+        kmf (doto (javax.net.ssl.KeyManagerFactory/getInstance
+                   (javax.net.ssl.KeyManagerFactory/getDefaultAlgorithm))
+              (.init ks password))]
+    (doto (javax.net.ssl.SSLContext/getInstance "TLS")
+      (.init (.getKeyManagers kmf) nil nil))))
+
+(defn- tls-exchange
+  "Sends request on a plain socket through a client SSLEngine, reads until the
+   connection is closed. Returns [response, whether close_notify was received]"
+  [port ^String request]
+  (let [trust-all (reify javax.net.ssl.X509TrustManager
+                    (checkClientTrusted [_ _ _])
+                    (checkServerTrusted [_ _ _])
+                    (getAcceptedIssuers [_] (make-array java.security.cert.X509Certificate 0)))
+        ctx    (doto (javax.net.ssl.SSLContext/getInstance "TLS")
+                 (.init nil (into-array javax.net.ssl.TrustManager [trust-all]) nil))
+        engine (doto (.createSSLEngine ctx "localhost" (int port)) (.setUseClientMode true))
+        size   (.getPacketBufferSize (.getSession engine))
+        net-in (java.nio.ByteBuffer/allocate (* 2 size))
+        app    (java.nio.ByteBuffer/allocate (* 2 (.getApplicationBufferSize (.getSession engine))))
+        resp   (java.io.ByteArrayOutputStream.)]
+    (with-open [ch (java.nio.channels.SocketChannel/open (InetSocketAddress. "localhost" (int port)))]
+      (let [send!   (fn [^java.nio.ByteBuffer src]
+                      (let [out (java.nio.ByteBuffer/allocate size)]
+                        (.wrap engine src out)
+                        (.flip out)
+                        (while (.hasRemaining out) (.write ch out))))
+            unwrap! (fn [] ; a record, read first if need be. false at end of stream
+                      (loop []
+                        (.flip net-in)
+                        (let [res (.unwrap engine net-in app)]
+                          (.compact net-in)
+                          (.flip app)
+                          (.write resp (.array app) (.position app) (.remaining app))
+                          (.clear app)
+                          (cond (pos? (.bytesConsumed res)) true
+                                (neg? (.read ch net-in))    false
+                                :else                       (recur)))))]
+        (.beginHandshake engine)
+        (loop []
+          (condp = (.getHandshakeStatus engine)
+            javax.net.ssl.SSLEngineResult$HandshakeStatus/NEED_WRAP
+            (do (send! (java.nio.ByteBuffer/allocate 0)) (recur))
+            javax.net.ssl.SSLEngineResult$HandshakeStatus/NEED_UNWRAP
+            (when (unwrap!) (recur))
+            javax.net.ssl.SSLEngineResult$HandshakeStatus/NEED_TASK
+            (do (.run (.getDelegatedTask engine)) (recur))
+            nil))
+        (send! (java.nio.ByteBuffer/wrap (.getBytes request)))
+        (while (unwrap!))
+        [(String. (.toByteArray resp)) (.isInboundDone engine)]))))
+
+(deftest test-ssl
+  (let [file   (gen-tempfile 100000 ".txt")
+        server (run-server
+                (fn [req]
+                  (case (:uri req)
+                    "/file" {:status 200 :body file}
+                    "/echo" {:status 200 :body (slurp (:body req))}
+                    {:status 200 :body (name (:scheme req))}))
+                {:port 3481 :ssl-context (test-ssl-context)})]
+    (try
+      (is (= "https" (:body @(client/get "https://localhost:3481/"
+                                         {:insecure? true :as :text}))))
+      (is (= 100000 (count (:body @(client/get "https://localhost:3481/file"
+                                               {:insecure? true :as :byte-array})))))
+      (let [body (apply str (repeat 100000 "x"))]
+        (is (= body (:body @(client/post "https://localhost:3481/echo"
+                                         {:insecure? true :body body :as :text})))))
+      ;; close_notify before the connection is closed
+      (let [[resp closed?] (tls-exchange 3481 "GET / HTTP/1.1\r\nHost: a\r\nConnection: close\r\n\r\n")]
+        (is (re-find #"https$" resp))
+        (is closed? "close_notify received"))
+      (finally (server)))))
+
+(deftest test-http2
+  (let [server (run-server
+                (fn [req]
+                  (case (:uri req)
+                    "/echo" {:status 200 :body (slurp (:body req))}
+                    "/stream" (as-channel req {:on-open
+                                               (fn [ch]
+                                                 (send! ch {:status 200 :body "a"} false)
+                                                 (send! ch "b" false)
+                                                 (send! ch "c" true))})
+                    {:status 200
+                     :headers {"x-values" ["1" "2"]}
+                     :body (str (name (:scheme req)) " " (name (:request-method req)))}))
+                {:port 3482 :http2? true})
+        client (.build (java.net.http.HttpClient/newBuilder))
+        send   (fn [^java.net.http.HttpRequest$Builder b]
+                 (.send client (.build b) (java.net.http.HttpResponse$BodyHandlers/ofString)))
+        req    #(java.net.http.HttpRequest/newBuilder (java.net.URI. (str "http://localhost:3482" %)))]
+    (try
+      ;; Upgrade: h2c, then the same connection, many streams at once
+      (let [resp (send (req "/"))]
+        (is (= "http get" (.body resp)))
+        (is (= "HTTP_2" (str (.version resp))))
+        (is (= ["1" "2"] (vec (.allValues (.headers resp) "x-values")))))
+      (let [body (apply str (repeat 1000000 "x"))]
+        (is (= body (.body (send (-> (req "/echo")
+                                     (.POST (java.net.http.HttpRequest$BodyPublishers/ofString body))))))))
+      (is (= "abc" (.body (send (req "/stream")))))
+      (is (every? #(= "http get" %)
+                  (map #(.body (.join ^java.util.concurrent.CompletableFuture %))
+                       (doall (repeatedly 50 #(.sendAsync client (.build (req "/"))
+                                                         (java.net.http.HttpResponse$BodyHandlers/ofString)))))))
+      ;; HTTP/1.1 still served
+      (is (= "http get" (:body @(client/get "http://localhost:3482/" {:as :text}))))
+      (finally (server)))))
+
+(defn- h2-frame
+  "An HTTP/2 frame, payload bytes after its 9 bytes of header"
+  ^bytes [type flags stream-id ^bytes payload]
+  (let [n (alength payload)
+        b (java.nio.ByteBuffer/allocate (+ 9 n))]
+    (-> b
+        (.put (unchecked-byte (bit-shift-right n 16)))
+        (.putShort (unchecked-short (bit-and n 0xffff)))
+        (.put (unchecked-byte type))
+        (.put (unchecked-byte flags))
+        (.putInt (int stream-id))
+        (.put payload))
+    (.array b)))
+
+(defn- h2-read-until
+  "Reads frames until one of type, returns it as [flags stream-id payload],
+   nil if the connection is closed first"
+  [^java.io.DataInputStream in type]
+  (try
+    (loop []
+      (let [head (byte-array 9)
+            _    (.readFully in head)
+            n    (bit-or (bit-shift-left (bit-and (aget head 0) 0xff) 16)
+                         (bit-shift-left (bit-and (aget head 1) 0xff) 8)
+                         (bit-and (aget head 2) 0xff))
+            payload (byte-array n)]
+        (.readFully in payload)
+        (if (= type (bit-and (aget head 3) 0xff))
+          [(bit-and (aget head 4) 0xff)
+           (.getInt (java.nio.ByteBuffer/wrap head 5 4))
+           payload]
+          (recur))))
+    (catch java.io.IOException _ nil)))
+
+(deftest test-http2-limits
+  (let [server    (run-server (fn [req] {:status 200 :body "ok"}) {:port 3505 :http2? true})
+        preface   (.getBytes "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")
+        settings  (h2-frame 4 0 0 (byte-array 0))
+        ;; :method GET, :path /, :scheme http: indexed
+        get-block (byte-array [(unchecked-byte 0x82) (unchecked-byte 0x84) (unchecked-byte 0x86)])
+        goaway-code (fn [[_ _ ^bytes payload]]
+                      (when payload (.getInt (java.nio.ByteBuffer/wrap payload 4 4))))
+        connect   (fn [f]
+                    (with-open [sock (java.net.Socket. "localhost" 3505)]
+                      (.setSoTimeout sock 5000)
+                      (f (.getOutputStream sock)
+                         (java.io.DataInputStream. (.getInputStream sock)))))]
+    (try
+      ;; the preface split across reads is still h2c with prior knowledge
+      (connect (fn [^java.io.OutputStream out in]
+                 (.write out preface 0 5) (.flush out)
+                 (Thread/sleep 100)
+                 (.write out preface 5 (- (alength preface) 5))
+                 (.write out settings)
+                 (.write out (h2-frame 1 5 1 get-block)) ; END_STREAM | END_HEADERS
+                 (.flush out)
+                 (let [[_ id ^bytes block] (h2-read-until in 1)]
+                   (is (= 1 id))
+                   (is (= 0x88 (bit-and (aget block 0) 0xff)))))) ; :status 200
+      ;; a small block expanding to a large header list: 431
+      (connect (fn [^java.io.OutputStream out in]
+                 (.write out preface)
+                 (.write out settings)
+                 (let [block (java.io.ByteArrayOutputStream.)]
+                   (.write block get-block 0 3)
+                   ;; x: 4000 bytes, added to the dynamic table, then referenced 100 times
+                   (.write block (byte-array (map unchecked-byte [0x40 1 (int \x) 0x7f 0xa1 0x1e])))
+                   (.write block (byte-array 4000 (byte 97)))
+                   (dotimes [_ 100] (.write block 0xbe))
+                   (.write out (h2-frame 1 5 1 (.toByteArray block))))
+                 (.flush out)
+                 (let [[_ id ^bytes block] (h2-read-until in 1)]
+                   (is (= 1 id))
+                   (is (= "431" (String. block 2 3)))))) ; :status, literal
+      ;; a header block growing without end: ENHANCE_YOUR_CALM
+      (connect (fn [^java.io.OutputStream out in]
+                 (.write out preface)
+                 (.write out settings)
+                 (.write out (h2-frame 1 1 1 get-block)) ; END_STREAM, more headers to come
+                 (try
+                   (dotimes [_ 20]
+                     (.write out (h2-frame 9 0 1 (byte-array 16384))))
+                   (.flush out)
+                   (catch java.io.IOException _)) ; closed while writing
+                 (is (= 11 (goaway-code (h2-read-until in 7))))))
+      ;; streams opened and reset at once, faster than they are handled: ENHANCE_YOUR_CALM
+      (connect (fn [^java.io.OutputStream out in]
+                 (.write out preface)
+                 (.write out settings)
+                 (try
+                   (doseq [id (range 1 1000 2)]
+                     (.write out (h2-frame 1 5 id get-block))
+                     (.write out (h2-frame 3 0 id (byte-array [0 0 0 8])))) ; CANCEL
+                   (.flush out)
+                   (catch java.io.IOException _))
+                 (is (= 11 (goaway-code (h2-read-until in 7))))))
+      (finally (server)))))
+
+(deftest test-http2-flow-control
+  (let [done      (promise)
+        server    (run-server (fn [req] @done {:status 200 :body "ok"})
+                              {:port 3506 :http2? true :max-body 65536})
+        preface   (.getBytes "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")
+        ;; :method POST, :path /, :scheme http: indexed
+        post-block (byte-array [(unchecked-byte 0x83) (unchecked-byte 0x84) (unchecked-byte 0x86)])
+        increment (fn [[_ id ^bytes payload]]
+                    (when payload [id (.getInt (java.nio.ByteBuffer/wrap payload))]))]
+    (try
+      (with-open [sock (java.net.Socket. "localhost" 3506)]
+        (.setSoTimeout sock 5000)
+        (let [out (.getOutputStream sock)
+              in  (java.io.DataInputStream. (.getInputStream sock))]
+          (.write out preface)
+          (.write out (h2-frame 4 0 0 (byte-array 0)))
+          ;; the connection window: twice max-body
+          (is (= [0 (- 131072 65535)] (increment (h2-read-until in 8))))
+          (.write out (h2-frame 1 4 1 post-block)) ; END_HEADERS
+          (.write out (h2-frame 0 1 1 (byte-array 16384))) ; END_STREAM
+          (.flush out)
+          (.setSoTimeout sock 500)
+          (is (nil? (h2-read-until in 8)) "held while the handler has the body")
+          (.setSoTimeout sock 5000)
+          (deliver done true)
+          (is (= [0 16384] (increment (h2-read-until in 8))) "given back once it is done")))
+      (finally (server)))))
+
+(defn- read-until-closed
+  "Sends s on a new connection, pausing pause-ms between the chars if given,
+   then reads until the server closes it. Returns [what was read, msecs]"
+  [port ^String s & [pause-ms]]
+  (with-open [sock (java.net.Socket. "localhost" (int port))]
+    (let [start (System/currentTimeMillis)
+          out   (.getOutputStream sock)]
+      (.setSoTimeout sock 5000)
+      (try
+        (if pause-ms
+          (doseq [c s] (.write out (int c)) (.flush out) (Thread/sleep (long pause-ms)))
+          (.write out (.getBytes s)))
+        (catch java.io.IOException _)) ; closed while writing
+      [(slurp (.getInputStream sock)) (- (System/currentTimeMillis) start)])))
+
+(deftest test-timeouts
+  (let [events (atom [])
+        server (run-server (fn [req]
+                             (when (= "/slow" (:uri req)) (Thread/sleep 1200))
+                             (if (= "/big" (:uri req))
+                               {:status 200 :body (java.io.ByteArrayInputStream. (byte-array (* 32 1024 1024)))}
+                               {:status 200 :body "ok"}))
+                           {:port 3483 :idle-timeout 600 :header-timeout 300 :body-timeout 300
+                            :write-timeout 400 :event-logger #(swap! events conj %)})]
+    (try
+      (let [[_ ms] (read-until-closed 3483 "")]
+        (is (<= 550 ms 1500) "idle connection"))
+      (let [[resp ms] (read-until-closed 3483 "GET / HTTP/1.1\r\nHost: a\r\n\r\n")]
+        (is (re-find #"^HTTP/1.1 200" resp))
+        (is (<= 550 ms 1500) "kept alive, then idle"))
+      (let [[resp ms] (read-until-closed 3483 "GET / HT")]
+        (is (re-find #"^HTTP/1.1 408" resp))
+        (is (<= 250 ms 600) "partial request line"))
+      (let [[resp _] (read-until-closed 3483 "GET / HTTP/1.1\r\nHost: abcdefghijklmnop\r\n" 50)]
+        (is (re-find #"^HTTP/1.1 408" resp) "headers trickled, the total is timed"))
+      (let [[resp ms] (read-until-closed 3483 "POST / HTTP/1.1\r\nHost: a\r\nContent-Length: 10\r\n\r\nabc")]
+        (is (re-find #"^HTTP/1.1 408" resp))
+        (is (<= 250 ms 600) "partial body"))
+      (let [[resp _] (read-until-closed 3483 "GET /slow HTTP/1.1\r\nHost: a\r\n\r\n")]
+        (is (re-find #"^HTTP/1.1 200" resp) "not timed out while the handler runs"))
+      (with-open [sock (doto (java.net.Socket.) (.setReceiveBufferSize 4096))]
+        (.connect sock (java.net.InetSocketAddress. "localhost" 3483))
+        (.setSoTimeout sock 5000)
+        (.write (.getOutputStream sock) (.getBytes "GET /big HTTP/1.1\r\nHost: a\r\n\r\n"))
+        (Thread/sleep 1500) ; not reading: the response stalls
+        (let [in (.getInputStream sock)
+              b  (byte-array 65536)
+              n  (loop [n 0] (let [r (.read in b)] (if (neg? r) n (recur (+ n r)))))]
+          (is (< n (* 32 1024 1024)) "closed, the client not reading")))
+      (is (= #{"httpkit.server.timeout.idle" "httpkit.server.timeout.header"
+               "httpkit.server.timeout.body" "httpkit.server.timeout.write"}
+             (set (filter #(.startsWith ^String % "httpkit.server.timeout") @events))))
+      (finally (server)))))
+
+(deftest test-max-connections
+  (let [server (run-server (fn [req] {:status 200 :body "ok"})
+                           {:port 3484 :max-connections 2 :legacy-return-value? false})
+        get!   (fn [^java.net.Socket sock]
+                 (.write (.getOutputStream sock) (.getBytes "GET / HTTP/1.1\r\nHost: a\r\n\r\n"))
+                 (let [b (byte-array 1024)]
+                   (String. b 0 (.read (.getInputStream sock) b))))]
+    (try
+      (let [a (java.net.Socket. "localhost" 3484)
+            b (java.net.Socket. "localhost" 3484)
+            c (doto (java.net.Socket. "localhost" 3484) (.setSoTimeout 300))] ; in the backlog
+        (is (re-find #"200" (get! a)))
+        (is (re-find #"200" (get! b)))
+        (is (= 2 (server-connections server)))
+        (is (thrown? java.net.SocketTimeoutException (get! c)))
+        (.close a)
+        (.setSoTimeout c 2000)
+        (is (re-find #"200" (let [bs (byte-array 1024)]
+                              (String. bs 0 (.read (.getInputStream c) bs)))))
+        (.close b)
+        (.close c))
+      (finally (server-stop! server))))
+  (let [server (run-server (fn [req] {:status 200 :body "ok"})
+                           {:port 3484 :max-connections 1 :reject-connections? true})]
+    (try
+      (with-open [a (java.net.Socket. "localhost" 3484)
+                  b (java.net.Socket. "localhost" 3484)]
+        (Thread/sleep 100)
+        (is (re-find #"^HTTP/1.1 503" (slurp (.getInputStream b)))))
+      (finally (server)))))
+
+(deftest test-large-response-head
+  ;; heads are encoded into pooled buffers, retried in a larger one when full
+  (let [headers (into {} (for [i (range 300)] [(str "x-h-" i) (str "valeur-\u00e9-" i)]))
+        server  (run-server (fn [req] {:status 200 :headers headers :body "ok"}) {:port 3485})]
+    (try
+      (dotimes [_ 3]
+        (with-open [sock (java.net.Socket. "localhost" 3485)]
+          (.write (.getOutputStream sock)
+                  (.getBytes "GET / HTTP/1.1\r\nHost: a\r\nConnection: close\r\n\r\n"))
+          (let [raw (String. (.readAllBytes (.getInputStream sock)) "UTF-8")]
+            (is (.contains raw "X-H-299: valeur-\u00e9-299\r\n"))
+            (is (.endsWith raw "\r\n\r\nok")))))
+      (finally (server)))))
+
+(deftest test-request-parsing
+  ;; the request line and headers are parsed from bytes, names interned
+  (let [seen   (atom nil)
+        server (run-server (fn [req] (reset! seen req) {:status 200 :body "ok"})
+                           {:port 3486})]
+    (try
+      (with-open [sock (java.net.Socket. "localhost" 3486)]
+        (.write (.getOutputStream sock)
+                (.getBytes (str "post /p?q=1 HTTP/1.0\r\n"
+                                "HOST: a:3486\r\n"
+                                "X-Custom-Name :  v1 \r\n"
+                                "x-custom-name: v2\r\n"
+                                "Accept:\r\n"
+                                "Content-Length: 2\r\n\r\nhi")))
+        (.readAllBytes (.getInputStream sock)))
+      (let [req @seen
+            h   (:headers req)]
+        (is (= :post (:request-method req)))
+        (is (= "/p" (:uri req)))
+        (is (= "q=1" (:query-string req)))
+        (is (= "a" (:server-name req)))
+        (is (= "v1\nv2" (get h "x-custom-name")))
+        (is (= "" (get h "accept")))
+        (is (identical? "content-length" (some #{"content-length"} (keys h))))
+        (is (= "hi" (slurp (:body req)))))
+      (finally (server)))))
+
+(deftest test-lazy-request-map
+  ;; the request map reads HttpRequest as looked up, a real map made on change
+  (let [seen   (promise)
+        server (run-server
+                (fn [req]
+                  (deliver seen
+                           {:uri     (:uri req)
+                            :body    (identical? (:body req) (:body req))
+                            :count   (count req)
+                            :keys    (set (keys req))
+                            :missing (get req :nope ::none)
+                            :has-ws? (contains? req :websocket?)
+                            :assoc   (:x (assoc req :x 1))
+                            :dissoc  (contains? (dissoc req :uri) :uri)
+                            :merged  (:uri (merge req {:uri "/m"}))
+                            :meta    (meta (with-meta req {:a 1}))
+                            :equal   (= req (into {} req))
+                            :host    (get-in req [:headers "host"])})
+                  {:status 200 :body "ok"})
+                {:port 3488})]
+    (try
+      (with-open [sock (java.net.Socket. "localhost" 3488)]
+        (.write (.getOutputStream sock)
+                (.getBytes (str "POST /lazy HTTP/1.1\r\nHost: h\r\nConnection: close\r\n"
+                                "Content-Length: 2\r\n\r\nhi")))
+        (.readAllBytes (.getInputStream sock)))
+      (let [r (deref seen 5000 nil)]
+        (is (= "/lazy" (:uri r)))
+        (is (:body r))
+        (is (= 15 (:count r)))
+        (is (contains? (:keys r) :remote-addr))
+        (is (= ::none (:missing r)))
+        (is (:has-ws? r))
+        (is (= 1 (:assoc r)))
+        (is (false? (:dissoc r)))
+        (is (= "/m" (:merged r)))
+        (is (= {:a 1} (:meta r)))
+        (is (:equal r))
+        (is (= "h" (:host r))))
+      (finally (server)))))
+
+(deftest test-inline-handler
+  ;; requests picked by :inline? run on the IO thread, slow ones logged as events
+  (let [events  (atom [])
+        release (promise)
+        server (run-server (fn [req]
+                             (when (= "/slow" (:uri req)) (deref release 2000 nil))
+                             {:status 200 :body (.getName (Thread/currentThread))})
+                           {:port 3491
+                            :inline? (fn [req] (not= "/pooled" (:uri req)))
+                            :inline-budget 100
+                            :event-logger (fn [e] (swap! events conj e))})]
+    (try
+      (slurp "http://localhost:3491/fast") ; warm up
+      (reset! events [])
+      (is (.startsWith ^String (slurp "http://localhost:3491/fast") "server-loop"))
+      (is (not (.startsWith ^String (slurp "http://localhost:3491/pooled") "server-loop")))
+      (is (not-any? #{"httpkit.server.inline.slow"} @events))
+      (let [slow (future (slurp "http://localhost:3491/slow"))]
+        (Thread/sleep 300) ; logged by the watchdog while still running
+        (is (= ["httpkit.server.inline.slow"] (filter #{"httpkit.server.inline.slow"} @events)))
+        (deliver release true)
+        (is (.startsWith ^String @slow "server-loop")))
+      (is (= 1 (count (filter #{"httpkit.server.inline.slow"} @events)))) ; once
+      (finally (server)))))
+
+(deftest test-queue-target
+  ;; requests waiting too long for the single worker are answered 503
+  (let [events (atom [])
+        server (run-server (fn [req] (Thread/sleep 100) {:status 200 :body "ok"})
+                           {:port 3492 :thread 1
+                            :queue-target 50 :queue-interval 100
+                            :event-logger (fn [e] (swap! events conj e))})
+        status (fn []
+                 (let [con ^java.net.HttpURLConnection
+                       (.openConnection (java.net.URL. "http://localhost:3492/"))]
+                   (.getResponseCode con)))]
+    (try
+      (let [codes (frequencies (map deref (doall (repeatedly 8 #(future (status))))))]
+        (is (pos? (get codes 200 0)))
+        (is (pos? (get codes 503 0)))
+        (is (= (get codes 503) (count (filter #{"httpkit.server.status.503.shed"} @events)))))
+      (Thread/sleep 300) ; the queue drained: no longer shed as they arrive
+      (is (= 200 (status)))
+      (finally (server)))))
+
+(deftest test-abandoned-requests
+  ;; queued requests of clients gone: GET skipped, POST still run with :skip-safe
+  (let [events  (atom [])
+        ran     (atom [])
+        release (promise)
+        server  (run-server (fn [req]
+                              (if (= "/block" (:uri req))
+                                @release
+                                (swap! ran conj (:uri req)))
+                              {:status 200 :body "ok"})
+                            {:port 3493 :thread 1 :abandoned :skip-safe
+                             :event-logger (fn [e] (swap! events conj e))})
+        send-and-close (fn [req]
+                         (with-open [sock (java.net.Socket. "localhost" 3493)]
+                           (.write (.getOutputStream sock) (.getBytes ^String req))
+                           (Thread/sleep 50)))]
+    (try
+      (let [blocked (future (slurp "http://localhost:3493/block"))]
+        (Thread/sleep 50)
+        (send-and-close "GET /gone HTTP/1.1\r\nHost: a\r\n\r\n")
+        (send-and-close "POST /posted HTTP/1.1\r\nHost: a\r\nContent-Length: 0\r\n\r\n")
+        (Thread/sleep 50)
+        (deliver release true)
+        (is (= "ok" @blocked))
+        (is (= "ok" (slurp "http://localhost:3493/after")))
+        (is (= ["/posted" "/after"] @ran))
+        (is (= 2 (count (filter #{"httpkit.server.abandoned"} @events)))))
+      (finally (server)))))
+
+(deftest test-lanes
+  ;; a saturated lane answers 503 itself, other requests are still served
+  (let [release  (promise)
+        registry (org.httpkit.metrics.Metrics.)
+        server  (run-server (fn [req]
+                              (when (.startsWith ^String (:uri req) "/reports") @release)
+                              {:status 200 :body (.getName (Thread/currentThread))})
+                            {:port 3494 :metrics registry
+                             :lanes {:reports {:n-threads 1 :queue-size 1 :retry-after 5}}
+                             :lane-fn (fn [req]
+                                        (when (.startsWith ^String (:uri req) "/reports")
+                                          :reports))})
+        fetch  (fn [path]
+                 (let [con ^java.net.HttpURLConnection
+                       (.openConnection (java.net.URL. (str "http://localhost:3494" path)))]
+                   [(.getResponseCode con) (.getHeaderField con "Retry-After")
+                    (when (= 200 (.getResponseCode con)) (slurp (.getInputStream con)))]))]
+    (try
+      (let [running (future (fetch "/reports/1"))
+            _       (Thread/sleep 50)
+            queued  (future (fetch "/reports/2"))
+            _       (Thread/sleep 50)]
+        (is (= [503 "5" nil] (fetch "/reports/3")))
+        (let [m (.snapshot registry)] ; the lane's pool has gauges of its own
+          (is (= 1 (get m "server.pool.reports.active")))
+          (is (= 1 (get m "server.pool.reports.queued"))))
+        (let [[status _ body] (fetch "/health")]
+          (is (= 200 status))
+          (is (not (.startsWith ^String body "http-kit-server-reports-"))))
+        (deliver release true)
+        (is (.startsWith ^String (nth @running 2) "http-kit-server-reports-"))
+        (is (= 200 (first @queued))))
+      (finally (server)))))
+
+(deftest test-scaling-worker
+  ;; requests waiting for the only thread make the pool grow
+  (let [events (atom [])
+        server (run-server (fn [req]
+                             (Thread/sleep 200)
+                             {:status 200 :body (.getName (Thread/currentThread))})
+                           {:port 3495
+                            :scale? true :n-min-threads 1 :n-max-threads 4
+                            :scale-target 5 :scale-interval 20
+                            :event-logger #(swap! events conj %)})
+        fetch  (fn [] (slurp "http://localhost:3495/"))]
+    (try
+      (let [bodies (doall (map deref (doall (repeatedly 4 #(future (fetch))))))]
+        (is (some #{"httpkit.pool.grow"} @events))
+        (is (< 1 (count (set bodies)))))
+      (finally (server)))))
+
+(deftest test-bounded-worker
+  ;; past max concurrency requests wait, past the queue they are answered 503
+  (let [release (promise)
+        pool    (org.httpkit.BoundedExecutor.
+                  (java.util.concurrent.Executors/newCachedThreadPool) 1 1)
+        server  (run-server (fn [req] @release {:status 200 :body "ok"})
+                            {:port 3496 :worker-pool pool})
+        fetch   (fn []
+                  (let [con ^java.net.HttpURLConnection
+                        (.openConnection (java.net.URL. "http://localhost:3496/"))]
+                    (.getResponseCode con)))]
+    (try
+      (let [running (future (fetch))
+            _       (Thread/sleep 50)
+            queued  (future (fetch))
+            _       (Thread/sleep 50)]
+        (is (= [1 1] [(.getRunning pool) (.getWaiting pool)]))
+        (is (= 503 (fetch)))
+        (deliver release true)
+        (is (= [200 200] [@running @queued]))
+        (Thread/sleep 50) ; permits are released once the response is sent
+        (is (= [0 0] [(.getRunning pool) (.getWaiting pool)])))
+      (finally (server)))))
+
+(deftest test-metrics
+  ;; the phases of each request are recorded, by the server and the client alike
+  (let [registry (org.httpkit.metrics.Metrics.)
+        server   (run-server (fn [req] {:status (if (= "/missing" (:uri req)) 404 200) :body "ok"})
+                             {:port 3497 :metrics registry :legacy-return-value? false})
+        c        (client/make-client {:metrics registry})]
+    (try
+      (doseq [path ["/" "/" "/missing"]]
+        @(client/request {:url (str "http://localhost:3497" path) :client c}))
+      (Thread/sleep 50) ; the write is recorded once the response is sent
+      (let [m (server-metrics server)]
+        (is (= 3 (:server.requests m)))
+        (is (= [2 1] [(:server.status.2xx m) (:server.status.4xx m)]))
+        (doseq [k [:server.decode :server.queue :server.handler :server.write :client.request]]
+          (is (= 3 (get-in m [k :count])) (str k))
+          (is (<= 0 (get-in m [k :p50]) (get-in m [k :p99]) (get-in m [k :max])) (str k)))
+        (is (= 1 (:server.connections m) (:client.connections m)))
+        (is (= [0 0] [(:client.in-flight m) (:server.queued-bytes m)]))
+        (is (= m (client/client-metrics c))))
+      (finally (.stop c) (server-stop! server)))
+    ;; stopped: their gauges are unregistered, the registry can be given to others
+    (Thread/sleep 100)
+    (is (not-any? #{:server.connections :server.pool.active :client.connections}
+                  (keys (server-metrics server))))
+    (let [c (client/make-client {:metrics registry})]
+      (is (= 0 (:client.connections (client/client-metrics c))))
+      (.stop c))))
+
+(deftest test-request-timings
+  ;; phases stamped on the request map, in Server-Timing, and given to the slow request log
+  (let [seen   (promise)
+        slow   (promise)
+        server (run-server
+                (fn [req]
+                  (deliver seen (:timings req))
+                  (Thread/sleep 20)
+                  {:status 200 :body "ok"})
+                {:port 3498 :server-timing? true
+                 :slow-requests {:msecs 10 :fn #(deliver slow %)}})]
+    (try
+      (let [resp (http/get "http://localhost:3498/timed")
+            t    (deref seen 5000 nil)
+            s    (deref slow 5000 nil)]
+        (is (= 200 (:status resp)))
+        (is (= [:first-byte :headers :dispatch :handler-start] (keys t)))
+        (is (apply <= (vals t)))
+        (is (re-find #"^headers;dur=[0-9.]+, body;dur=[0-9.]+, queue;dur=[0-9.]+, handler;dur=[0-9.]+$"
+                     (str (get-in resp [:headers "server-timing"]))))
+        (is (= :get (:request-method s)))
+        (is (= "/timed" (:uri s)))
+        (is (= [:first-byte :headers :dispatch :handler-start :response :last-byte]
+               (keys (:timings s))))
+        (is (apply <= (vals (:timings s))))
+        (is (<= 20000000 (- (:response (:timings s)) (:handler-start (:timings s))))))
+      (finally (server))))
+  ;; not timed: no :timings key
+  (let [seen   (promise)
+        server (run-server (fn [req] (deliver seen (contains? req :timings)) {:status 200})
+                           {:port 3498})]
+    (try
+      (http/get "http://localhost:3498/")
+      (is (false? (deref seen 5000 nil)))
+      (finally (server)))))
+
+;; jdk.jfr resolved at run time: the namespace compiles on JVMs without JFR
+(def ^:private jfr-recording
+  (try (Class/forName "jdk.jfr.Recording") (catch ClassNotFoundException _ nil)))
+
+(deftest test-flight-events
+  ;; JFR events, emitted once enabled by a recording's settings
+  (when jfr-recording
+    (let [server (run-server (fn [_] {:status 200 :body "ok"}) {:port 3499})
+          rec    (clojure.lang.Reflector/invokeConstructor jfr-recording (object-array 0))
+          file   (java.io.File/createTempFile "http-kit" ".jfr")]
+      (try
+        (doseq [^String n ["httpkit.server.RequestDecoded" "httpkit.server.Queued"
+                           "httpkit.server.Handler" "httpkit.server.ResponseWritten"]]
+          (.enable rec n))
+        (.start rec)
+        (dotimes [_ 100] ; the recorder is listened to by a thread of its own, once loaded
+          (when-not (.isEnabled org.httpkit.jfr.FlightEvents/SERVER_HANDLER) (Thread/sleep 10)))
+        (is (.isEnabled org.httpkit.jfr.FlightEvents/SERVER_HANDLER))
+        (is (not (.isEnabled org.httpkit.jfr.FlightEvents/SERVER_ACCEPT)))
+        (is (= 200 (:status (http/get "http://localhost:3499/jfr"))))
+        (Thread/sleep 50)
+        (.stop rec)
+        (.dump rec (.toPath file))
+        (let [events  (clojure.lang.Reflector/invokeStaticMethod
+                       "jdk.jfr.consumer.RecordingFile" "readAllEvents" (object-array [(.toPath file)]))
+              by-name (group-by #(.getName (.getEventType %)) events)]
+          (is (= #{"httpkit.server.RequestDecoded" "httpkit.server.Queued"
+                   "httpkit.server.Handler" "httpkit.server.ResponseWritten"}
+                 (set (keys by-name))))
+          (is (= "/jfr" (.getString (first (by-name "httpkit.server.Handler")) "uri"))))
+        (is (not (.isEnabled org.httpkit.jfr.FlightEvents/SERVER_HANDLER)))
+        (finally
+          (.close rec)
+          (.delete file)
+          (server))))))
+
+(deftest test-access-log
+  ;; a line per request, written by a background thread, flushed on stop
+  (let [out    (java.io.ByteArrayOutputStream.)
+        server (run-server (fn [req] {:status (if (= "/missing" (:uri req)) 404 200) :body "ok"})
+                           {:port 3500 :access-log {:out out :buffer 16}
+                            :legacy-return-value? false})]
+    (try
+      (is (= 200 (:status (http/get "http://localhost:3500/a?b=c"))))
+      (is (= 404 (:status (http/get "http://localhost:3500/missing" {:throw-exceptions false}))))
+      (finally (server-stop! server)))
+    (Thread/sleep 200) ; stopped: the log is closed once the loops are done
+    (let [lines (clojure.string/split-lines (String. (.toByteArray out) "UTF-8"))]
+      (is (= 2 (count lines)))
+      (is (re-find #"^127\.0\.0\.1 - - \[[^]]+\] \"GET /a\?b=c HTTP/1\.1\" 200 \d+ \"-\" \"[^\"]*\" [0-9.]+ queue=[0-9.]+ handler=[0-9.]+ write=[0-9.]+$"
+                   (first lines)))
+      (is (re-find #"\"GET /missing HTTP/1\.1\" 404 " (second lines)))
+      (is (= 2 (.getWritten ^org.httpkit.server.AccessLog (.getAccessLog ^org.httpkit.server.HttpServer server))))
+      (is (zero? (.getDropped (.getAccessLog ^org.httpkit.server.HttpServer server)))))))
+
+(deftest test-metrics-file
+  ;; counters published to a memory-mapped file, read by another process
+  (let [file   (java.io.File/createTempFile "http-kit" ".counters")
+        server (run-server (fn [req] {:status (if (= "/missing" (:uri req)) 404 200) :body "ok"})
+                           {:port 3501 :metrics-file {:file file :interval 10}
+                            :legacy-return-value? false})]
+    (try
+      (is (= 200 (:status (http/get "http://localhost:3501/"))))
+      (is (= 404 (:status (http/get "http://localhost:3501/missing" {:throw-exceptions false}))))
+      (finally (server-stop! server)))
+    (Thread/sleep 200) ; stopped: the last values are published
+    (let [counters (org.httpkit.metrics.CountersFile/read file)]
+      (is (= 2 (get counters "server.requests")))
+      (is (= 1 (get counters "server.status.2xx")))
+      (is (= 1 (get counters "server.status.4xx")))
+      (is (pos? (get counters "server.bytes-in")))
+      (is (pos? (get counters "server.bytes-out")))
+      (is (= 2 (get counters "server.handler.count"))))
+    (.delete file)))
+
+(deftest test-admin-listener
+  ;; health and metrics answered by the admin listener while the workers are all busy
+  (let [release (promise)
+        pool    (ThreadPoolExecutor. 1 1 0 TimeUnit/MILLISECONDS (ArrayBlockingQueue. 1))
+        server  (run-server (fn [req] @release {:status 200 :body "ok"})
+                            {:port 3503 :worker-pool pool :metrics true
+                             :admin {:port    3504
+                                     :handler (fn [req] {:status 200 :headers {"Content-Type" "text/plain"}
+                                                         :body "custom"})}
+                             :legacy-return-value? false})
+        busy    (doall (for [_ (range 2)] (client/get "http://localhost:3503/")))]
+    (try
+      (Thread/sleep 200) ; one running, one queued: the pool is full
+      (is (= 503 (:status @(client/get "http://localhost:3503/"))))
+      (let [resp (http/get "http://localhost:3504/health")]
+        (is (= 200 (:status resp)))
+        (is (= "running" (:body resp))))
+      (let [resp (http/get "http://localhost:3504/metrics")]
+        (is (= 200 (:status resp)))
+        (is (re-find #"text/plain; version=0\.0\.4" (get-in resp [:headers "content-type"])))
+        (is (re-find #"(?m)^# TYPE httpkit_server_requests_total counter$" (:body resp)))
+        (is (re-find #"(?m)^httpkit_server_requests_total 3$" (:body resp)))
+        (is (re-find #"(?m)^httpkit_server_pool_active 1$" (:body resp))))
+      (is (= "custom" (:body (http/get "http://localhost:3504/other"))))
+      (is (some #{"server-loop-admin"} (map #(.getName ^Thread %) (keys (Thread/getAllStackTraces)))))
+      (deliver release true)
+      (is (every? #(= 200 (:status @%)) busy))
+      (finally
+        (deliver release true)
+        (server-stop! server)))
+    (Thread/sleep 300) ; stopped once the server is
+    (is (= :stopped (server-status (.getAdmin ^org.httpkit.server.HttpServer server))))))
+
 (deftest test-http10-keepalive
   ;; request + request sent to server, wait for 2 server responses
   (let [resp (SpecialHttpClient/http10 "http://localhost:4347/")]
@@ -653,3 +1418,14 @@
 
     (.await after-latch)
     (is (= @state_ :after-join))))
+
+(deftest test-io-threads
+  (let [server (run-server (site test-routes) {:port 3478 :io-threads 4})]
+    (try
+      (dotimes [_ 20]
+        (is (= "hello world" (:body (http/get "http://localhost:3478/")))))
+      (is (<= 4 (->> (keys (Thread/getAllStackTraces))
+                     (map #(.getName ^Thread %))
+                     (filter #(.startsWith ^String % "server-loop-"))
+                     (count))))
+      (finally (server)))))